@@ -700,13 +700,44 @@ static inline void set_bits(uint8_t *bytes, int32_t bitOffset, int32_t value) {
     *((int32_t *) bytes) |= (value << bitOffset);
 }
 
+// scale the peaks of the bins to 5 bits; the peaks are clipped at 1.8 times their average
+static jbyteArray waveform_to_bitstream(JNIEnv *env, uint16_t *samples, int32_t resultSamples) {
+    int64_t sumSamples = 0;
+    for (int i = 0; i < resultSamples; i++) {
+        sumSamples += samples[i];
+    }
+    uint16_t peak = (uint16_t) (sumSamples * 1.8f / resultSamples);
+    if (peak < 2500) {
+        peak = 2500;
+    }
+    
+    for (int i = 0; i < resultSamples; i++) {
+        uint16_t sample = (uint16_t) ((int64_t) samples[i]);
+        if (sample > peak) {
+            samples[i] = peak;
+        }
+    }
+    
+    int bitstreamLength = (resultSamples * 5) / 8 + (((resultSamples * 5) % 8) == 0 ? 0 : 1);
+    jbyteArray result = (*env)->NewByteArray(env, bitstreamLength);
+    jbyte *bytes = (*env)->GetByteArrayElements(env, result, NULL);
+    
+    for (int i = 0; i < resultSamples; i++) {
+        int32_t value = min(31, abs((int32_t) samples[i]) * 31 / peak);
+        set_bits(bytes, i * 5, value & 31);
+    }
+    
+    (*env)->ReleaseByteArrayElements(env, result, bytes, JNI_COMMIT);
+    return result;
+}
+
 JNIEXPORT jbyteArray Java_com_b44t_messenger_MediaController_getWaveform2(JNIEnv *env, jclass class, jshortArray array, jint length) {
     
     jshort *sampleBuffer = (*env)->GetShortArrayElements(env, array, 0);
     
     jbyteArray result = 0;
     int32_t resultSamples = 100;
-    uint16_t *samples = malloc(100 * 2);
+    uint16_t *samples = calloc(100, 2);
     uint64_t sampleIndex = 0;
     uint16_t peakSample = 0;
     int32_t sampleRate = (int32_t) max(1, length / resultSamples);
@@ -725,42 +756,45 @@ JNIEXPORT jbyteArray Java_com_b44t_messenger_MediaController_getWaveform2(JNIEnv
         }
     }
     
-    int64_t sumSamples = 0;
-    for (int i = 0; i < resultSamples; i++) {
-        sumSamples += samples[i];
-    }
-    uint16_t peak = (uint16_t) (sumSamples * 1.8f / resultSamples);
-    if (peak < 2500) {
-        peak = 2500;
-    }
-    
-    for (int i = 0; i < resultSamples; i++) {
-        uint16_t sample = (uint16_t) ((int64_t) samples[i]);
-        if (sample > peak) {
-            samples[i] = peak;
-        }
-    }
-    
     (*env)->ReleaseShortArrayElements(env, array, sampleBuffer, 0);
     
-    int bitstreamLength = (resultSamples * 5) / 8 + (((resultSamples * 5) % 8) == 0 ? 0 : 1);
-    result = (*env)->NewByteArray(env, bitstreamLength);
-    jbyte *bytes = (*env)->GetByteArrayElements(env, result, NULL);
-    
-    for (int i = 0; i < resultSamples; i++) {
-        int32_t value = min(31, abs((int32_t) samples[i]) * 31 / peak);
-        set_bits(bytes, i * 5, value & 31);
-    }
-    
-    (*env)->ReleaseByteArrayElements(env, result, bytes, JNI_COMMIT);
+    result = waveform_to_bitstream(env, samples, resultSamples);
     free(samples);
     
     return result;
 }
 
-static int16_t *sampleBuffer = NULL;
+#define WAVEFORM_BUFFER_VALUES   (1024 * 64)
+#define WAVEFORM_FULL_DECODE_MAX (48000 * 30) // shorter files are decoded completely
+#define WAVEFORM_WINDOW_SAMPLES  (48000 / 5)  // for longer files, only 200 ms in the middle of each bin are decoded
 
+// decode up to maxSamples samples per channel at the current position, returns the peak
+static uint16_t read_peak(OggOpusFile *opusFile, int16_t *buffer, int64_t maxSamples) {
+    uint16_t peakSample = 0;
+    int channels = op_channel_count(opusFile, -1);
+    if (channels < 1) {
+        channels = 1;
+    }
+    while (maxSamples > 0) {
+        int readSamples = op_read(opusFile, buffer, (int) (min(WAVEFORM_BUFFER_VALUES, maxSamples * channels)), NULL);
+        if (readSamples == OP_HOLE) {
+            continue;
+        }
+        if (readSamples <= 0) {
+            break;
+        }
+        for (int i = 0; i < readSamples * channels; i++) {
+            uint16_t sample = (uint16_t) abs(buffer[i]);
+            if (sample > peakSample) {
+                peakSample = sample;
+            }
+        }
+        maxSamples -= readSamples;
+    }
+    return peakSample;
+}
 
+// called on several threads at the same time, so all buffers are allocated per call
 JNIEXPORT jbyteArray Java_com_b44t_messenger_MediaController_getWaveform(JNIEnv *env, jclass class, jstring path) {
     const char *pathStr = (*env)->GetStringUTFChars(env, path, 0);
     jbyteArray result = 0;
@@ -770,72 +804,66 @@ JNIEXPORT jbyteArray Java_com_b44t_messenger_MediaController_getWaveform(JNIEnv
     if (opusFile != NULL && error == OPUS_OK) {
         int64_t totalSamples = op_pcm_total(opusFile, -1);
         int32_t resultSamples = 100;
-        int32_t sampleRate = (int32_t) max(1, totalSamples / resultSamples);
-        
-        uint16_t *samples = malloc(100 * 2);
-        
-        int bufferSize = 1024 * 128;
-        if (sampleBuffer == NULL) {
-            sampleBuffer = malloc(bufferSize);
-        }
-        uint64_t sampleIndex = 0;
-        uint16_t peakSample = 0;
-        
-        int index = 0;
+        uint16_t *samples = calloc(resultSamples, 2);
+        int16_t *buffer = malloc(WAVEFORM_BUFFER_VALUES * 2);
         
-        while (1) {
-            int readSamples = op_read(opusFile, sampleBuffer, bufferSize / 2, NULL);
-            for (int i = 0; i < readSamples; i++) {
-                uint16_t sample = (uint16_t) abs(sampleBuffer[i]);
-                if (sample > peakSample) {
-                    peakSample = sample;
-                }
-                if (sampleIndex++ % sampleRate == 0) {
-                    if (index < resultSamples) {
-                        samples[index++] = peakSample;
-                    }
-                    peakSample = 0;
+        if (totalSamples > WAVEFORM_FULL_DECODE_MAX && op_seekable(opusFile)) {
+            // seek to the middle of each bin, using the granule positions of the pages, and decode a short window only;
+            // the peaks of the windows are a little lower than the peaks of the whole bins, but as the peaks are scaled
+            // by their average, this is hardly visible, and a voice message of some minutes is done in a fraction of the time.
+            for (int i = 0; i < resultSamples; i++) {
+                int64_t binStart = totalSamples * i / resultSamples;
+                int64_t binLength = totalSamples * (i + 1) / resultSamples - binStart;
+                int64_t windowStart = binStart + (max(0, (binLength - WAVEFORM_WINDOW_SAMPLES) / 2)); // the macros need the parentheses
+                if (op_pcm_seek(opusFile, windowStart) == 0) {
+                    samples[i] = read_peak(opusFile, buffer, (min(binLength, WAVEFORM_WINDOW_SAMPLES)));
                 }
             }
-            if (readSamples == 0) {
-                break;
+        } else {
+            int32_t sampleRate = (int32_t) max(1, totalSamples / resultSamples);
+            int channels = op_channel_count(opusFile, -1);
+            if (channels < 1) {
+                channels = 1;
             }
-        }
-        
-        int64_t sumSamples = 0;
-        for (int i = 0; i < resultSamples; i++) {
-            sumSamples += samples[i];
-        }
-        uint16_t peak = (uint16_t) (sumSamples * 1.8f / resultSamples);
-        if (peak < 2500) {
-            peak = 2500;
-        }
-        
-        for (int i = 0; i < resultSamples; i++) {
-            uint16_t sample = (uint16_t) ((int64_t) samples[i]);
-            if (sample > peak) {
-                samples[i] = peak;
+            uint64_t sampleIndex = 0;
+            uint16_t peakSample = 0;
+            int index = 0;
+            
+            // stop as soon as all bins are filled, the remainder of the last bin would be dropped anyway
+            while (index < resultSamples) {
+                int readSamples = op_read(opusFile, buffer, WAVEFORM_BUFFER_VALUES, NULL);
+                if (readSamples == OP_HOLE) {
+                    continue;
+                }
+                if (readSamples <= 0) {
+                    break;
+                }
+                for (int i = 0; i < readSamples; i++) {
+                    for (int c = 0; c < channels; c++) {
+                        uint16_t sample = (uint16_t) abs(buffer[i * channels + c]);
+                        if (sample > peakSample) {
+                            peakSample = sample;
+                        }
+                    }
+                    if (sampleIndex++ % sampleRate == 0) {
+                        if (index < resultSamples) {
+                            samples[index++] = peakSample;
+                        }
+                        peakSample = 0;
+                    }
+                }
             }
         }
         
-        //free(sampleBuffer);
+        free(buffer);
         op_free(opusFile);
         
-        int bitstreamLength = (resultSamples * 5) / 8 + (((resultSamples * 5) % 8) == 0 ? 0 : 1);
-        result = (*env)->NewByteArray(env, bitstreamLength);
-        jbyte *bytes = (*env)->GetByteArrayElements(env, result, NULL);
-        
-        for (int i = 0; i < resultSamples; i++) {
-            int32_t value = min(31, abs((int32_t) samples[i]) * 31 / peak);
-            set_bits(bytes, i * 5, value & 31);
-        }
-
-        (*env)->ReleaseByteArrayElements(env, result, bytes, JNI_COMMIT);
+        result = waveform_to_bitstream(env, samples, resultSamples);
         free(samples);
+    } else if (opusFile != NULL) {
+        op_free(opusFile);
     }
     
-    
-    
     if (pathStr != 0) {
         (*env)->ReleaseStringUTFChars(env, path, pathStr);
     }
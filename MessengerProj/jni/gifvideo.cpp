@@ -59,6 +59,10 @@ typedef struct VideoInfo {
             delete [] src;
             src = nullptr;
         }
+        if (scaled) {
+            delete [] scaled;
+            scaled = nullptr;
+        }
         av_free_packet(&orig_pkt);
         
         video_stream_idx = -1;
@@ -72,8 +76,11 @@ typedef struct VideoInfo {
     AVCodecContext *video_dec_ctx = nullptr;
     AVFrame *frame = nullptr;
     bool has_decoded_frames = false;
+    bool restarted = false; // seeked to the begin of the file, reported with the next frame
     AVPacket pkt;
     AVPacket orig_pkt;
+    uint8_t *scaled = nullptr; // I420 planes for frames scaled down to the bitmap size
+    int scaled_size = 0;
 };
 
 
@@ -247,6 +254,7 @@ jint Java_com_b44t_ui_Components_AnimatedFileDrawable_getVideoFrame(JNIEnv *env,
                         return 0;
                     } else {
                         avcodec_flush_buffers(info->video_dec_ctx);
+                        info->restarted = true;
                     }
                 }
             }
@@ -260,16 +268,47 @@ jint Java_com_b44t_ui_Components_AnimatedFileDrawable_getVideoFrame(JNIEnv *env,
                 jint *dataArr = env->GetIntArrayElements(data, 0);
                 if (dataArr != nullptr) {
                     dataArr[2] = (int) (1000 * info->frame->pkt_pts * av_q2d(info->video_stream->time_base));
+                    dataArr[3] = info->frame->format == AV_PIX_FMT_BGRA ? 1 : 0; // frames may have an alpha channel
+                    dataArr[4] = info->restarted ? 1 : 0; // the loop is complete, also for files with a single frame
+                    info->restarted = false;
                     env->ReleaseIntArrayElements(data, dataArr, 0);
                 }
                 
+                // the bitmap may be smaller than the frame, the frame is scaled down to the bitmap size then
+                AndroidBitmapInfo bitmapInfo;
                 void *pixels;
-                if (AndroidBitmap_lockPixels(env, bitmap, &pixels) >= 0) {
+                if (AndroidBitmap_getInfo(env, bitmap, &bitmapInfo) >= 0 && AndroidBitmap_lockPixels(env, bitmap, &pixels) >= 0) {
+                    int w = info->frame->width, h = info->frame->height;
+                    int dst_w = bitmapInfo.width, dst_h = bitmapInfo.height;
+                    if (dst_w > w || dst_h > h) {
+                        dst_w = w;
+                        dst_h = h;
+                    }
                     if (info->frame->format == AV_PIX_FMT_YUV420P) {
                         //LOGD("y %d, u %d, v %d, width %d, height %d", info->frame->linesize[0], info->frame->linesize[2], info->frame->linesize[1], info->frame->width, info->frame->height);
-                        libyuv::I420ToARGB(info->frame->data[0], info->frame->linesize[0], info->frame->data[2], info->frame->linesize[2], info->frame->data[1], info->frame->linesize[1], (uint8_t *) pixels, info->frame->width * 4, info->frame->width, info->frame->height);
+                        if (dst_w == w && dst_h == h) {
+                            libyuv::I420ToARGB(info->frame->data[0], info->frame->linesize[0], info->frame->data[2], info->frame->linesize[2], info->frame->data[1], info->frame->linesize[1], (uint8_t *) pixels, bitmapInfo.stride, w, h);
+                        } else {
+                            int uv_w = (dst_w + 1) / 2, uv_h = (dst_h + 1) / 2;
+                            int needed = dst_w * dst_h + 2 * uv_w * uv_h;
+                            if (info->scaled_size < needed) {
+                                delete [] info->scaled;
+                                info->scaled = new uint8_t[needed];
+                                info->scaled_size = needed;
+                            }
+                            uint8_t *y = info->scaled, *u = y + dst_w * dst_h, *v = u + uv_w * uv_h;
+                            libyuv::I420Scale(info->frame->data[0], info->frame->linesize[0], info->frame->data[1], info->frame->linesize[1], info->frame->data[2], info->frame->linesize[2], w, h,
+                                              y, dst_w, u, uv_w, v, uv_w, dst_w, dst_h, libyuv::kFilterBilinear);
+                            libyuv::I420ToARGB(y, dst_w, v, uv_w, u, uv_w, (uint8_t *) pixels, bitmapInfo.stride, dst_w, dst_h);
+                        }
                     } else if (info->frame->format == AV_PIX_FMT_BGRA) {
-                        libyuv::ABGRToARGB(info->frame->data[0], info->frame->linesize[0], (uint8_t *) pixels, info->frame->width * 4, info->frame->width, info->frame->height);
+                        if (dst_w == w && dst_h == h) {
+                            libyuv::ABGRToARGB(info->frame->data[0], info->frame->linesize[0], (uint8_t *) pixels, bitmapInfo.stride, w, h);
+                        } else {
+                            // scaling does not care about the order of the channels, so they are swapped in place afterwards
+                            libyuv::ARGBScale(info->frame->data[0], info->frame->linesize[0], w, h, (uint8_t *) pixels, bitmapInfo.stride, dst_w, dst_h, libyuv::kFilterBilinear);
+                            libyuv::ABGRToARGB((uint8_t *) pixels, bitmapInfo.stride, (uint8_t *) pixels, bitmapInfo.stride, dst_w, dst_h);
+                        }
                     }
                     AndroidBitmap_unlockPixels(env, bitmap);
                 }
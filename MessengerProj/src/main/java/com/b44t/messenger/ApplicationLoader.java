@@ -232,7 +232,8 @@ public class ApplicationLoader extends Application {
         fontSize = mainPreferences.getInt("msg_font_size", SettingsAdvFragment.defMsgFontSize());
 
         ImageLoader.getInstance();
-        MediaController.getInstance();
+        MediaController.getInstance().resumeVideoConversions();
+        StorageManager.getInstance().scheduleGc();
         NotificationsController.getInstance(); // force instace creation which also does some init stuff
 
         if( !isScreenOn ) {
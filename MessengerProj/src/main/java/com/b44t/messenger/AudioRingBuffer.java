@@ -0,0 +1,170 @@
+/*******************************************************************************
+ *
+ *                              Delta Chat Android
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    AudioRingBuffer.java
+ * Purpose: Preallocated single-producer/single-consumer ring of audio buffers
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AudioRingBuffer {
+
+    public static class Slot {
+        public final ByteBuffer buffer;
+        public int size;
+        public int finished;
+        public long pcmOffset;
+
+        Slot(int capacity) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+            buffer.order(ByteOrder.nativeOrder());
+        }
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+
+    // writeIndex is modified by the producer only, readIndex by the consumer only;
+    // this is what makes the ring safe without locks.
+    private final AtomicLong writeIndex = new AtomicLong();
+    private final AtomicLong readIndex = new AtomicLong();
+    private volatile long discardBefore;
+
+    // a producer waiting in awaitWrite() is woken up by commitRead()
+    private final Object spaceLock = new Object();
+    private volatile boolean writerWaiting;
+
+    private volatile int underrunCount;
+    private volatile int overrunCount;
+
+    public AudioRingBuffer(int slotCount, int capacity) {
+        if (slotCount <= 0 || (slotCount & (slotCount - 1)) != 0) {
+            throw new IllegalArgumentException("slotCount must be a power of two");
+        }
+        slots = new Slot[slotCount];
+        for (int a = 0; a < slotCount; a++) {
+            slots[a] = new Slot(capacity);
+        }
+        mask = slotCount - 1;
+    }
+
+    /* producer side
+     **********************************************************************************************/
+
+    // returns the next free slot or null if the ring is full; the slot is published by commitWrite()
+    public Slot acquireWrite() {
+        long w = writeIndex.get();
+        if (w - readIndex.get() >= slots.length) {
+            return null;
+        }
+        return slots[(int) (w & mask)];
+    }
+
+    // like acquireWrite(), but waits until the consumer releases a slot if the ring is full
+    public Slot awaitWrite() throws InterruptedException {
+        Slot slot = acquireWrite();
+        if (slot != null) {
+            return slot;
+        }
+        synchronized (spaceLock) {
+            writerWaiting = true;
+            try {
+                // writerWaiting is set before readIndex is checked, commitRead() sets readIndex before checking writerWaiting;
+                // as both are volatile, no wakeup is missed
+                while ((slot = acquireWrite()) == null) {
+                    spaceLock.wait();
+                }
+            } finally {
+                writerWaiting = false;
+            }
+        }
+        return slot;
+    }
+
+    public void commitWrite() {
+        writeIndex.lazySet(writeIndex.get() + 1);
+    }
+
+    public void countOverrun() {
+        overrunCount++; // statistics only, a race with resetCounters() does not matter
+    }
+
+    // drop everything written so far, eg. after seeking; the consumer skips the slots on its next read
+    public void discardAll() {
+        discardBefore = writeIndex.get();
+    }
+
+    /* consumer side
+     **********************************************************************************************/
+
+    // returns the oldest filled slot or null if the ring is empty; the slot is released by commitRead()
+    public Slot acquireRead() {
+        long r = readIndex.get();
+        long d = discardBefore;
+        if (r < d) {
+            r = d;
+            readIndex.lazySet(r);
+        }
+        if (r >= writeIndex.get()) {
+            return null;
+        }
+        return slots[(int) (r & mask)];
+    }
+
+    public void commitRead() {
+        readIndex.set(readIndex.get() + 1);
+        if (writerWaiting) {
+            synchronized (spaceLock) {
+                spaceLock.notifyAll();
+            }
+        }
+    }
+
+    public void countUnderrun() {
+        underrunCount++; // statistics only, a race with resetCounters() does not matter
+    }
+
+    /* any thread
+     **********************************************************************************************/
+
+    public boolean isEmpty() {
+        return Math.max(readIndex.get(), discardBefore) >= writeIndex.get();
+    }
+
+    public int getUnderrunCount() {
+        return underrunCount;
+    }
+
+    public int getOverrunCount() {
+        return overrunCount;
+    }
+
+    public void resetCounters() {
+        underrunCount = 0;
+        overrunCount = 0;
+    }
+}
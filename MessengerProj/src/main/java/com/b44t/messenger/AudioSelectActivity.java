@@ -207,6 +207,13 @@ public class AudioSelectActivity extends BaseFragment implements NotificationCen
                         audioEntry.title = cursor.getString(2);
                         audioEntry.path = cursor.getString(3);
                         audioEntry.duration = (int) (cursor.getLong(4) / 1000);
+                        if (audioEntry.duration == 0) {
+                            // not (yet) scanned by the media scanner, maybe we have parsed the file before
+                            MediaMetaCache.Entry cached = MediaMetaCache.getInstance().get(audioEntry.path);
+                            if (cached != null) {
+                                audioEntry.duration = cached.duration / 1000;
+                            }
+                        }
 
                         File file = new File(audioEntry.path);
 
@@ -32,6 +32,7 @@ public class BootCompletedReceiver extends BroadcastReceiver {
     public void onReceive(Context context, Intent intent) {
         MrMailbox.log_i("DeltaChat", "*** BootCompletedReceiver.onReceive()");
         // there's nothing more to do here as all initialisation stuff is already done in
-        // ApplicationLoader.onCreate() which is called before this broadcast is sended.
+        // ApplicationLoader.onCreate() which is called before this broadcast is sended;
+        // this also resumes the video conversions interrupted by the shutdown, see MediaController.resumeVideoConversions()
     }
 }
@@ -66,6 +66,7 @@ import com.b44t.messenger.Components.StaticLayoutEx;
 import com.b44t.messenger.ActionBar.Theme;
 import com.b44t.messenger.PhotoViewer;
 
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Locale;
 
@@ -248,6 +249,101 @@ public class ChatMessageCell extends BaseCell implements SeekBar.SeekBarDelegate
     private int lastSendState;
     private int lastViewsCount;
 
+    private static int[] calcPhotoSize(int imageW, int imageH, int photoWidth, int photoHeight) {
+        float scale = (float) imageW / (float) photoWidth;
+        int w = (int) (imageW / scale);
+        int h = (int) (imageH / scale);
+        if (w == 0) {
+            w = dp(150);
+        }
+        if (h == 0) {
+            h = dp(150);
+        }
+        if (h > photoHeight) {
+            float scale2 = h;
+            h = photoHeight;
+            scale2 /= h;
+            w = (int) (w / scale2);
+        } else if (h < dp(120)) {
+            h = dp(120);
+            float hScale = (float) imageH / h;
+            if (imageW / hScale < photoWidth) {
+                w = (int) (imageW / hScale);
+            }
+        }
+        return new int[]{w, h};
+    }
+
+    /* the size of a photo and the filter it is loaded with; used by setMessageObject() and by
+    getPrefetchPhotoFilter(), so that a prefetched photo is found under the key the bound cell asks for.
+     **********************************************************************************************/
+
+    // returns {maxPhotoWidth, photoWidth, photoHeight}
+    private static int[] calcPhotoBox(boolean drawNewchatButton) {
+        int maxPhotoWidth, photoWidth;
+        maxPhotoWidth = photoWidth = (int) (Math.min(displaySize.x, displaySize.y) * 0.7f);
+        int photoHeight = photoWidth + dp(100);
+        if (drawNewchatButton) {
+            maxPhotoWidth -= dp(20);
+            photoWidth -= dp(20);
+        }
+        if (photoWidth > getPhotoSize()) {
+            photoWidth = getPhotoSize();
+        }
+        if (photoHeight > getPhotoSize()) {
+            photoHeight = getPhotoSize();
+        }
+        return new int[]{maxPhotoWidth, photoWidth, photoHeight};
+    }
+
+    private static int calcTimeWidth(TextPaint paint, String timeString, boolean showPadlock) {
+        int width = (int) Math.ceil(paint.measureText(timeString));
+        if (showPadlock) {
+            width += Theme.encrOutDrawable.getIntrinsicWidth();
+        }
+        return width;
+    }
+
+    private static int calcTimeWidthTotal(int timeWidth, boolean isOut) {
+        return timeWidth + dp(14 + (isOut ? 20 : 0));
+    }
+
+    private static String getPhotoFilter(int w, int h) {
+        return String.format(Locale.US, "%d_%d", (int) (w / density), (int) (h / density));
+    }
+
+    private static TextPaint prefetchTimePaint; // timePaint is used by the UI thread, Paint is not thread-safe
+
+    /**
+     * Returns the filter setMessageObject() will use for the photo of an image message of the given size,
+     * used by ImageLoader.prefetchMsgImages() on its own thread to load the photo before the cell is bound.
+     * Returns null if the chat resources are not loaded yet.
+     */
+    public static String getPrefetchPhotoFilter(int imageW, int imageH, long timestamp, boolean showPadlock, boolean isOut, boolean drawNewchatButton) {
+        if (showPadlock && Theme.encrOutDrawable == null) {
+            return null;
+        }
+        if (prefetchTimePaint == null) {
+            prefetchTimePaint = createTimePaint();
+        }
+        int[] box = calcPhotoBox(drawNewchatButton);
+        int[] size = calcPhotoSize(imageW, imageH, box[1], box[2]);
+
+        // the formatter is cloned as it is shared with the UI thread
+        SimpleDateFormat formatter = (SimpleDateFormat) LocaleController.getInstance().getFormatterDay().clone();
+        int timeWidthTotal = calcTimeWidthTotal(calcTimeWidth(prefetchTimePaint, formatter.format(timestamp * 1000), showPadlock), isOut);
+        if (size[0] < timeWidthTotal) {
+            size[0] = timeWidthTotal;
+        }
+        return getPhotoFilter(size[0], size[1]);
+    }
+
+    private static TextPaint createTimePaint() {
+        TextPaint paint = new TextPaint(TextPaint.ANTI_ALIAS_FLAG);
+        paint.setTextSize(dp(12));
+        return paint;
+    }
+
     public ChatMessageCell(Context context) {
         super(context);
         if (infoPaint == null) {
@@ -277,8 +373,7 @@ public class ChatMessageCell extends BaseCell implements SeekBar.SeekBarDelegate
             audioPerformerPaint.setTextSize(dp(14));
             audioPerformerPaint.setColor(Theme.MSG_AUDIO_NAME_COLOR);
 
-            timePaint = new TextPaint(TextPaint.ANTI_ALIAS_FLAG);
-            timePaint.setTextSize(dp(12));
+            timePaint = createTimePaint();
 
             namePaint = new TextPaint(TextPaint.ANTI_ALIAS_FLAG);
             namePaint.setTypeface(Typeface.DEFAULT_BOLD);
@@ -1033,7 +1128,7 @@ public class ChatMessageCell extends BaseCell implements SeekBar.SeekBarDelegate
 
             maxWidth = maxWidth - dp(86);
 
-            String filename = MrMailbox.getMsg(messageObject.getId()).getFilename();
+            String filename = messageObject.msg != null? messageObject.msg.filename : MrMailbox.getMsg(messageObject.getId()).getFilename();
             CharSequence stringFinal = TextUtils.ellipsize(filename, audioTitlePaint, maxWidth, TextUtils.TruncateAt.MIDDLE);
             songLayout = new StaticLayout(stringFinal, audioTitlePaint, maxWidth, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
             if (songLayout.getLineCount() > 0) {
@@ -1071,10 +1166,14 @@ public class ChatMessageCell extends BaseCell implements SeekBar.SeekBarDelegate
             int minutes = duration / 60;
             int seconds = duration - minutes * 60;
             String infoString = String.format("%d:%02d, %s", minutes, seconds, formatFileSize(documentAttach.size));
-            if( MrMailbox.getMsg(messageObject.getId()).isIncreation() ) {
-                infoString = ApplicationLoader.applicationContext.getString(R.string.OneMoment);
+            boolean increation = messageObject.msg != null? messageObject.msg.increation : MrMailbox.getMsg(messageObject.getId()).isIncreation();
+            if( increation ) {
+                // the width is reserved for the longest progress, see setVideoConvertProgress()
+                infoWidth = (int) Math.ceil(infoPaint.measureText(getConvertInfoString(1.0f)));
+                infoString = getConvertInfoString(MediaController.getInstance().getVideoConvertProgress(documentAttach.mr_path));
+            } else {
+                infoWidth = (int) Math.ceil(infoPaint.measureText(infoString));
             }
-            infoWidth = (int) Math.ceil(infoPaint.measureText(infoString));
             infoLayout = new StaticLayout(infoString, infoPaint, infoWidth, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
         }
         else
@@ -1384,20 +1483,10 @@ public class ChatMessageCell extends BaseCell implements SeekBar.SeekBarDelegate
                                 messageObject.messageOwner.media.document.size, "webp", true);
                     }
                 } else {
-                    int maxPhotoWidth;
-                    maxPhotoWidth = photoWidth = (int) (Math.min(displaySize.x, displaySize.y) * 0.7f);
-                    photoHeight = photoWidth + dp(100);
-                    if (drawNewchatButton) {
-                        maxPhotoWidth -= dp(20);
-                        photoWidth -= dp(20);
-                    }
-
-                    if (photoWidth > getPhotoSize()) {
-                        photoWidth = getPhotoSize();
-                    }
-                    if (photoHeight > getPhotoSize()) {
-                        photoHeight = getPhotoSize();
-                    }
+                    int[] box = calcPhotoBox(drawNewchatButton);
+                    int maxPhotoWidth = box[0];
+                    photoWidth = box[1];
+                    photoHeight = box[2];
 
                     if (messageObject.type == MessageObject.MO_TYPE1_PHOTO) {
                         currentPhotoObjectThumb = FileLoader.getClosestPhotoSizeWithSize(messageObject.photoThumbs, 80);
@@ -1426,27 +1515,9 @@ public class ChatMessageCell extends BaseCell implements SeekBar.SeekBarDelegate
                     }
 
                     if (currentPhotoObject != null) {
-                        float scale = (float) currentPhotoObject.w / (float) photoWidth;
-                        w = (int) (currentPhotoObject.w / scale);
-                        h = (int) (currentPhotoObject.h / scale);
-                        if (w == 0) {
-                            w = dp(150);
-                        }
-                        if (h == 0) {
-                            h = dp(150);
-                        }
-                        if (h > photoHeight) {
-                            float scale2 = h;
-                            h = photoHeight;
-                            scale2 /= h;
-                            w = (int) (w / scale2);
-                        } else if (h < dp(120)) {
-                            h = dp(120);
-                            float hScale = (float) currentPhotoObject.h / h;
-                            if (currentPhotoObject.w / hScale < photoWidth) {
-                                w = (int) (currentPhotoObject.w / hScale);
-                            }
-                        }
+                        int[] size = calcPhotoSize(currentPhotoObject.w, currentPhotoObject.h, photoWidth, photoHeight);
+                        w = size[0];
+                        h = size[1];
                     }
 
                     if ((w == 0 || h == 0) && messageObject.type == MessageObject.MO_TYPE8_GIF) {
@@ -1485,7 +1556,7 @@ public class ChatMessageCell extends BaseCell implements SeekBar.SeekBarDelegate
 
                     availableTimeWidth = maxPhotoWidth - dp(14);
                     measureTime(messageObject);
-                    int timeWidthTotal = timeWidth + dp(14 + (messageObject.isOutOwner() ? 20 : 0));
+                    int timeWidthTotal = calcTimeWidthTotal(timeWidth, messageObject.isOutOwner());
                     if (w < timeWidthTotal) {
                         w = timeWidthTotal;
                     }
@@ -1512,7 +1583,7 @@ public class ChatMessageCell extends BaseCell implements SeekBar.SeekBarDelegate
                         }
                     }
 
-                    currentPhotoFilter = String.format(Locale.US, "%d_%d", (int) (w / density), (int) (h / density));
+                    currentPhotoFilter = getPhotoFilter(w, h);
                     if (messageObject.photoThumbs != null && messageObject.photoThumbs.size() > 1 || messageObject.type == MessageObject.MO_TYPE3_VIDEO || messageObject.type == MessageObject.MO_TYPE8_GIF) {
                         currentPhotoFilter += "_b";
                     }
@@ -1935,6 +2006,23 @@ public class ChatMessageCell extends BaseCell implements SeekBar.SeekBarDelegate
         return backgroundWidth - dp(mediaBackground ? 22 : 31);
     }
 
+    private static String getConvertInfoString(float progress) {
+        String ret = ApplicationLoader.applicationContext.getString(R.string.OneMoment);
+        if (progress >= 0) {
+            ret += String.format(Locale.US, " %d%%", (int) (progress * 100));
+        }
+        return ret;
+    }
+
+    // called for the progress of the video conversion of the file at the given path, see MediaController.didWriteData()
+    public void setVideoConvertProgress(String path, float progress) {
+        if (documentAttachType != DOCUMENT_ATTACH_TYPE_VIDEO || documentAttach == null || infoLayout == null || !path.equals(documentAttach.mr_path)) {
+            return;
+        }
+        infoLayout = new StaticLayout(getConvertInfoString(progress), infoPaint, infoWidth, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
+        invalidate();
+    }
+
     public void updateButtonState() {
         if (documentAttachType == DOCUMENT_ATTACH_TYPE_VOICE || documentAttachType == DOCUMENT_ATTACH_TYPE_MUSIC) {
             boolean isMessageOnAir = MediaController.getInstance().isMessageOnAir(currentMessageObject);
@@ -2028,12 +2116,8 @@ public class ChatMessageCell extends BaseCell implements SeekBar.SeekBarDelegate
 
     private void measureTime(MessageObject messageObject) {
         currentTimeString = LocaleController.getInstance().getFormatterDay().format((long) (messageObject.messageOwner.date) * 1000);
-        timeWidth = (int) Math.ceil(timePaint.measureText(currentTimeString));
-        timeEncrWidth = 0;
-        if( messageObject.messageOwner.show_padlock) {
-            timeEncrWidth = Theme.encrOutDrawable.getIntrinsicWidth();
-            timeWidth += timeEncrWidth;
-        }
+        timeWidth = calcTimeWidth(timePaint, currentTimeString, messageObject.messageOwner.show_padlock);
+        timeEncrWidth = messageObject.messageOwner.show_padlock? Theme.encrOutDrawable.getIntrinsicWidth() : 0;
     }
 
     private boolean isDrawSelectedBackground() {
@@ -2361,4 +2445,16 @@ public class ChatMessageCell extends BaseCell implements SeekBar.SeekBarDelegate
     public MessageObject getMessageObject() {
         return currentMessageObject;
     }
+
+    // update the checkmarks after a delivery or read receipt; the layout does not depend on the state, so no new layout is needed
+    public void setSendState(int sendState, boolean unread) {
+        if (currentMessageObject == null) {
+            return;
+        }
+        currentMessageObject.messageOwner.send_state = sendState;
+        currentMessageObject.messageOwner.unread = unread;
+        currentMessageObject.messageOwner.media_unread = unread;
+        lastSendState = sendState;
+        invalidate();
+    }
 }
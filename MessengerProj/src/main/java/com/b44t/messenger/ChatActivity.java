@@ -49,6 +49,7 @@ import android.text.TextWatcher;
 import android.text.style.ClickableSpan;
 import android.text.style.URLSpan;
 import android.util.Log;
+import android.util.SparseBooleanArray;
 import android.util.SparseIntArray;
 import android.util.TypedValue;
 import android.view.Gravity;
@@ -87,8 +88,10 @@ import java.io.Console;
 import java.io.File;
 import java.net.URLDecoder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 
 @SuppressWarnings("unchecked")
 public class ChatActivity extends BaseFragment implements NotificationCenter.NotificationCenterDelegate, ChatlistActivity.ChatlistActivityDelegate,
@@ -138,6 +141,9 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
     private boolean paused = true;
     private boolean wasPaused = false;
     private SparseIntArray markseenWhenResume = new SparseIntArray();
+    private SparseIntArray markseenPending = new SparseIntArray();
+    private boolean markseenScheduled;
+    private static final int MARKSEEN_DELAY_MS = 100;
 
     private boolean scrollToTopOnResume;
     private boolean forceScrollToTop;
@@ -236,6 +242,85 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
                 markerUnreadMessageId /*add a marker before this ID*/);
     }
 
+    // load the message list in the background and update only the changed rows;
+    // until the new list is set, m_msglist and the adapter stay consistent with the old list
+    private int m_msglistGeneration;
+    private final SparseBooleanArray m_changedMsgIds = new SparseBooleanArray(); // kept until an update is not superseded
+    private void updateMsglistAsync(final boolean scrollToLast)
+    {
+        updateMsglistAsync(scrollToLast, 0);
+    }
+
+    // changedMsgId: a message that may have changed itself, eg. its state or its download; its row is bound again,
+    // also if the update is superseded by a newer one before
+    private void updateMsglistAsync(final boolean scrollToLast, final int changedMsgId)
+    {
+        final int generation = ++m_msglistGeneration;
+        if( changedMsgId > 0 ) {
+            m_changedMsgIds.put(changedMsgId, true);
+        }
+        final int[] oldList = m_msglist;
+        final int chatId = (int)dialog_id;
+        final int markerBefore = markerUnreadMessageId;
+        Utilities.globalQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                final int[] newList = MrMailbox.getChatMsgs(chatId, MrMailbox.MR_GCM_ADDDAYMARKER, markerBefore);
+                final MsgListDiff diff = MsgListDiff.calculate(oldList, newList);
+                AndroidUtilities.runOnUIThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if( generation != m_msglistGeneration || chatAdapter == null ) {
+                            return; // another update is on the way
+                        }
+                        boolean listChanged = m_msglist != oldList;
+                        m_msglist = newList;
+                        if( listChanged ) {
+                            chatAdapter.notifyDataSetChanged(); // the list was set synchronously in between
+                        }
+                        else {
+                            diff.dispatchUpdatesTo(chatAdapter);
+                            for( int i = 0; i < m_changedMsgIds.size(); i++ ) {
+                                int msgId = m_changedMsgIds.keyAt(i);
+                                if( indexOf(oldList, msgId) >= 0 ) {
+                                    int pos = indexOf(newList, msgId);
+                                    if( pos >= 0 ) {
+                                        chatAdapter.notifyItemChanged(pos);
+                                    }
+                                }
+                            }
+                        }
+                        m_changedMsgIds.clear();
+                        if( scrollToLast ) {
+                            scrollToLastMessage(false);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    // the position of a message in the list, -1 for markers and messages not in the list
+    private static int indexOf(int[] list, int msgId)
+    {
+        if( msgId > MrMsg.MR_MSG_ID_DAYMARKER ) {
+            for( int i = list.length-1; i >= 0; i-- ) { // changes and receipts are typically for recent messages at the end of the list
+                if( list[i] == msgId ) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    // the messages in the deaddrop belong to different chats, all other lists show the messages of m_mrChat only
+    private MsgViewModel loadMsg(int msgId)
+    {
+        MrMsg mrMsg = MrMailbox.getMsg(msgId);
+        MrChat mrChat = m_isChatWithDeaddrop? MrMailbox.getChat(mrMsg.getChatId()) : m_mrChat;
+        return new MsgViewModel(mrMsg, mrChat, MediaController.getInstance());
+    }
+
     private void messagesDidLoaded()
     {
         firstLoading = false;
@@ -326,6 +411,9 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
         if (chatActivityEnterView != null) {
             chatActivityEnterView.onDestroy();
         }
+        if (m_searchController != null) {
+            m_searchController.cancel();
+        }
 
         NotificationCenter.getInstance().removeObserver(this, NotificationCenter.dialogsNeedReload);
         NotificationCenter.getInstance().removeObserver(this, NotificationCenter.updateInterfaces);
@@ -566,6 +654,10 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
                 searchItem.setVisibility(View.GONE);
                 highlightMessageId = 0;
                 m_searching = false;
+                if( m_searchController!=null ) {
+                    m_searchController.cancel();
+                }
+                m_searchedMsglist = null;
                 updateVisibleRowsFast();
                 //scrollToLastMessage(false); -- wo do not scroll down; this does not make sense if the user has just selected a different position by "search"
                 updateBottomOverlay();
@@ -974,6 +1066,7 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
                     }
                 }
                 updateMessagesVisisblePart();
+                prefetchImages(dy);
             }
         });
 
@@ -1519,6 +1612,32 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
         }
     }
 
+    private static final int PREFETCH_ROWS = 8;
+    private int lastPrefetchPosition = RecyclerView.NO_POSITION;
+
+    private void prefetchImages(int dy) {
+        // warm the image cache with the rows that are about to be scrolled into view
+        if (dy == 0 || m_msglist.length == 0) {
+            return;
+        }
+        int direction = dy > 0 ? 1 : -1;
+        int position = direction > 0 ? chatLayoutManager.findLastVisibleItemPosition() : chatLayoutManager.findFirstVisibleItemPosition();
+        if (position == RecyclerView.NO_POSITION || position == lastPrefetchPosition) {
+            return;
+        }
+        lastPrefetchPosition = position;
+
+        int[] msgIds = new int[PREFETCH_ROWS];
+        int count = 0;
+        for (int i = position + direction; i >= 0 && i < m_msglist.length && count < PREFETCH_ROWS; i += direction) {
+            msgIds[count++] = m_msglist[i];
+        }
+        if (count > 0) {
+            ImageLoader.getInstance().prefetchMsgImages(count < PREFETCH_ROWS ? Arrays.copyOf(msgIds, count) : msgIds,
+                    direction, ImageLoader.PREFETCH_CHAT_CELL, m_isChatWithDeaddrop);
+        }
+    }
+
     private void showPagedownButton(boolean show, boolean animated) {
         if (pagedownButton == null) {
             return;
@@ -1851,16 +1970,30 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
                     }
                 }
                 String tempPath = AndroidUtilities.getPath(uri);
-                String originalPath = tempPath;
-                if (tempPath == null) {
-                    originalPath = data.toString();
-                    tempPath = MediaController.copyFileToCache(data.getData(), "file");
-                }
                 if (tempPath == null) {
-                    showAttachmentError();
+                    // the content is hashed and copied in the background, it may be large
+                    final Uri dataUri = data.getData();
+                    final String originalPath = data.toString();
+                    Utilities.globalQueue.postRunnable(new Runnable() {
+                        @Override
+                        public void run() {
+                            final String copyPath = MediaController.copyFileToCache(dataUri, "file");
+                            AndroidUtilities.runOnUIThread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (copyPath == null) {
+                                        showAttachmentError();
+                                        return;
+                                    }
+                                    SendMessagesHelper.prepareSendingDocument(copyPath, originalPath, null, null, dialog_id);
+                                    m_mrChat.cleanDraft();
+                                }
+                            });
+                        }
+                    });
                     return;
                 }
-                SendMessagesHelper.prepareSendingDocument(tempPath, originalPath, null, null, dialog_id);
+                SendMessagesHelper.prepareSendingDocument(tempPath, tempPath, null, null, dialog_id);
                 m_mrChat.cleanDraft();
             }
         }
@@ -1878,88 +2011,116 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
         currentPicturePath = args.getString("path");
     }
 
+    // the events of the backend are posted with int arguments, see MrMailbox.MrCallback()
     @Override
-    public void didReceivedNotification(int id, final Object... args)
+    public boolean didReceivedIntNotification(int id, int arg0, int arg1, int arg2)
     {
-        if( id == NotificationCenter.dialogsNeedReload )
-        {
-            if( args.length >= 3 ) {
-                // add incoming messages
-                int evt_chat_id = (int) args[1];
-                int evt_msg_id = (int) args[2];
-                if (evt_chat_id == dialog_id && evt_msg_id > 0)
-                {
-                    boolean markAsRead = false;
-                    MrMsg mrMsg = MrMailbox.getMsg(evt_msg_id);
-                    if ( mrMsg.getFromId()!=MrContact.MR_CONTACT_ID_SELF ) {
-                        if (paused) {
-                            if( !scrollToTopUnReadOnResume && markerUnreadMessageId != 0 ) {
-                                markerUnreadMessageId = 0;
-                            }
-                            if( markerUnreadMessageId == 0 ) {
-                                markerUnreadMessageId = mrMsg.getId();
-                                scrollToMessage = null;
-                                scrollToMessagePosition = -10000;
-                                markerUnreadCount = 0;
-                                scrollToTopUnReadOnResume = true;
-                            }
-                        }
-
-                        if (markerUnreadMessageId != 0) {
-                            markerUnreadCount++;
-                        }
+        if( id == NotificationCenter.dialogsNeedReload ) {
+            onMsgsChanged(arg1, arg2);
+        }
+        else if( id == NotificationCenter.messagesSentOrRead ) {
+            onMsgsSentOrRead(arg1, arg2);
+        }
+        else if( id == NotificationCenter.updateInterfaces ) {
+            onUpdateInterfaces(arg0);
+        }
+        else {
+            return false;
+        }
+        return true;
+    }
 
-                        markAsRead = true;
+    private void onMsgsChanged(int evt_chat_id, int evt_msg_id)
+    {
+        // add incoming messages
+        if (evt_chat_id == dialog_id && evt_msg_id > 0)
+        {
+            boolean markAsRead = false;
+            MrMsg mrMsg = MrMailbox.getMsg(evt_msg_id);
+            if ( mrMsg.getFromId()!=MrContact.MR_CONTACT_ID_SELF ) {
+                if (paused) {
+                    if( !scrollToTopUnReadOnResume && markerUnreadMessageId != 0 ) {
+                        markerUnreadMessageId = 0;
                     }
-
-                    updateMsglist();
-                    chatAdapter.notifyDataSetChanged();
-                    scrollToLastMessage(false);
-
-                    if (markAsRead) {
-                        if (paused) {
-                            markseenWhenResume.put(evt_msg_id, 1);
-                        } else {
-                            int msg_ids[] = new int[1];
-                            msg_ids[0] = evt_msg_id;
-                            MrMailbox.markseenMsgs(msg_ids);
-                            NotificationsController.getInstance().removeSeenMessages();
-                        }
+                    if( markerUnreadMessageId == 0 ) {
+                        markerUnreadMessageId = mrMsg.getId();
+                        scrollToMessage = null;
+                        scrollToMessagePosition = -10000;
+                        markerUnreadCount = 0;
+                        scrollToTopUnReadOnResume = true;
                     }
                 }
-                else if(evt_chat_id == dialog_id) {
-                    // needed to update eg. the draft
-                    m_mrChat = MrMailbox.getChat(evt_chat_id);
+
+                if (markerUnreadMessageId != 0) {
+                    markerUnreadCount++;
                 }
+
+                markAsRead = true;
+            }
+
+            updateMsglistAsync(true, evt_msg_id);
+
+            if (markAsRead) {
+                markseenMsg(evt_msg_id);
             }
         }
-        else if (id == NotificationCenter.updateInterfaces)
+        else if(evt_chat_id == dialog_id) {
+            // needed to update eg. the draft
+            m_mrChat = MrMailbox.getChat(evt_chat_id);
+        }
+    }
+
+    private void onMsgsSentOrRead(int evt_chat_id, int evt_msg_id)
+    {
+        if (evt_chat_id != 0 && evt_chat_id != dialog_id) {
+            return; // receipt for a message in another chat
+        }
+        int pos = indexOf(m_msglist, evt_msg_id);
+        if (pos >= 0) {
+            // only update the checkmarks of the affected row, see ChatActivityAdapter.onBindViewHolder()
+            chatAdapter.notifyItemChanged(pos, PAYLOAD_SEND_STATE);
+            return;
+        }
+        chatAdapter.notifyDataSetChanged();
+    }
+
+    private void onUpdateInterfaces(int updateMask)
+    {
+        if ((updateMask & MrMailbox.UPDATE_MASK_NAME) != 0 || (updateMask & MrMailbox.UPDATE_MASK_CHAT_NAME) != 0) {
+            int back_id = m_mrChat.getId();
+            m_mrChat = MrMailbox.getChat(back_id);
+            updateTitle();
+        }
+        boolean updateSubtitle = false;
+        if ((updateMask & MrMailbox.UPDATE_MASK_CHAT_MEMBERS) != 0 || (updateMask & MrMailbox.UPDATE_MASK_STATUS) != 0) {
+            updateSubtitle = true;
+        }
+        if ((updateMask & MrMailbox.UPDATE_MASK_AVATAR) != 0 || (updateMask & MrMailbox.UPDATE_MASK_CHAT_AVATAR) != 0 || (updateMask & MrMailbox.UPDATE_MASK_NAME) != 0) {
+            checkAndUpdateAvatar();
+            updateVisibleRows();
+        }
+        if (avatarContainer != null && updateSubtitle) {
+            avatarContainer.updateSubtitle();
+        }
+    }
+
+    @Override
+    public void didReceivedNotification(int id, final Object... args)
+    {
+        if( id == NotificationCenter.dialogsNeedReload )
         {
-            int updateMask = (Integer) args[0];
-            if ((updateMask & MrMailbox.UPDATE_MASK_NAME) != 0 || (updateMask & MrMailbox.UPDATE_MASK_CHAT_NAME) != 0) {
-                int back_id = m_mrChat.getId();
-                m_mrChat = MrMailbox.getChat(back_id);
-                updateTitle();
-            }
-            boolean updateSubtitle = false;
-            if ((updateMask & MrMailbox.UPDATE_MASK_CHAT_MEMBERS) != 0 || (updateMask & MrMailbox.UPDATE_MASK_STATUS) != 0) {
-                updateSubtitle = true;
-            }
-            if ((updateMask & MrMailbox.UPDATE_MASK_AVATAR) != 0 || (updateMask & MrMailbox.UPDATE_MASK_CHAT_AVATAR) != 0 || (updateMask & MrMailbox.UPDATE_MASK_NAME) != 0) {
-                checkAndUpdateAvatar();
-                updateVisibleRows();
-            }
-            if (avatarContainer != null && updateSubtitle) {
-                avatarContainer.updateSubtitle();
+            if( args.length >= 3 ) {
+                onMsgsChanged((int) args[1], (int) args[2]);
             }
-
+        }
+        else if (id == NotificationCenter.updateInterfaces)
+        {
+            onUpdateInterfaces((Integer) args[0]);
         }
         else if (id == NotificationCenter.didReceivedNewMessages)
         {
             markerUnreadMessageId = 0;
-            updateMsglist();
-            chatAdapter.notifyDataSetChanged();
-            scrollToLastMessage(false);
+            updateMsglistAsync(true);
         }
         else if (id == NotificationCenter.closeChats)
         {
@@ -1974,13 +2135,17 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
         }
         else if (id == NotificationCenter.messagesSentOrRead)
         {
-            chatAdapter.notifyDataSetChanged();
+            if (args != null && args.length >= 3) {
+                onMsgsSentOrRead((int) args[1], (int) args[2]);
+            }
+            else {
+                chatAdapter.notifyDataSetChanged();
+            }
         }
         else if (id == NotificationCenter.messagesDeleted)
         {
             markerUnreadMessageId = 0;
-            updateMsglist();
-            chatAdapter.notifyDataSetChanged();
+            updateMsglistAsync(false);
         }
         else if (id == NotificationCenter.messageSendError)
         {
@@ -2037,6 +2202,18 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
         }
         else if (id == NotificationCenter.FileNewChunkAvailable)
         {
+            // show the progress of a video conversion in the cell of the message
+            if (chatListView != null && args.length > 3) {
+                String path = (String) args[1];
+                float progress = (Float) args[3];
+                int count = chatListView.getChildCount();
+                for (int a = 0; a < count; a++) {
+                    View view = chatListView.getChildAt(a);
+                    if (view instanceof ChatMessageCell) {
+                        ((ChatMessageCell) view).setVideoConvertProgress(path, progress);
+                    }
+                }
+            }
         }
         else if (id == NotificationCenter.audioDidStarted)
         {
@@ -2076,6 +2253,8 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
         }
     }
 
+    private static final Object PAYLOAD_SEND_STATE = new Object();
+
     private boolean m_searching = false;
     private static final int SEARCH_QUERY      = 0;
     private static final int SEARCH_QUERY_CONT = 1;
@@ -2084,6 +2263,8 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
     private String m_lastSearchQuery = "";
     private int[] m_searchResult = {};
     private int   m_searchIndex = -1;
+    private MsgSearchController m_searchController;
+    private int[] m_searchedMsglist; // every change of the messages sets a new m_msglist, then the last result cannot be refined
     private void handleSearch(int action, String query)
     {
         int     doScroll = 0;
@@ -2095,26 +2276,24 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
             query = query.trim();
             if (!query.equals(m_lastSearchQuery)) {
                 m_lastSearchQuery = query;
-                Utilities.searchQueue.postRunnable(new Runnable() {
-                   @Override
-                   public void run() {
-                       final int temp[] = MrMailbox.searchMsgs((int) dialog_id, m_lastSearchQuery);
-                       AndroidUtilities.runOnUIThread(new Runnable() {
-                           @Override
-                           public void run() {
-                               if( m_searching ) {
-                                   m_searchResult = temp;
-                                   if (m_searchResult.length > 0) {
-                                       m_searchIndex = 0;
-                                   } else {
-                                       m_searchIndex = -1;
-                                   }
-                                   handleSearch(SEARCH_QUERY_CONT, null);
-                               }
-                           }
-                       });
-                   }
-                });
+                if( m_searchController==null ) {
+                    m_searchController = new MsgSearchController((int) dialog_id, new MsgSearchController.Delegate() {
+                        @Override
+                        public void onSearchResult(String query, int[] msgIds) {
+                            if( m_searching ) {
+                                m_searchResult = msgIds;
+                                if (m_searchResult.length > 0) {
+                                    m_searchIndex = 0;
+                                } else {
+                                    m_searchIndex = -1;
+                                }
+                                handleSearch(SEARCH_QUERY_CONT, null);
+                            }
+                        }
+                    });
+                }
+                m_searchController.search(query, m_searchedMsglist == m_msglist);
+                m_searchedMsglist = m_msglist;
             }
         }
         else if( action==SEARCH_QUERY_CONT ) {
@@ -2258,15 +2437,11 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
         paused = false;
 
         int markseenWhenResumeCnt = markseenWhenResume.size();
-        if (markseenWhenResumeCnt>0 ) {
-            int msg_ids[] = new int[markseenWhenResumeCnt];
-            for(int i=0; i<markseenWhenResumeCnt; i++) {
-                msg_ids[i] = markseenWhenResume.keyAt(i);
-            }
-            MrMailbox.markseenMsgs(msg_ids);
-            markseenWhenResume.clear();
-            NotificationsController.getInstance().removeSeenMessages();
+        for(int i=0; i<markseenWhenResumeCnt; i++) {
+            markseenPending.put(markseenWhenResume.keyAt(i), 1);
         }
+        markseenWhenResume.clear();
+        flushMarkseen();
 
         if (wasPaused) {
             wasPaused = false;
@@ -2301,6 +2476,7 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
         if (menuItem != null) {
             menuItem.closeSubMenu();
         }
+        flushMarkseen();
         paused = true;
         wasPaused = true;
         NotificationsController.getInstance().setOpenedDialogId(0);
@@ -2493,6 +2669,47 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
         return true;
     }
 
+    // messages shown to the user are collected and marked as seen together after a short delay;
+    // this avoids one backend call per bound row when scrolling through many fresh messages
+    private void markseenMsg(int msg_id)
+    {
+        if( paused ) {
+            markseenWhenResume.put(msg_id, 1);
+            return;
+        }
+        markseenPending.put(msg_id, 1);
+        if( !markseenScheduled ) {
+            markseenScheduled = true;
+            AndroidUtilities.runOnUIThread(markseenRunnable, MARKSEEN_DELAY_MS);
+        }
+    }
+
+    private final Runnable markseenRunnable = new Runnable() {
+        @Override
+        public void run() {
+            markseenScheduled = false;
+            flushMarkseen();
+        }
+    };
+
+    private void flushMarkseen()
+    {
+        if( markseenScheduled ) {
+            AndroidUtilities.cancelRunOnUIThread(markseenRunnable);
+            markseenScheduled = false;
+        }
+        int cnt = markseenPending.size();
+        if( cnt > 0 ) {
+            int msg_ids[] = new int[cnt];
+            for( int i=0; i<cnt; i++ ) {
+                msg_ids[i] = markseenPending.keyAt(i);
+            }
+            markseenPending.clear();
+            MrMailbox.markseenMsgs(msg_ids);
+            NotificationsController.getInstance().removeSeenMessages();
+        }
+    }
+
     private void updateVisibleRows() {
         // update by reloading all messages cells from disk.
         // this is slow, but works always, eg. on deletion of messages.
@@ -2659,6 +2876,7 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
 
         private class Holder extends RecyclerView.ViewHolder {
             public Holder(View itemView) { super(itemView); }
+            int markseenMsgId; // rows may be bound ahead of time, they are marked as seen when shown
         }
 
         @Override
@@ -2844,13 +3062,11 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
             ArrayList<MessageObject> photos = new ArrayList<>();
 
             for(int msg_index = 0; msg_index < m_msglist.length; msg_index ++) {
-                MrMsg mrMsg = MrMailbox.getMsg(m_msglist[msg_index]);
-                switch (mrMsg.getType()) {
+                MsgViewModel msg = loadMsg(m_msglist[msg_index]);
+                switch (msg.type) {
                     case MrMsg.MR_MSG_IMAGE:
                     case MrMsg.MR_MSG_GIF:
                     {
-
-                        TLRPC.Message msg = mrMsg.get_TLRPC_Message();
                         // generateLayout replaces emojis in text and other text rendering actions.
                         MessageObject photoMsg = new MessageObject(msg, false);
 
@@ -2878,7 +3094,27 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
             return 0; // didn't find the matching photo.
         }
 
-                @Override
+        @Override
+        public void onBindViewHolder(RecyclerView.ViewHolder holder, int i, List<Object> payloads) {
+            if (!payloads.isEmpty() && holder.itemView instanceof ChatMessageCell && i >= 0 && i < m_msglist.length) {
+                ChatMessageCell messageCell = (ChatMessageCell) holder.itemView;
+                MessageObject msgDrawObj = messageCell.getMessageObject();
+                boolean sendStateOnly = msgDrawObj != null && msgDrawObj.getId() == m_msglist[i];
+                for (Object payload : payloads) {
+                    if (payload != PAYLOAD_SEND_STATE) {
+                        sendStateOnly = false;
+                    }
+                }
+                if (sendStateOnly) {
+                    int state = MrMailbox.getMsg(m_msglist[i]).getState();
+                    messageCell.setSendState(MrMsg.state2SendState(state), state != MrMsg.MR_OUT_MDN_RCVD);
+                    return;
+                }
+            }
+            onBindViewHolder(holder, i);
+        }
+
+        @Override
         public void onBindViewHolder(RecyclerView.ViewHolder holder, int i) {
             if (i >= 0 && i < m_msglist.length) {
                 View view = holder.itemView;
@@ -2902,8 +3138,7 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
                 if( view instanceof ChatMessageCell )
                 {
                     // show a normal message
-                    MrMsg mrMsg = MrMailbox.getMsg(msg_id);
-                    TLRPC.Message msg = mrMsg.get_TLRPC_Message();
+                    MsgViewModel msg = loadMsg(msg_id);
                     MessageObject msgDrawObj = new MessageObject(msg, true);
 
                     ChatMessageCell messageCell = (ChatMessageCell) view;
@@ -2918,18 +3153,9 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
                         messageCell.setHighlightedText(null);
                     }
 
-                    // mark message as being read
-                    int state = mrMsg.getState();
-                    if( state == MrMsg.MR_IN_FRESH || state==MrMsg.MR_IN_NOTICED ) {
-                        if(paused) {
-                            markseenWhenResume.put(msg_id, 1);
-                        }
-                        else {
-                            int msg_ids[] = new int[1];
-                            msg_ids[0] = msg_id;
-                            MrMailbox.markseenMsgs(msg_ids);
-                        }
-                    }
+                    // mark message as being read as soon as it gets visible, see onViewAttachedToWindow()
+                    int state = msg.state;
+                    ((Holder)holder).markseenMsgId = (state == MrMsg.MR_IN_FRESH || state==MrMsg.MR_IN_NOTICED)? msg_id : 0;
                 }
                 else if( view instanceof ChatActionCell )
                 {
@@ -2949,12 +3175,12 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
                         actionCell.setMessageObject(msgDrawObj);
                     }
                     else {
-                        MrMsg mrMsg = MrMailbox.getMsg(msg_id);
+                        MsgViewModel msg = loadMsg(msg_id);
 
-                        MessageObject msgDrawObj = new MessageObject(mrMsg.get_TLRPC_Message(), false);
+                        MessageObject msgDrawObj = new MessageObject(msg, false);
 
                         // Add the suffix " (by ...)" to the action, see strings.xml for details.
-                        int fromId = mrMsg.getFromId();
+                        int fromId = msg.fromId;
                         if( fromId != MrContact.MR_CONTACT_ID_DEVICE ) {
                             String actionStr = msgDrawObj.messageText.toString();
                             if(actionStr.endsWith(".")) { actionStr = actionStr.substring(0, actionStr.length() - 1); }
@@ -2962,7 +3188,7 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
                                 msgDrawObj.messageText = String.format(ApplicationLoader.applicationContext.getString(R.string.ActionBySelf), actionStr);
                             }
                             else {
-                                String fromStr = MrMailbox.getContact(mrMsg.getFromId()).getFirstName();
+                                String fromStr = MrMailbox.getContact(fromId).getFirstName();
                                 msgDrawObj.messageText = String.format(ApplicationLoader.applicationContext.getString(R.string.ActionByUser), actionStr, fromStr);
                             }
                         }
@@ -2999,6 +3225,11 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
 
         @Override
         public void onViewAttachedToWindow(RecyclerView.ViewHolder holder) {
+            if (((Holder)holder).markseenMsgId != 0) {
+                markseenMsg(((Holder)holder).markseenMsgId);
+                ((Holder)holder).markseenMsgId = 0;
+            }
+
             if (holder.itemView instanceof ChatMessageCell) {
                 final ChatMessageCell messageCell = (ChatMessageCell) holder.itemView;
                 messageCell.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
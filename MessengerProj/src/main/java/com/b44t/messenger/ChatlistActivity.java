@@ -76,7 +76,7 @@ import com.b44t.messenger.ActionBar.Theme;
 import java.util.ArrayList;
 
 
-public class ChatlistActivity extends BaseFragment implements NotificationCenter.NotificationCenterDelegate {
+public class ChatlistActivity extends BaseFragment implements NotificationCenter.NotificationCenterDelegate, NotificationCenter.IntNotificationDelegate {
     
     private RecyclerListView listView;
     private LinearLayoutManager layoutManager;
@@ -177,6 +177,10 @@ public class ChatlistActivity extends BaseFragment implements NotificationCenter
         NotificationCenter.getInstance().removeObserver(this, NotificationCenter.didSetPasscode);
         NotificationCenter.getInstance().removeObserver(this, NotificationCenter.secureJoinJoinerProgress);
 
+        if (chatlistSearchAdapter != null) {
+            chatlistSearchAdapter.cancelSearch();
+        }
+
         delegate = null;
     }
 
@@ -204,6 +208,7 @@ public class ChatlistActivity extends BaseFragment implements NotificationCenter
                         actionBar.setBackButtonDrawable(new BackDrawable(false));
                     }
                     searching = true;
+                    MsgSearchIndex.getInstance().start();
                     if (listView != null) {
                         if (floatingButton!=null) {
                             floatingButton.setVisibility(View.GONE);
@@ -225,6 +230,9 @@ public class ChatlistActivity extends BaseFragment implements NotificationCenter
                     }
                     searching = false;
                     searchWas = false;
+                    if (chatlistSearchAdapter != null) {
+                        chatlistSearchAdapter.cancelSearch();
+                    }
                     if (listView != null) {
                         searchEmptyView.setVisibility(View.GONE);
                         listView.setEmptyView(emptyView);
@@ -263,6 +271,7 @@ public class ChatlistActivity extends BaseFragment implements NotificationCenter
                         }
                     } else if (listView.getAdapter() == chatlistSearchAdapter) {
                         // empty text
+                        chatlistSearchAdapter.cancelSearch();
                         listView.setAdapter(chatlistAdapter);
                         chatlistAdapter.reloadChatlist();
                         chatlistAdapter.notifyDataSetChanged();
@@ -1003,30 +1012,49 @@ public class ChatlistActivity extends BaseFragment implements NotificationCenter
         }
     }
 
+    // the events of the backend are posted with int arguments, see MrMailbox.MrCallback()
+    @Override
+    public boolean didReceivedIntNotification(int id, int arg0, int arg1, int arg2) {
+        if (id == NotificationCenter.dialogsNeedReload) {
+            onChatlistChanged();
+        } else if (id == NotificationCenter.updateInterfaces) {
+            updateVisibleRows(arg0);
+        } else if (id == NotificationCenter.contactsDidLoaded) {
+            updateVisibleRows(0);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private void onChatlistChanged() {
+        if (chatlistAdapter != null) {
+            chatlistAdapter.reloadChatlist();
+            chatlistAdapter.notifyDataSetChanged();
+        }
+        if (chatlistSearchAdapter != null) {
+            chatlistSearchAdapter.searchAgain();
+            chatlistSearchAdapter.notifyDataSetChanged();
+        }
+        if (listView != null) {
+            try {
+                    if (searching && searchWas) {
+                        emptyView.setVisibility(View.GONE);
+                        listView.setEmptyView(searchEmptyView);
+                    } else {
+                        searchEmptyView.setVisibility(View.GONE);
+                        listView.setEmptyView(emptyView);
+                    }
+            } catch (Exception e) {
+            }
+        }
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     public void didReceivedNotification(int id, Object... args) {
         if (id == NotificationCenter.dialogsNeedReload) {
-            if (chatlistAdapter != null) {
-                chatlistAdapter.reloadChatlist();
-                chatlistAdapter.notifyDataSetChanged();
-            }
-            if (chatlistSearchAdapter != null) {
-                chatlistSearchAdapter.searchAgain();
-                chatlistSearchAdapter.notifyDataSetChanged();
-            }
-            if (listView != null) {
-                try {
-                        if (searching && searchWas) {
-                            emptyView.setVisibility(View.GONE);
-                            listView.setEmptyView(searchEmptyView);
-                        } else {
-                            searchEmptyView.setVisibility(View.GONE);
-                            listView.setEmptyView(emptyView);
-                        }
-                } catch (Exception e) {
-                }
-            }
+            onChatlistChanged();
         } else if (id == NotificationCenter.updateInterfaces) {
             updateVisibleRows((Integer) args[0]);
         } else if (id == NotificationCenter.contactsDidLoaded) {
@@ -1229,22 +1257,54 @@ public class ChatlistActivity extends BaseFragment implements NotificationCenter
             }
         }
 
+        private MsgSearchController m_searchController;
+
         public ChatlistSearchAdapter(Context context) {
             mContext = context;
+            m_searchController = new MsgSearchController(0, new MsgSearchController.Delegate() {
+                @Override
+                public void onSearchResult(String query, int[] msgIds) {
+                    if( query.equals(m_lastQuery) ) {
+                        m_msgIds = msgIds;
+                        updateRows();
+                        notifyDataSetChanged();
+                    }
+                }
+            });
         }
 
         public void searchAgain()
         {
-            doSearch(m_lastQuery);
+            doSearch(m_lastQuery, false);
         }
 
         public void doSearch(String query) {
-            m_lastQuery = query;
+            doSearch(query, true);
+        }
 
-            rowCount = 0;
+        public void cancelSearch() {
+            m_searchController.cancel();
+        }
+
+        private void doSearch(String query, boolean refine) {
+            if( query==null ) {
+                return;
+            }
+
+            // searching the chat names is fast and done directly; the messages are searched in the background,
+            // until the result arrives, the messages of the previous query are shown
+            m_lastQuery = query;
 
             m_chatlist = MrMailbox.getChatlist(0, query, 0);
             m_chatlistCnt = m_chatlist.getCnt();
+            updateRows();
+
+            m_searchController.search(query, refine);
+        }
+
+        private void updateRows() {
+            rowCount = 0;
+
             if( m_chatlistCnt>0 ) {
                 rowChatsHeadline = rowCount++;
 
@@ -1258,7 +1318,6 @@ public class ChatlistActivity extends BaseFragment implements NotificationCenter
                 rowLastChat = -1;
             }
 
-            m_msgIds = MrMailbox.searchMsgs(0, query);
             if( m_msgIds.length>0 ) {
                 rowMsgsHeadline = rowCount++;
 
@@ -39,10 +39,10 @@ import android.os.Looper;
 import android.view.View;
 
 import com.b44t.messenger.AndroidUtilities;
+import com.b44t.messenger.ImageLoader;
 
 import java.io.File;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.Arrays;
 
 public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
 
@@ -53,7 +53,7 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
     private long lastFrameTime;
     private int lastTimeStamp;
     private int invalidateAfter = 50;
-    private final int[] metaData = new int[3];
+    private final int[] metaData = new int[5]; // width, height, timestamp of the last frame in ms, 1=frames have alpha, 1=the file was started again before the last frame
     private Runnable loadFrameTask;
     private Bitmap renderingBitmap;
     private Bitmap nextRenderingBitmap;
@@ -80,7 +80,71 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
     private volatile boolean isRunning;
     private volatile boolean isRecycled;
     private volatile int nativePtr;
-    private static ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(2, new ThreadPoolExecutor.DiscardPolicy());
+
+    // frames are decoded at the size they are drawn at, but not larger than the file's size; 0 until drawn
+    private volatile int decodeWidth;
+    private volatile int decodeHeight;
+    private Bitmap replacedBitmap;
+    private volatile long lastDrawTime;
+
+    // short animations are decoded only once into a FrameCache and then looped from memory;
+    // the frames are recorded during the first loop, the cache is held by ImageLoader's memory cache.
+    private static final int FRAME_CACHE_MAX_FRAMES = 150;
+    private static final int FRAME_CACHE_MAX_BYTES = 4 * 1024 * 1024;
+    private volatile boolean useFrameCache;
+    private boolean frameCacheChecked;
+    private FrameCache frameCache;
+    private int frameCacheIndex;
+    private int recordState = RECORD_WAIT_FOR_LOOP; // the record* fields are used by the decoding thread only
+    private Bitmap[] recordedFrames;
+    private int[] recordedTimestamps;
+    private int recordedCount;
+    private int recordedBytes;
+    private int lastDecodedTimestamp = -1;
+    private static final int RECORD_WAIT_FOR_LOOP = 0;
+    private static final int RECORD_RUNNING = 1;
+    private static final int RECORD_DONE = 2;
+
+    public static class FrameCache extends BitmapDrawable {
+        private final Bitmap[] frames;
+        private final int[] delays; // delays[i] is the time between frame i-1 and frame i in milliseconds
+        private final int byteCount;
+        private volatile boolean evicted;
+
+        private FrameCache(Bitmap[] frames, int[] timestamps, int byteCount) {
+            super(frames[0]);
+            this.frames = frames;
+            this.byteCount = byteCount;
+            delays = new int[frames.length];
+            for (int i = 1; i < frames.length; i++) {
+                delays[i] = Math.max(10, timestamps[i] - timestamps[i - 1]);
+            }
+            delays[0] = frames.length > 1 ? delays[frames.length - 1] : 50; // the duration of the last frame is unknown
+        }
+
+        public int getByteCount() {
+            return byteCount;
+        }
+
+        // called by ImageLoader; the frames are not recycled as they may still be drawn, they are left to the garbage collector
+        public void onEvicted() {
+            evicted = true;
+        }
+
+        private boolean contains(Bitmap bitmap) {
+            for (Bitmap frame : frames) {
+                if (frame == bitmap) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // enable the frame cache for this drawable, see FRAME_CACHE_MAX_FRAMES and FRAME_CACHE_MAX_BYTES
+    public void setUseFrameCache(boolean value) {
+        useFrameCache = value;
+    }
 
     private View parentView = null;
     private View secondParentView = null;
@@ -111,6 +175,20 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
                 return;
             }
             loadFrameTask = null;
+            if (nextRenderingBitmap == null && renderingBitmap != null) {
+                AnimatedFrameScheduler.frameReady(System.currentTimeMillis() - lastFrameTime > invalidateAfter);
+            }
+            if (replacedBitmap != null) {
+                // the bitmap was replaced by one of another size, the old one is no longer drawn after the next frame
+                if (renderingBitmap == replacedBitmap) {
+                    renderingShader = null;
+                }
+                renderingBitmap = null;
+                replacedBitmap.recycle();
+                replacedBitmap = null;
+                applyTransformation = true;
+                lastFrameTime = 0; // show the new bitmap with the next draw()
+            }
             nextRenderingBitmap = backgroundBitmap;
             nextRenderingShader = backgroundShader;
             if (metaData[2] < lastTimeStamp) {
@@ -128,33 +206,171 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
         }
     };
 
-    private Runnable loadFrameRunnable = new Runnable() {
-        @Override
-        public void run() {
-            if (!isRecycled) {
-                if (!decoderCreated && nativePtr == 0) {
-                    nativePtr = createDecoder(path.getAbsolutePath(), metaData);
-                    decoderCreated = true;
+    // called by AnimatedFrameScheduler on one of its threads
+    void decodeNextFrame() {
+        if (!isRecycled) {
+            if (!decoderCreated && nativePtr == 0) {
+                nativePtr = createDecoder(path.getAbsolutePath(), metaData);
+                decoderCreated = true;
+            }
+            try {
+                int w = getDecodedWidth(), h = getDecodedHeight();
+                if (backgroundBitmap != null && (backgroundBitmap.getWidth() != w || backgroundBitmap.getHeight() != h) && replacedBitmap == null) {
+                    replacedBitmap = backgroundBitmap;
+                    backgroundBitmap = null;
+                    backgroundShader = null;
+                    stopRecording(RECORD_WAIT_FOR_LOOP); // the frames recorded so far have the old size
                 }
-                try {
-                    if (backgroundBitmap == null) {
-                        try {
-                            backgroundBitmap = Bitmap.createBitmap(metaData[0], metaData[1], Bitmap.Config.ARGB_8888);
-                        } catch (Throwable e) {
-
-                        }
-                        if (backgroundShader == null && backgroundBitmap != null && roundRadius != 0) {
-                            backgroundShader = new BitmapShader(backgroundBitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
-                        }
+                if (backgroundBitmap == null) {
+                    try {
+                        backgroundBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+                    } catch (Throwable e) {
+
                     }
-                    if (backgroundBitmap != null) {
-                        getVideoFrame(nativePtr, backgroundBitmap, metaData);
+                    if (backgroundShader == null && backgroundBitmap != null && roundRadius != 0) {
+                        backgroundShader = new BitmapShader(backgroundBitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
                     }
-                } catch (Throwable e) {
+                }
+                if (backgroundBitmap != null && getVideoFrame(nativePtr, backgroundBitmap, metaData) != 0 && useFrameCache) {
+                    recordFrame();
+                }
+            } catch (Throwable e) {
+
+            }
+        } else {
+            stopRecording(RECORD_DONE); // a recording interrupted by recycle()
+        }
+        AndroidUtilities.runOnUIThread(uiRunnable);
+    }
+
+    private int getDecodedWidth() {
+        return decodeWidth > 0 && decodeWidth < metaData[0] && decodeHeight < metaData[1] ? decodeWidth : metaData[0];
+    }
+
+    private int getDecodedHeight() {
+        return decodeHeight > 0 && decodeWidth < metaData[0] && decodeHeight < metaData[1] ? decodeHeight : metaData[1];
+    }
+
+    private String getFrameCacheKey(int w, int h) {
+        return "frames:" + path.getAbsolutePath() + ":" + w + "x" + h;
+    }
+
+    // called on the decoding thread for each decoded frame while the frame cache is used
+    private void recordFrame() {
+        int timestamp = metaData[2];
+        // a file with a single frame is started again without a smaller timestamp
+        boolean loopStart = lastDecodedTimestamp == -1 || timestamp < lastDecodedTimestamp || metaData[4] != 0;
+        lastDecodedTimestamp = timestamp;
+
+        if (loopStart && recordState == RECORD_RUNNING && recordedCount > 0) {
+            // the frame just decoded is the first one again, the loop is complete
+            final FrameCache cache = new FrameCache(Arrays.copyOf(recordedFrames, recordedCount), recordedTimestamps, recordedBytes);
+            final String key = getFrameCacheKey(recordedFrames[0].getWidth(), recordedFrames[0].getHeight());
+            recordedFrames = null; // handed over to the cache, not recycled by stopRecording()
+            stopRecording(RECORD_DONE);
+            AndroidUtilities.runOnUIThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isRecycled) {
+                        frameCache = cache;
+                        frameCacheIndex = 1 % cache.frames.length; // the first frame is about to be shown by uiRunnable
+                    }
+                    ImageLoader.getInstance().putAnimationFrames(key, cache);
+                }
+            });
+            return;
+        }
+        if (loopStart && recordState == RECORD_WAIT_FOR_LOOP) {
+            recordState = RECORD_RUNNING;
+            recordedFrames = new Bitmap[Math.min(FRAME_CACHE_MAX_FRAMES, 16)];
+            recordedTimestamps = new int[recordedFrames.length];
+        }
+        if (recordState != RECORD_RUNNING) {
+            return;
+        }
+
+        Bitmap.Config config = metaData[3] != 0 ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+        int frameBytes = backgroundBitmap.getWidth() * backgroundBitmap.getHeight() * (config == Bitmap.Config.RGB_565 ? 2 : 4);
+        if (recordedCount >= FRAME_CACHE_MAX_FRAMES || recordedBytes + frameBytes > FRAME_CACHE_MAX_BYTES) {
+            stopRecording(RECORD_DONE); // too long, the animation is decoded on every loop
+            return;
+        }
+        Bitmap frame = backgroundBitmap.copy(config, false);
+        if (frame == null) {
+            stopRecording(RECORD_DONE);
+            return;
+        }
+        if (recordedCount == recordedFrames.length) {
+            recordedFrames = Arrays.copyOf(recordedFrames, recordedCount * 2);
+            recordedTimestamps = Arrays.copyOf(recordedTimestamps, recordedCount * 2);
+        }
+        recordedFrames[recordedCount] = frame;
+        recordedTimestamps[recordedCount] = timestamp;
+        recordedCount++;
+        recordedBytes += frameBytes;
+    }
+
+    // the frames recorded so far are recycled
+    private void stopRecording(int newState) {
+        if (recordedFrames != null) {
+            for (int i = 0; i < recordedCount; i++) {
+                recordedFrames[i].recycle();
+            }
+        }
+        recordedFrames = null;
+        recordedTimestamps = null;
+        recordedCount = 0;
+        recordedBytes = 0;
+        recordState = newState;
+    }
 
+    // shows the next frame from the frame cache instead of decoding it
+    private final Runnable cachedFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (destroyWhenDone || frameCache == null) {
+                uiRunnable.run();
+                return;
+            }
+            loadFrameTask = null;
+            int index = frameCacheIndex;
+            frameCacheIndex = (index + 1) % frameCache.frames.length;
+            nextRenderingBitmap = frameCache.frames[index];
+            nextRenderingShader = roundRadius != 0 ? new BitmapShader(nextRenderingBitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP) : null;
+            invalidateAfter = frameCache.delays[index];
+            if (secondParentView != null) {
+                secondParentView.invalidate();
+            } else if (parentView != null) {
+                parentView.invalidate();
+            }
+        }
+    };
+
+    // called by AnimatedFrameScheduler if the drawable was not drawn for some time; the next draw() requests a frame again
+    void onFrameSkipped() {
+        AndroidUtilities.runOnUIThread(new Runnable() {
+            @Override
+            public void run() {
+                loadFrameTask = null;
+                if (destroyWhenDone) {
+                    uiRunnable.run();
                 }
             }
-            AndroidUtilities.runOnUIThread(uiRunnable);
+        });
+    }
+
+    long getLastDrawTime() {
+        return lastDrawTime;
+    }
+
+    long getNextFrameDueTime() {
+        return lastFrameTime + invalidateAfter;
+    }
+
+    private final Runnable loadFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            decodeNextFrame();
         }
     };
 
@@ -177,10 +393,6 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
         }
     }
 
-    protected void postToDecodeQueue(Runnable runnable) {
-        executor.execute(runnable);
-    }
-
     public void setParentView(View view) {
         parentView = view;
     }
@@ -205,16 +417,25 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
                 nativePtr = 0;
             }
             if (nextRenderingBitmap != null) {
-                nextRenderingBitmap.recycle();
+                if (frameCache == null || !frameCache.contains(nextRenderingBitmap)) {
+                    nextRenderingBitmap.recycle();
+                }
                 nextRenderingBitmap = null;
             }
+            if (backgroundBitmap != null && backgroundBitmap != renderingBitmap) {
+                backgroundBitmap.recycle(); // not shown while the frames come from the frame cache
+                backgroundBitmap = null;
+            }
         } else {
             destroyWhenDone = true;
         }
         if (renderingBitmap != null) {
-            renderingBitmap.recycle();
+            if (frameCache == null || !frameCache.contains(renderingBitmap)) {
+                renderingBitmap.recycle();
+            }
             renderingBitmap = null;
         }
+        frameCache = null;
     }
 
     protected static void runOnUiThread(Runnable task) {
@@ -245,6 +466,7 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
             return;
         }
         isRunning = true;
+        lastDrawTime = System.currentTimeMillis(); // about to be drawn
         if (renderingBitmap == null) {
             scheduleNextGetFrame();
         }
@@ -255,7 +477,25 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
         if (loadFrameTask != null || nativePtr == 0 && decoderCreated || destroyWhenDone) {
             return;
         }
-        postToDecodeQueue(loadFrameTask = loadFrameRunnable);
+        if (useFrameCache && frameCache == null && !frameCacheChecked && decodeWidth > 0 && decoderCreated) {
+            // another drawable for the same file may have recorded the frames already
+            frameCacheChecked = true;
+            BitmapDrawable cached = ImageLoader.getInstance().getAnimationFrames(getFrameCacheKey(getDecodedWidth(), getDecodedHeight()));
+            if (cached instanceof FrameCache) {
+                frameCache = (FrameCache) cached;
+                frameCacheIndex = 0;
+            }
+        }
+        if (frameCache != null) {
+            if (!frameCache.evicted) {
+                loadFrameTask = cachedFrameRunnable;
+                uiHandler.post(cachedFrameRunnable);
+                return;
+            }
+            frameCache = null; // evicted from memory, decode again
+        }
+        loadFrameTask = loadFrameRunnable;
+        AnimatedFrameScheduler.requestFrame(this);
     }
 
     @Override
@@ -289,9 +529,11 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
         if (nativePtr == 0 && decoderCreated || destroyWhenDone) {
             return;
         }
+        lastDrawTime = System.currentTimeMillis();
+        updateDecodeSize();
         if (isRunning) {
-            if (renderingBitmap == null && nextRenderingBitmap == null) {
-                scheduleNextGetFrame();
+            if (loadFrameTask == null && nextRenderingBitmap == null) {
+                scheduleNextGetFrame(); // the first frame, or no frame requested as the scheduler skipped this drawable
             } else if (Math.abs(System.currentTimeMillis() - lastFrameTime) >= invalidateAfter) {
                 if (nextRenderingBitmap != null) {
                     scheduleNextGetFrame();
@@ -317,7 +559,7 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
                 float scale = Math.max(scaleX, scaleY);
 
                 if (renderingShader == null) {
-                    renderingShader = new BitmapShader(backgroundBitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+                    renderingShader = new BitmapShader(renderingBitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
                 }
                 getPaint().setShader(renderingShader);
                 roundRect.set(dstRect);
@@ -344,6 +586,21 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
         }
     }
 
+    // the decoded size grows with the drawn size; shrinking is not worth a new bitmap
+    private void updateDecodeSize() {
+        Rect bounds = getBounds();
+        if (metaData[0] <= 0 || metaData[1] <= 0 || bounds.width() <= 0 || bounds.height() <= 0) {
+            return;
+        }
+        float scale = Math.max((float) bounds.width() / metaData[0], (float) bounds.height() / metaData[1]);
+        int w = Math.min(metaData[0], (int) Math.ceil(metaData[0] * scale));
+        int h = Math.min(metaData[1], (int) Math.ceil(metaData[1] * scale));
+        if (w > decodeWidth || h > decodeHeight) {
+            decodeWidth = Math.max(w, decodeWidth);
+            decodeHeight = Math.max(h, decodeHeight);
+        }
+    }
+
     @Override
     public int getMinimumHeight() {
         return decoderCreated ? metaData[1] : AndroidUtilities.dp(100);
@@ -376,6 +633,7 @@ public class AnimatedFileDrawable extends BitmapDrawable implements Animatable {
         AnimatedFileDrawable drawable = new AnimatedFileDrawable(path, false);
         drawable.metaData[0] = metaData[0];
         drawable.metaData[1] = metaData[1];
+        drawable.useFrameCache = useFrameCache;
         return drawable;
     }
 }
@@ -0,0 +1,150 @@
+/*******************************************************************************
+ *
+ *                              Delta Chat Android
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    AnimatedFrameScheduler.java
+ * Purpose: Decode the frames of all AnimatedFileDrawable objects on a few
+ *          threads, most overdue first and within a budget per display frame
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger.Components;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+class AnimatedFrameScheduler {
+
+    private static final int  THREAD_COUNT      = 2;
+    private static final long FRAME_INTERVAL_NS = 16666667L;
+    private static final long FRAME_BUDGET_NS   = 20000000L; // decoding time per display frame, summed up over all threads
+    private static final long INVISIBLE_AFTER_MS = 500; // drawables not drawn for this time are not decoded
+
+    // counters for the statistics, written under the lock
+    private static int decodedFrames;
+    private static int skippedFrames;   // requested, but not decoded as the drawable is no longer visible
+    private static int lateFrames;      // ready after the time the frame should have been shown
+
+    private static final ArrayList<AnimatedFileDrawable> pending = new ArrayList<>();
+    private static long budgetWindowStartNs;
+    private static long budgetUsedNs;
+    private static boolean threadsStarted;
+
+    static void requestFrame(AnimatedFileDrawable drawable) {
+        synchronized (pending) {
+            if (!threadsStarted) {
+                for (int i = 0; i < THREAD_COUNT; i++) {
+                    Thread thread = new Thread(decodeLoop, "AnimatedFrameScheduler" + i);
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    thread.start();
+                }
+                threadsStarted = true;
+            }
+            if (!pending.contains(drawable)) {
+                pending.add(drawable);
+                pending.notify();
+            }
+        }
+    }
+
+    static void frameReady(boolean late) {
+        synchronized (pending) {
+            if (late) {
+                lateFrames++;
+            }
+        }
+    }
+
+    static String getStats() {
+        synchronized (pending) {
+            return String.format(Locale.US, "Animations: %d frames decoded, %d late, %d skipped as not visible",
+                    decodedFrames, lateFrames, skippedFrames);
+        }
+    }
+
+    static void resetStats() {
+        synchronized (pending) {
+            decodedFrames = 0;
+            lateFrames = 0;
+            skippedFrames = 0;
+        }
+    }
+
+    private static final Runnable decodeLoop = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                AnimatedFileDrawable drawable;
+                try {
+                    drawable = takeNext();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                if (System.currentTimeMillis() - drawable.getLastDrawTime() > INVISIBLE_AFTER_MS) {
+                    synchronized (pending) {
+                        skippedFrames++;
+                    }
+                    drawable.onFrameSkipped();
+                    continue;
+                }
+
+                long startNs = System.nanoTime();
+                drawable.decodeNextFrame();
+                synchronized (pending) {
+                    budgetUsedNs += System.nanoTime() - startNs;
+                    decodedFrames++;
+                }
+            }
+        }
+    };
+
+    // wait for the drawable waiting the longest for its next frame, as long as there is budget left in the current display frame
+    private static AnimatedFileDrawable takeNext() throws InterruptedException {
+        synchronized (pending) {
+            while (true) {
+                if (pending.isEmpty()) {
+                    pending.wait();
+                    continue;
+                }
+
+                long nowNs = System.nanoTime();
+                if (nowNs - budgetWindowStartNs >= FRAME_INTERVAL_NS) {
+                    budgetWindowStartNs = nowNs;
+                    budgetUsedNs = 0;
+                }
+                if (budgetUsedNs >= FRAME_BUDGET_NS) {
+                    long waitNs = budgetWindowStartNs + FRAME_INTERVAL_NS - nowNs;
+                    pending.wait(waitNs / 1000000L, (int) (waitNs % 1000000L));
+                    continue;
+                }
+
+                int best = 0;
+                for (int i = 1; i < pending.size(); i++) {
+                    if (pending.get(i).getNextFrameDueTime() < pending.get(best).getNextFrameDueTime()) {
+                        best = i;
+                    }
+                }
+                return pending.remove(best);
+            }
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*******************************************************************************
+ *
+ *                              Delta Chat Android
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    ListPerfStats.java
+ * Purpose: Timings of the cells shown in RecyclerListView and dropped frames
+ *          while scrolling, to find the cells causing jank
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger.Components;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.view.Choreographer;
+import android.view.WindowManager;
+
+import com.b44t.messenger.ApplicationLoader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+public class ListPerfStats {
+
+    public static final int CREATE  = 0;
+    public static final int BIND    = 1;
+    public static final int MEASURE = 2;
+    public static final int DRAW    = 3;
+    private static final int PHASE_COUNT = 4;
+    private static final String[] PHASE_NAMES = {"create", "bind", "measure", "draw"};
+
+    private static final int MAX_SAMPLES = 512; // per view type and phase, older samples are overwritten
+
+    // all functions are to be called on the UI thread only
+    private static boolean enabled;
+    private static boolean enabledLoaded;
+
+    private static class Samples {
+        long[] ns = new long[MAX_SAMPLES];
+        int    next;
+        int    count;
+        long   maxNs;
+
+        void add(long durationNs) {
+            ns[next] = durationNs;
+            next = (next + 1) % MAX_SAMPLES;
+            if (count < MAX_SAMPLES) {
+                count++;
+            }
+            if (durationNs > maxNs) {
+                maxNs = durationNs;
+            }
+        }
+
+        String format() {
+            if (count == 0) {
+                return "-";
+            }
+            long[] sorted = Arrays.copyOf(ns, count);
+            Arrays.sort(sorted);
+            return String.format(Locale.US, "n=%d p50=%.2f p95=%.2f p99=%.2f max=%.2f ms", count,
+                    toMs(percentile(sorted, 50)), toMs(percentile(sorted, 95)), toMs(percentile(sorted, 99)), toMs(maxNs));
+        }
+
+        private static long percentile(long[] sorted, int p) {
+            int index = (int) Math.ceil(sorted.length * p / 100.0) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+
+        private static double toMs(long ns) {
+            return ns / 1000000.0;
+        }
+    }
+
+    // the statistics of one view type of one adapter, RecyclerListView holds a reference to it to avoid lookups
+    public static class TypeStats {
+        private final String    name;
+        private final Samples[] phases = new Samples[PHASE_COUNT];
+
+        private TypeStats(String name) {
+            this.name = name;
+            for (int i = 0; i < PHASE_COUNT; i++) {
+                phases[i] = new Samples();
+            }
+        }
+
+        public void add(int phase, long durationNs) {
+            phases[phase].add(durationNs);
+        }
+    }
+
+    private static ArrayList<TypeStats> allTypeStats = new ArrayList<>();
+
+    public static boolean isEnabled() {
+        if (!enabledLoaded) {
+            SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("mainconfig", Activity.MODE_PRIVATE);
+            enabled = preferences.getBoolean("list_perf_stats", false);
+            enabledLoaded = true;
+        }
+        return enabled;
+    }
+
+    public static void setEnabled(boolean value) {
+        SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("mainconfig", Activity.MODE_PRIVATE);
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.putBoolean("list_perf_stats", value);
+        editor.apply();
+        enabled = value;
+        enabledLoaded = true;
+        reset();
+    }
+
+    public static TypeStats getTypeStats(String adapterName, int viewType) {
+        String name = adapterName + "#" + viewType;
+        for (int i = 0; i < allTypeStats.size(); i++) {
+            TypeStats typeStats = allTypeStats.get(i);
+            if (typeStats.name.equals(name)) {
+                return typeStats;
+            }
+        }
+        TypeStats typeStats = new TypeStats(name);
+        allTypeStats.add(typeStats);
+        return typeStats;
+    }
+
+    public static void reset() {
+        for (int i = 0; i < allTypeStats.size(); i++) {
+            TypeStats typeStats = allTypeStats.get(i);
+            for (int p = 0; p < PHASE_COUNT; p++) {
+                typeStats.phases[p] = new Samples();
+            }
+        }
+        frameSamples = new Samples();
+        frameCount = 0;
+        droppedFrames = 0;
+        AnimatedFrameScheduler.resetStats();
+    }
+
+    public static String export() {
+        StringBuilder ret = new StringBuilder();
+        ret.append("List performance statistics\n");
+        ret.append(String.format(Locale.US, "Device: %s %s, Android %s\n", Build.MANUFACTURER, Build.MODEL, Build.VERSION.RELEASE));
+        if (Build.VERSION.SDK_INT >= 16) {
+            ret.append(String.format(Locale.US, "Frames while scrolling: %d, dropped: %d, frame interval %.1f ms\n",
+                    frameCount, droppedFrames, frameIntervalNs / 1000000.0));
+            ret.append("Frame time: ").append(frameSamples.format()).append("\n");
+        }
+        ret.append(AnimatedFrameScheduler.getStats()).append("\n");
+        for (int i = 0; i < allTypeStats.size(); i++) {
+            TypeStats typeStats = allTypeStats.get(i);
+            ret.append("\n").append(typeStats.name).append("\n");
+            for (int p = 0; p < PHASE_COUNT; p++) {
+                ret.append("  ").append(PHASE_NAMES[p]).append(": ").append(typeStats.phases[p].format()).append("\n");
+            }
+        }
+        return ret.toString();
+    }
+
+
+    /* dropped frames, counted while at least one list is scrolling
+     **********************************************************************************************/
+
+    private static Samples frameSamples = new Samples();
+    private static int     frameCount;
+    private static int     droppedFrames;
+    private static long    frameIntervalNs;
+    private static long    lastFrameNs;
+    private static int     scrollingLists;
+    private static Object  frameCallback; // Choreographer.FrameCallback, not available before Jelly Bean
+
+    public static void onScrollStateChanged(Context context, boolean scrolling) {
+        if (Build.VERSION.SDK_INT < 16) {
+            return;
+        }
+        scrollingLists = Math.max(0, scrollingLists + (scrolling? 1 : -1));
+        if (scrolling && scrollingLists == 1) {
+            startFrameCallback(context);
+        } else if (scrollingLists == 0) {
+            stopFrameCallback();
+        }
+    }
+
+    @TargetApi(16)
+    private static void startFrameCallback(Context context) {
+        if (frameIntervalNs == 0) {
+            float refreshRate = 60.0f;
+            WindowManager windowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+            if (windowManager != null && windowManager.getDefaultDisplay().getRefreshRate() >= 30.0f) {
+                refreshRate = windowManager.getDefaultDisplay().getRefreshRate();
+            }
+            frameIntervalNs = (long) (1000000000 / refreshRate);
+        }
+        if (frameCallback == null) {
+            frameCallback = new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    if (lastFrameNs != 0) {
+                        long durationNs = frameTimeNanos - lastFrameNs;
+                        frameSamples.add(durationNs);
+                        frameCount++;
+                        // a frame taking 2.5 intervals means that 2 frames were skipped
+                        droppedFrames += Math.max(0, (int) ((durationNs + frameIntervalNs / 2) / frameIntervalNs) - 1);
+                    }
+                    lastFrameNs = frameTimeNanos;
+                    if (scrollingLists > 0) {
+                        Choreographer.getInstance().postFrameCallback(this);
+                    }
+                }
+            };
+        }
+        lastFrameNs = 0;
+        Choreographer.getInstance().removeFrameCallback((Choreographer.FrameCallback) frameCallback);
+        Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) frameCallback);
+    }
+
+    @TargetApi(16)
+    private static void stopFrameCallback() {
+        if (frameCallback != null) {
+            Choreographer.getInstance().removeFrameCallback((Choreographer.FrameCallback) frameCallback);
+        }
+        lastFrameNs = 0;
+    }
+}
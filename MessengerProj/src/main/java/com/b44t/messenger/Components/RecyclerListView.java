@@ -25,6 +25,8 @@ package com.b44t.messenger.Components;
 
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.util.SparseArray;
 import android.view.GestureDetector;
 import android.view.HapticFeedbackConstants;
 import android.view.MotionEvent;
@@ -60,6 +62,10 @@ public class RecyclerListView extends RecyclerView {
     private static int[] attributes;
     private static boolean gotAttributes;
 
+    private boolean perfStatsEnabled;
+    private boolean perfStatsScrolling;
+    private SparseArray<ListPerfStats.TypeStats> perfTypeStats = new SparseArray<>();
+
     public interface OnItemClickListener {
         void onItemClick(View view, int position);
     }
@@ -288,6 +294,9 @@ public class RecyclerListView extends RecyclerView {
                     currentChildView = null;
                     interceptedByChild = false;
                 }
+                if (perfStatsEnabled) {
+                    setPerfStatsScrolling(newState != SCROLL_STATE_IDLE);
+                }
                 if (onScrollListener != null) {
                     onScrollListener.onScrollStateChanged(recyclerView, newState);
                 }
@@ -381,6 +390,7 @@ public class RecyclerListView extends RecyclerView {
         if (adapter != null) {
             adapter.registerAdapterDataObserver(observer);
         }
+        perfTypeStats.clear();
         checkIfEmpty();
     }
 
@@ -401,4 +411,61 @@ public class RecyclerListView extends RecyclerView {
     public boolean hasOverlappingRendering() {
         return false;
     }
+
+    /* performance statistics, see ListPerfStats; the setting is checked when the list is shown
+     **********************************************************************************************/
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        perfStatsEnabled = ListPerfStats.isEnabled();
+        setItemTimingsEnabled(perfStatsEnabled);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        setPerfStatsScrolling(false);
+    }
+
+    private void setPerfStatsScrolling(boolean scrolling) {
+        if (scrolling != perfStatsScrolling) {
+            perfStatsScrolling = scrolling;
+            ListPerfStats.onScrollStateChanged(getContext(), scrolling);
+        }
+    }
+
+    private ListPerfStats.TypeStats getPerfTypeStats(int viewType) {
+        ListPerfStats.TypeStats typeStats = perfTypeStats.get(viewType);
+        if (typeStats == null) {
+            Adapter adapter = getAdapter();
+            String adapterName = adapter != null ? adapter.getClass().getName() : "";
+            adapterName = adapterName.substring(adapterName.lastIndexOf('.') + 1); // keep the outer class of inner adapters
+            typeStats = ListPerfStats.getTypeStats(adapterName, viewType);
+            perfTypeStats.put(viewType, typeStats);
+        }
+        return typeStats;
+    }
+
+    @Override
+    protected void onItemTiming(int timing, int viewType, long durationNs) {
+        if (perfStatsEnabled) {
+            int phase = timing == ITEM_TIMING_CREATE ? ListPerfStats.CREATE : (timing == ITEM_TIMING_BIND ? ListPerfStats.BIND : ListPerfStats.MEASURE);
+            getPerfTypeStats(viewType).add(phase, durationNs);
+        }
+    }
+
+    @Override
+    public boolean drawChild(Canvas canvas, View child, long drawingTime) {
+        if (!perfStatsEnabled) {
+            return super.drawChild(canvas, child, drawingTime);
+        }
+        long startNs = System.nanoTime();
+        boolean ret = super.drawChild(canvas, child, drawingTime);
+        ViewHolder holder = getChildViewHolder(child);
+        if (holder != null) {
+            getPerfTypeStats(holder.getItemViewType()).add(ListPerfStats.DRAW, System.nanoTime() - startNs);
+        }
+        return ret;
+    }
 }
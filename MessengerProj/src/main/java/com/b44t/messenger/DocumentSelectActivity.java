@@ -27,13 +27,18 @@ import android.animation.Animator;
 import android.animation.AnimatorSet;
 import android.animation.ObjectAnimator;
 import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.res.Configuration;
+import android.os.Build;
 import android.os.Environment;
 import android.os.StatFs;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
@@ -57,10 +62,13 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
 import java.util.StringTokenizer;
 
 public class DocumentSelectActivity extends BaseFragment {
@@ -86,13 +94,36 @@ public class DocumentSelectActivity extends BaseFragment {
 
     private final static int done = 3;
 
-    private class ListItem {
+    private static class ListItem {
         int icon;
         String title;
         String subtitle = "";
         String ext = "";
         String thumb;
         File file;
+        boolean isDirectory; // set for the items listed by listFiles(), the file is not asked again
+        String sortKey;
+        long size;
+        long modified;
+    }
+
+    // directory listings are read on a background queue and cached; a cached listing is shown at once
+    // and replaced if the modification time of the directory has changed. as a file rewritten in place
+    // does not change the directory, the files of a cached listing are checked again, see refreshListing().
+    private static final int LISTING_CACHE_SIZE = 16;
+    private static final int LISTING_UPDATE_MS = 250; // partial results of large directories are shown in this interval
+    private static final DispatchQueue listingQueue = new DispatchQueue("listingQueue");
+    private static final LinkedHashMap<String, DirListing> listingCache = new LinkedHashMap<String, DirListing>(LISTING_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, DirListing> eldest) {
+            return size() > LISTING_CACHE_SIZE;
+        }
+    };
+    private volatile int listingGeneration; // read on listingQueue
+
+    private static class DirListing {
+        long dirModified;
+        ArrayList<ListItem> items;
     }
 
     private class HistoryEntry {
@@ -415,60 +446,183 @@ public class DocumentSelectActivity extends BaseFragment {
             return false;
         }
         emptyView.setText(ApplicationLoader.applicationContext.getString(R.string.NoFiles));
-        File[] files;
-        try {
-            files = dir.listFiles();
-        } catch(Exception e) {
-            showErrorBox(e.getLocalizedMessage());
-            return false;
+        currentDir = dir;
+        final int generation = ++listingGeneration;
+
+        DirListing cached;
+        synchronized (listingCache) {
+            cached = listingCache.get(dir.getAbsolutePath());
         }
-        if (files == null) {
-            showErrorBox(ApplicationLoader.applicationContext.getString(R.string.ErrorHint));
-            return false;
+        if (cached != null) {
+            setListedItems(cached.items);
+        } else {
+            setListedItems(new ArrayList<ListItem>());
         }
-        currentDir = dir;
-        items.clear();
-        Arrays.sort(files, new Comparator<File>() {
+
+        final File finalDir = dir;
+        final DirListing finalCached = cached;
+        listingQueue.postRunnable(new Runnable() {
             @Override
-            public int compare(File lhs, File rhs) {
-                if (lhs.isDirectory() != rhs.isDirectory()) {
-                    return lhs.isDirectory() ? -1 : 1;
+            public void run() {
+                if (finalCached != null && finalCached.dirModified == finalDir.lastModified()) {
+                    refreshListing(finalDir, finalCached, generation); // no file added or removed, but sizes may have changed
+                    return;
                 }
-                return lhs.getName().compareToIgnoreCase(rhs.getName());
-                /*long lm = lhs.lastModified();
-                long rm = lhs.lastModified();
-                if (lm == rm) {
-                    return 0;
-                } else if (lm > rm) {
-                    return -1;
-                } else {
-                    return 1;
-                }*/
+                readDir(finalDir, generation);
             }
         });
-        for (int a = 0; a < files.length; a++) {
-            File file = files[a];
-            if (file.getName().indexOf('.') == 0) {
+        return true;
+    }
+
+    // runs on listingQueue
+    private void readDir(final File dir, final int generation) {
+        long dirModified = dir.lastModified();
+        String[] names;
+        try {
+            names = dir.list();
+        } catch (Exception e) {
+            names = null;
+        }
+        if (names == null) {
+            AndroidUtilities.runOnUIThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (generation == listingGeneration) {
+                        showErrorBox(ApplicationLoader.applicationContext.getString(R.string.ErrorHint));
+                    }
+                }
+            });
+            return;
+        }
+
+        ArrayList<ListItem> listed = new ArrayList<>(names.length);
+        long lastUpdate = System.currentTimeMillis();
+        for (String name : names) {
+            if (name.indexOf('.') == 0) {
                 continue;
             }
-            ListItem item = new ListItem();
-            item.title = file.getName();
-            item.file = file;
-            if (file.isDirectory()) {
-                item.icon = R.drawable.ic_directory;
-                item.subtitle = ApplicationLoader.applicationContext.getString(R.string.Folder);
-            } else {
-                String fname = file.getName();
-                String[] sp = fname.split("\\.");
-                item.ext = sp.length > 1 ? sp[sp.length - 1] : "?";
-                item.subtitle = AndroidUtilities.formatFileSize(file.length());
-                fname = fname.toLowerCase();
-                if (fname.endsWith(".jpg") || fname.endsWith(".png") || fname.endsWith(".gif") || fname.endsWith(".jpeg")) {
-                    item.thumb = file.getAbsolutePath();
+            listed.add(createListItem(new File(dir, name)));
+
+            if (System.currentTimeMillis() - lastUpdate > LISTING_UPDATE_MS) {
+                if (generation != listingGeneration) {
+                    return; // the user has moved on to another directory
                 }
+                publishListing(sortedCopy(listed), generation);
+                lastUpdate = System.currentTimeMillis();
             }
-            items.add(item);
         }
+
+        ArrayList<ListItem> sorted = sortedCopy(listed);
+        DirListing listing = new DirListing();
+        listing.dirModified = dirModified;
+        listing.items = sorted;
+        synchronized (listingCache) {
+            listingCache.put(dir.getAbsolutePath(), listing);
+        }
+        publishListing(sorted, generation);
+    }
+
+    // runs on listingQueue; reads the attributes of the listed files again and publishes the listing if any has changed
+    private void refreshListing(File dir, DirListing cached, int generation) {
+        ArrayList<ListItem> refreshed = new ArrayList<>(cached.items.size());
+        boolean changed = false;
+        for (ListItem item : cached.items) {
+            if (generation != listingGeneration) {
+                return; // the user has moved on to another directory
+            }
+            ListItem fresh = createListItem(item.file);
+            if (fresh.isDirectory != item.isDirectory || fresh.size != item.size || fresh.modified != item.modified) {
+                changed = true;
+                refreshed.add(fresh);
+            } else {
+                refreshed.add(item);
+            }
+        }
+        if (!changed) {
+            return;
+        }
+        ArrayList<ListItem> sorted = sortedCopy(refreshed);
+        DirListing listing = new DirListing();
+        listing.dirModified = cached.dirModified;
+        listing.items = sorted;
+        synchronized (listingCache) {
+            listingCache.put(dir.getAbsolutePath(), listing);
+        }
+        publishListing(sorted, generation);
+    }
+
+    // all attributes are read once here; on Lollipop and newer a single stat() is used for each file
+    private static ListItem createListItem(File file) {
+        ListItem item = new ListItem();
+        item.title = file.getName();
+        item.file = file;
+        long size = 0;
+        if (Build.VERSION.SDK_INT >= 21) {
+            StructStat stat = statFile(file);
+            if (stat != null) {
+                item.isDirectory = OsConstants.S_ISDIR(stat.st_mode);
+                size = stat.st_size;
+                item.modified = stat.st_mtime * 1000;
+            }
+        } else {
+            item.isDirectory = file.isDirectory();
+            if (!item.isDirectory) {
+                size = file.length();
+            }
+            item.modified = file.lastModified();
+        }
+        item.size = size;
+        item.sortKey = item.title.toLowerCase(Locale.US);
+        if (item.isDirectory) {
+            item.icon = R.drawable.ic_directory;
+            item.subtitle = ApplicationLoader.applicationContext.getString(R.string.Folder);
+        } else {
+            int dot = item.title.lastIndexOf('.');
+            item.ext = dot > 0 && dot < item.title.length() - 1 ? item.title.substring(dot + 1) : "?";
+            item.subtitle = AndroidUtilities.formatFileSize(size);
+            if (item.sortKey.endsWith(".jpg") || item.sortKey.endsWith(".png") || item.sortKey.endsWith(".gif") || item.sortKey.endsWith(".jpeg")) {
+                item.thumb = file.getAbsolutePath();
+            }
+        }
+        return item;
+    }
+
+    @TargetApi(21)
+    private static StructStat statFile(File file) {
+        try {
+            return Os.stat(file.getAbsolutePath());
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static ArrayList<ListItem> sortedCopy(ArrayList<ListItem> listed) {
+        ArrayList<ListItem> sorted = new ArrayList<>(listed);
+        Collections.sort(sorted, new Comparator<ListItem>() {
+            @Override
+            public int compare(ListItem lhs, ListItem rhs) {
+                if (lhs.isDirectory != rhs.isDirectory) {
+                    return lhs.isDirectory ? -1 : 1;
+                }
+                return lhs.sortKey.compareTo(rhs.sortKey);
+            }
+        });
+        return sorted;
+    }
+
+    private void publishListing(final ArrayList<ListItem> listed, final int generation) {
+        AndroidUtilities.runOnUIThread(new Runnable() {
+            @Override
+            public void run() {
+                if (generation == listingGeneration) {
+                    setListedItems(listed);
+                }
+            }
+        });
+    }
+
+    private void setListedItems(ArrayList<ListItem> listed) {
+        items.clear();
         ListItem item = new ListItem();
         item.title = "..";
         if (history.size() > 0) {
@@ -483,11 +637,11 @@ public class DocumentSelectActivity extends BaseFragment {
         }
         item.icon = R.drawable.ic_directory;
         item.file = null;
-        items.add(0, item);
+        items.add(item);
+        items.addAll(listed);
         AndroidUtilities.clearDrawableAnimation(listView);
         scrolling = true;
         listAdapter.notifyDataSetChanged();
-        return true;
     }
 
     private void showErrorBox(String error) {
@@ -497,6 +651,7 @@ public class DocumentSelectActivity extends BaseFragment {
     @SuppressLint("NewApi")
     private void listRoots() {
         currentDir = null;
+        listingGeneration++;
         items.clear();
 
         HashSet<String> paths = new HashSet<>();
@@ -0,0 +1,352 @@
+/*******************************************************************************
+ *
+ *                              Delta Chat Android
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    GalleryIndex.java
+ * Purpose: Persistent index of the photos and videos in the MediaStore,
+ *          updated incrementally instead of rescanning the whole gallery
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+class GalleryIndex {
+
+    private static final int FILE_VERSION = 1;
+
+    // one table for the photos and one for the videos; the entries are kept in columns of primitive arrays,
+    // sorted by the date taken, newest first.
+    static class Table {
+        final boolean isVideo;
+        int      count;
+        int[]    ids          = new int[0];
+        int[]    bucketIds    = new int[0];
+        long[]   datesTaken   = new long[0];
+        int[]    orientations = new int[0];
+        String[] paths        = new String[0];
+
+        int  maxId;         // all entries with a larger _ID are new
+        long syncedModified; // all entries with a larger DATE_MODIFIED (seconds) may have changed
+
+        Table(boolean isVideo) {
+            this.isVideo = isVideo;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > ids.length) {
+                capacity = Math.max(capacity, ids.length * 3 / 2 + 16);
+                ids          = Arrays.copyOf(ids, capacity);
+                bucketIds    = Arrays.copyOf(bucketIds, capacity);
+                datesTaken   = Arrays.copyOf(datesTaken, capacity);
+                orientations = Arrays.copyOf(orientations, capacity);
+                paths        = Arrays.copyOf(paths, capacity);
+            }
+        }
+
+        private void set(int index, int id, int bucketId, long dateTaken, int orientation, String path) {
+            ids[index]          = id;
+            bucketIds[index]    = bucketId;
+            datesTaken[index]   = dateTaken;
+            orientations[index] = orientation;
+            paths[index]        = path;
+        }
+
+        private void add(int id, int bucketId, long dateTaken, int orientation, String path) {
+            ensureCapacity(count + 1);
+            set(count++, id, bucketId, dateTaken, orientation, path);
+            if (id > maxId) {
+                maxId = id;
+            }
+        }
+
+        // sort by date, newest first; the date and the old position are packed into one long to avoid boxing
+        private void sort() {
+            long[] keys = new long[count];
+            for (int i = 0; i < count; i++) {
+                keys[i] = (Math.max(0, datesTaken[i]) << 21) | (count - 1 - i);
+            }
+            Arrays.sort(keys);
+            int[] ids2 = new int[count], bucketIds2 = new int[count], orientations2 = new int[count];
+            long[] datesTaken2 = new long[count];
+            String[] paths2 = new String[count];
+            for (int i = 0; i < count; i++) {
+                int from = count - 1 - (int) (keys[count - 1 - i] & 0x1FFFFF);
+                ids2[i] = ids[from];
+                bucketIds2[i] = bucketIds[from];
+                datesTaken2[i] = datesTaken[from];
+                orientations2[i] = orientations[from];
+                paths2[i] = paths[from];
+            }
+            ids = ids2;
+            bucketIds = bucketIds2;
+            datesTaken = datesTaken2;
+            orientations = orientations2;
+            paths = paths2;
+        }
+    }
+
+    final Table photos = new Table(false);
+    final Table videos = new Table(true);
+    final SparseArray<String> bucketNames = new SparseArray<>();
+    private boolean loaded;
+
+    /**
+     * Bring the index up to date with the MediaStore; to be called on a background thread.
+     * Only new, modified and removed entries are read.
+     */
+    boolean sync() {
+        load();
+        boolean changed = syncTable(photos, MediaStore.Images.Media.EXTERNAL_CONTENT_URI);
+        changed |= syncTable(videos, MediaStore.Video.Media.EXTERNAL_CONTENT_URI);
+        if (changed) {
+            save();
+        }
+        return changed;
+    }
+
+    boolean isEmpty() {
+        return photos.count == 0 && videos.count == 0;
+    }
+
+    private String[] getProjection(Table table) {
+        if (table.isVideo) {
+            return new String[]{MediaStore.Video.Media._ID, MediaStore.Video.Media.BUCKET_ID, MediaStore.Video.Media.BUCKET_DISPLAY_NAME,
+                    MediaStore.Video.Media.DATA, MediaStore.Video.Media.DATE_TAKEN, MediaStore.Video.Media.DATE_MODIFIED};
+        }
+        return new String[]{MediaStore.Images.Media._ID, MediaStore.Images.Media.BUCKET_ID, MediaStore.Images.Media.BUCKET_DISPLAY_NAME,
+                MediaStore.Images.Media.DATA, MediaStore.Images.Media.DATE_TAKEN, MediaStore.Images.Media.DATE_MODIFIED,
+                MediaStore.Images.Media.ORIENTATION};
+    }
+
+    private boolean syncTable(Table table, Uri uri) {
+        boolean changed = false;
+        long maxModified = table.syncedModified;
+        int oldMaxId = table.maxId;
+        SparseIntArray indexById = null;
+
+        // new and modified entries
+        Cursor cursor = null;
+        try {
+            cursor = ApplicationLoader.applicationContext.getContentResolver().query(uri, getProjection(table),
+                    MediaStore.MediaColumns._ID + ">? OR " + MediaStore.MediaColumns.DATE_MODIFIED + ">?",
+                    new String[]{Integer.toString(table.maxId), Long.toString(table.syncedModified)}, null);
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    int id = cursor.getInt(0);
+                    int bucketId = cursor.getInt(1);
+                    String bucketName = cursor.getString(2);
+                    String path = cursor.getString(3);
+                    long dateTaken = cursor.getLong(4);
+                    maxModified = Math.max(maxModified, cursor.getLong(5));
+                    int orientation = table.isVideo ? 0 : cursor.getInt(6);
+                    if (path == null || path.length() == 0) {
+                        continue;
+                    }
+                    if (bucketName != null) {
+                        bucketNames.put(bucketId, bucketName);
+                    }
+
+                    if (id > oldMaxId) {
+                        table.add(id, bucketId, dateTaken, orientation, path);
+                    } else {
+                        if (indexById == null) {
+                            indexById = new SparseIntArray(table.count);
+                            for (int i = 0; i < table.count; i++) {
+                                indexById.put(table.ids[i], i);
+                            }
+                        }
+                        int index = indexById.get(id, -1);
+                        if (index == -1) {
+                            table.add(id, bucketId, dateTaken, orientation, path);
+                        } else {
+                            table.set(index, id, bucketId, dateTaken, orientation, path);
+                        }
+                    }
+                    changed = true;
+                }
+            }
+        } catch (Throwable e) {
+            Log.e("DeltaChat", "Cannot read gallery changes.", e);
+            return false;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        table.syncedModified = maxModified;
+
+        // removed entries; only the IDs are read and only if the number of entries differs
+        cursor = null;
+        try {
+            cursor = ApplicationLoader.applicationContext.getContentResolver().query(uri, new String[]{MediaStore.MediaColumns._ID},
+                    MediaStore.MediaColumns.DATA + " IS NOT NULL AND " + MediaStore.MediaColumns.DATA + "!=''", null, null);
+            if (cursor != null && cursor.getCount() != table.count) {
+                int[] existingIds = new int[cursor.getCount()];
+                int existingCount = 0;
+                while (cursor.moveToNext() && existingCount < existingIds.length) {
+                    existingIds[existingCount++] = cursor.getInt(0);
+                }
+                Arrays.sort(existingIds, 0, existingCount);
+                int newCount = 0;
+                for (int i = 0; i < table.count; i++) {
+                    if (Arrays.binarySearch(existingIds, 0, existingCount, table.ids[i]) >= 0) {
+                        if (newCount != i) {
+                            table.set(newCount, table.ids[i], table.bucketIds[i], table.datesTaken[i], table.orientations[i], table.paths[i]);
+                        }
+                        newCount++;
+                    }
+                }
+                for (int i = newCount; i < table.count; i++) {
+                    table.paths[i] = null;
+                }
+                if (newCount != table.count) {
+                    table.count = newCount;
+                    changed = true;
+                }
+            }
+        } catch (Throwable e) {
+            Log.e("DeltaChat", "Cannot check for removed gallery entries.", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        if (changed) {
+            table.sort();
+        }
+        return changed;
+    }
+
+
+    /* load/save
+     **********************************************************************************************/
+
+    private static File getIndexFile() {
+        return new File(ApplicationLoader.applicationContext.getFilesDir(), "gallery_index.dat");
+    }
+
+    // returns true if there were entries on disk
+    boolean load() {
+        if (loaded) {
+            return false;
+        }
+        loaded = true;
+        File file = getIndexFile();
+        if (!file.exists()) {
+            return false;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_VERSION) {
+                return false;
+            }
+            int bucketCount = in.readInt();
+            for (int i = 0; i < bucketCount; i++) {
+                bucketNames.put(in.readInt(), in.readUTF());
+            }
+            readTable(in, photos);
+            readTable(in, videos);
+            return !isEmpty();
+        } catch (Exception e) {
+            Log.e("DeltaChat", "Cannot read gallery index, rebuilding it.", e);
+            photos.count = photos.maxId = 0;
+            photos.syncedModified = 0;
+            videos.count = videos.maxId = 0;
+            videos.syncedModified = 0;
+            return false;
+        } finally {
+            if (in != null) {
+                try { in.close(); } catch (Exception e) { }
+            }
+        }
+    }
+
+    private static void readTable(DataInputStream in, Table table) throws java.io.IOException {
+        table.maxId = in.readInt();
+        table.syncedModified = in.readLong();
+        int count = in.readInt();
+        table.count = 0;
+        table.ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            table.set(i, in.readInt(), in.readInt(), in.readLong(), in.readInt(), in.readUTF());
+        }
+        table.count = count;
+    }
+
+    private void save() {
+        File file = getIndexFile();
+        File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(FILE_VERSION);
+            out.writeInt(bucketNames.size());
+            for (int i = 0; i < bucketNames.size(); i++) {
+                out.writeInt(bucketNames.keyAt(i));
+                out.writeUTF(bucketNames.valueAt(i));
+            }
+            writeTable(out, photos);
+            writeTable(out, videos);
+            out.close();
+            out = null;
+            if (!tempFile.renameTo(file)) {
+                Log.e("DeltaChat", "Cannot write gallery index.");
+            }
+        } catch (Exception e) {
+            Log.e("DeltaChat", "Cannot write gallery index.", e);
+        } finally {
+            if (out != null) {
+                try { out.close(); } catch (Exception e) { }
+            }
+        }
+    }
+
+    private static void writeTable(DataOutputStream out, Table table) throws java.io.IOException {
+        out.writeInt(table.maxId);
+        out.writeLong(table.syncedModified);
+        out.writeInt(table.count);
+        for (int i = 0; i < table.count; i++) {
+            out.writeInt(table.ids[i]);
+            out.writeInt(table.bucketIds[i]);
+            out.writeLong(table.datesTaken[i]);
+            out.writeInt(table.orientations[i]);
+            out.writeUTF(table.paths[i]);
+        }
+    }
+}
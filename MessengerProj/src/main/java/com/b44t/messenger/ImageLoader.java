@@ -38,6 +38,7 @@ import android.net.Uri;
 import android.os.Build;
 import android.provider.MediaStore;
 
+import com.b44t.messenger.Cells.ChatMessageCell;
 import com.b44t.messenger.Components.AnimatedFileDrawable;
 
 import java.io.ByteArrayOutputStream;
@@ -62,9 +63,11 @@ public class ImageLoader {
     private DispatchQueue cacheThumbOutQueue = new DispatchQueue("cacheThumbOutQueue");
     private DispatchQueue thumbGeneratingQueue = new DispatchQueue("thumbGeneratingQueue");
     private DispatchQueue imageLoadQueue = new DispatchQueue("imageLoadQueue");
+    private DispatchQueue cachePrefetchQueue = new DispatchQueue("cachePrefetchQueue");
     private HashMap<String, ThumbGenerateTask> thumbGenerateTasks = new HashMap<>();
-    private static byte[] bytes;
-    private static byte[] bytesThumb;
+    // decode buffers for purgeable bitmaps; CacheOutTask runs on several queues, so each thread has its own buffers
+    private static final ThreadLocal<byte[]> bytes = new ThreadLocal<>();
+    private static final ThreadLocal<byte[]> bytesThumb = new ThreadLocal<>();
     //private static byte[] header = new byte[12];
     //private static byte[] headerThumb = new byte[12];
 
@@ -73,6 +76,15 @@ public class ImageLoader {
     private volatile long lastCacheOutTime = 0;
     private int lastImageNum = 0;
 
+    // prefetching, prefetchImages, prefetchBytes and prefetchDirection are used on the imageLoadQueue only
+    public final static int PREFETCH_CHAT_CELL    = 0;
+    public final static int PREFETCH_PHOTO_VIEWER = 1;
+    private final static int PREFETCH_MAX_IMAGES = 6;
+    private ArrayList<CacheImage> prefetchImages = new ArrayList<>();
+    private int prefetchBytes = 0;
+    private int prefetchDirection = 0;
+    private volatile int prefetchGeneration = 0;
+
     private class ThumbGenerateInfo {
         private int count;
         private TLRPC.FileLocation fileLocation;
@@ -184,14 +196,26 @@ public class ImageLoader {
 
         private CacheImage cacheImage;
         private boolean isCancelled;
+        private boolean isStarted; // a promoted prefetch task may be posted to two queues, only the first run does the work
 
         public CacheOutTask(CacheImage image) {
             cacheImage = image;
         }
 
+        // true if the task is running or done on some queue
+        public boolean isStarted() {
+            synchronized (sync) {
+                return isStarted;
+            }
+        }
+
         @Override
         public void run() {
             synchronized (sync) {
+                if (isStarted) {
+                    return;
+                }
+                isStarted = true;
                 runningThread = Thread.currentThread();
                 Thread.interrupted();
                 if (isCancelled) {
@@ -206,6 +230,7 @@ public class ImageLoader {
                     }
                 }
                 AnimatedFileDrawable fileDrawable = new AnimatedFileDrawable(cacheImage.finalFilePath, cacheImage.filter != null && cacheImage.filter.equals("d"));
+                fileDrawable.setUseFrameCache(true);
                 Thread.interrupted();
                 onPostExecute(fileDrawable);
             } else {
@@ -288,9 +313,10 @@ public class ImageLoader {
                             if (opts.inPurgeable) {
                                 RandomAccessFile f = new RandomAccessFile(cacheFileFinal, "r");
                                 int len = (int) f.length();
-                                byte[] data = bytesThumb != null && bytesThumb.length >= len ? bytesThumb : null;
-                                if (data == null) {
-                                    bytesThumb = data = new byte[len];
+                                byte[] data = bytesThumb.get();
+                                if (data == null || data.length < len) {
+                                    data = new byte[len];
+                                    bytesThumb.set(data);
                                 }
                                 f.readFully(data, 0, len);
                                 image = BitmapFactory.decodeByteArray(data, 0, len, opts);
@@ -442,9 +468,10 @@ public class ImageLoader {
                                 if (opts.inPurgeable) {
                                     RandomAccessFile f = new RandomAccessFile(cacheFileFinal, "r");
                                     int len = (int) f.length();
-                                    byte[] data = bytes != null && bytes.length >= len ? bytes : null;
-                                    if (data == null) {
-                                        bytes = data = new byte[len];
+                                    byte[] data = bytes.get();
+                                    if (data == null || data.length < len) {
+                                        data = new byte[len];
+                                        bytes.set(data);
                                     }
                                     f.readFully(data, 0, len);
                                     image = BitmapFactory.decodeByteArray(data, 0, len, opts);
@@ -598,6 +625,9 @@ public class ImageLoader {
         protected String httpUrl;
         protected CacheOutTask cacheTask;
 
+        protected boolean prefetch; // set as long as the image is loaded by prefetchMsgImages() only
+        protected int prefetchBytes;
+
         protected ArrayList<ImageReceiver> imageReceiverArray = new ArrayList<>();
 
         public void addImageReceiver(ImageReceiver imageReceiver) {
@@ -695,9 +725,12 @@ public class ImageLoader {
             if (url != null) {
                 imageLoadingByUrl.remove(url);
             }
-            if (key != null) {
+            if (key != null && imageLoadingByKeys.get(key) == this) {
                 imageLoadingByKeys.remove(key);
             }
+            if (prefetch) {
+                removePrefetch(this);
+            }
         }
     }
 
@@ -720,6 +753,7 @@ public class ImageLoader {
 
         cacheOutQueue.setPriority(Thread.MIN_PRIORITY);
         cacheThumbOutQueue.setPriority(Thread.MIN_PRIORITY);
+        cachePrefetchQueue.setPriority(Thread.MIN_PRIORITY);
         thumbGeneratingQueue.setPriority(Thread.MIN_PRIORITY);
         imageLoadQueue.setPriority(Thread.MIN_PRIORITY);
 
@@ -728,6 +762,9 @@ public class ImageLoader {
         memCache = new LruCache(cacheSize) {
             @Override
             protected int sizeOf(String key, BitmapDrawable value) {
+                if (value instanceof AnimatedFileDrawable.FrameCache) {
+                    return ((AnimatedFileDrawable.FrameCache) value).getByteCount();
+                }
                 return value.getBitmap().getByteCount();
             }
 
@@ -736,6 +773,10 @@ public class ImageLoader {
                 if (ignoreRemoval != null && key != null && ignoreRemoval.equals(key)) {
                     return;
                 }
+                if (oldValue instanceof AnimatedFileDrawable.FrameCache) {
+                    ((AnimatedFileDrawable.FrameCache) oldValue).onEvicted();
+                    return;
+                }
                 final Integer count = bitmapUseCounts.get(key);
                 if (count == null || count == 0) {
                     Bitmap b = oldValue.getBitmap();
@@ -822,6 +863,15 @@ public class ImageLoader {
         return memCache.get(key) != null;
     }
 
+    // the decoded frames of short animations share the memory budget with the images
+    public BitmapDrawable getAnimationFrames(String key) {
+        return memCache.get(key);
+    }
+
+    public void putAnimationFrames(String key, BitmapDrawable frames) {
+        memCache.put(key, frames);
+    }
+
     public void clearMemory() {
         memCache.evictAll();
     }
@@ -917,6 +967,9 @@ public class ImageLoader {
 
                     if (!added && alreadyLoadingCache != null) {
                         alreadyLoadingCache.addImageReceiver(imageReceiver);
+                        if (alreadyLoadingCache.prefetch) {
+                            promotePrefetch(alreadyLoadingCache);
+                        }
                         added = true;
                     }
                     if (!added && alreadyLoadingUrl != null) {
@@ -1093,7 +1146,7 @@ public class ImageLoader {
         } else if (imageLocation != null) {
             if (imageLocation instanceof TLRPC.FileLocation) {
                 TLRPC.FileLocation location = (TLRPC.FileLocation) imageLocation;
-                key = location.volume_id + "_" + location.local_id;
+                key = getLocationKey(location);
                 url = key + "." + ext;
                 if (imageReceiver.getExt() != null || location.key != null || location.volume_id == Integer.MIN_VALUE && location.local_id < 0) {
                     saveImageToCache = true;
@@ -1138,8 +1191,8 @@ public class ImageLoader {
 
         String filter = imageReceiver.getFilter();
         String thumbFilter = imageReceiver.getThumbFilter();
-        if (key != null && filter != null) {
-            key += "@" + filter;
+        if (key != null) {
+            key = getFilteredKey(key, filter);
         }
         if (thumbKey != null && thumbFilter != null) {
             thumbKey += "@" + thumbFilter;
@@ -1154,6 +1207,136 @@ public class ImageLoader {
         }
     }
 
+    /**
+     * Loads the images of the given messages to the memory cache before they are bound to an ImageReceiver.
+     * msgIds should be ordered by the expected display order; non-image messages are skipped.
+     * Prefetching is done at low priority and limited to a few images and a part of the memory cache;
+     * when the direction changes, all prefetches not yet requested by an ImageReceiver are cancelled.
+     */
+    public void prefetchMsgImages(final int[] msgIds, final int direction, final int target, final boolean drawNewchatButton) {
+        if (msgIds == null || msgIds.length == 0) {
+            return;
+        }
+        final int generation = ++prefetchGeneration;
+        imageLoadQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                if (direction != prefetchDirection) {
+                    cancelPrefetch();
+                    prefetchDirection = direction;
+                }
+            }
+        });
+        cachePrefetchQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != prefetchGeneration) {
+                    return; // superseded by a newer request
+                }
+                final ArrayList<String> keys = new ArrayList<>();
+                final ArrayList<String> filters = new ArrayList<>();
+                final ArrayList<File> files = new ArrayList<>();
+                final ArrayList<Integer> bytes = new ArrayList<>();
+                for (int a = 0; a < msgIds.length && keys.size() < PREFETCH_MAX_IMAGES; a++) {
+                    if (msgIds[a] <= MrMsg.MR_MSG_ID_DAYMARKER) {
+                        continue;
+                    }
+                    MrMsg mrMsg = MrMailbox.getMsg(msgIds[a]);
+                    if (mrMsg.getType() != MrMsg.MR_MSG_IMAGE) {
+                        continue;
+                    }
+                    File file = new File(mrMsg.getFile());
+                    if (!file.exists()) {
+                        continue;
+                    }
+                    int w = mrMsg.getWidth(800);
+                    int h = mrMsg.getHeight(800);
+                    String filter = null;
+                    int estimatedBytes = w * h * 4;
+                    if (target == PREFETCH_CHAT_CELL) {
+                        filter = ChatMessageCell.getPrefetchPhotoFilter(w, h, mrMsg.getTimestamp(), mrMsg.showPadlock() != 0,
+                                mrMsg.getFromId() == MrContact.MR_CONTACT_ID_SELF, drawNewchatButton);
+                        if (filter == null) {
+                            continue;
+                        }
+                        String args[] = filter.split("_");
+                        estimatedBytes = (int) (Integer.parseInt(args[0]) * AndroidUtilities.density * Integer.parseInt(args[1]) * AndroidUtilities.density * 2);
+                    }
+                    keys.add(getFilteredKey(getLocationKey(MsgViewModel.createFileLocation(mrMsg.getFile(), msgIds[a])), filter));
+                    filters.add(filter);
+                    files.add(file);
+                    bytes.add(estimatedBytes);
+                }
+                if (keys.isEmpty()) {
+                    return;
+                }
+                imageLoadQueue.postRunnable(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int a = 0; a < keys.size(); a++) {
+                            addPrefetch(keys.get(a), filters.get(a), files.get(a), bytes.get(a));
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void addPrefetch(String key, String filter, File file, int bytes) {
+        if (imageLoadingByKeys.containsKey(key) || memCache.get(key) != null) {
+            return;
+        }
+        if (prefetchImages.size() >= PREFETCH_MAX_IMAGES || prefetchBytes + bytes > memCache.maxSize() / 3) {
+            return;
+        }
+        CacheImage img = new CacheImage();
+        img.key = key;
+        img.filter = filter;
+        img.finalFilePath = file;
+        img.prefetch = true;
+        img.prefetchBytes = bytes;
+        img.cacheTask = new CacheOutTask(img);
+        imageLoadingByKeys.put(key, img);
+        prefetchImages.add(img);
+        prefetchBytes += bytes;
+        cachePrefetchQueue.postRunnable(img.cacheTask);
+    }
+
+    private void removePrefetch(CacheImage img) {
+        img.prefetch = false;
+        if (prefetchImages.remove(img)) {
+            prefetchBytes -= img.prefetchBytes;
+        }
+    }
+
+    private void promotePrefetch(CacheImage img) {
+        // an ImageReceiver needs the image now, continue loading at normal priority
+        removePrefetch(img);
+        if (img.cacheTask != null) {
+            cachePrefetchQueue.cancelRunnable(img.cacheTask);
+            if (!img.cacheTask.isStarted()) { // cancelRunnable() does not stop a task already running on the prefetch queue
+                cacheOutQueue.postRunnable(img.cacheTask);
+            }
+        }
+    }
+
+    private void cancelPrefetch() {
+        for (int a = 0; a < prefetchImages.size(); a++) {
+            CacheImage img = prefetchImages.get(a);
+            img.prefetch = false;
+            if (img.cacheTask != null) {
+                cachePrefetchQueue.cancelRunnable(img.cacheTask);
+                img.cacheTask.cancel();
+                img.cacheTask = null;
+            }
+            if (imageLoadingByKeys.get(img.key) == img) {
+                imageLoadingByKeys.remove(img.key);
+            }
+        }
+        prefetchImages.clear();
+        prefetchBytes = 0;
+    }
+
     public static Bitmap loadBitmap(String path, Uri uri, float maxWidth, float maxHeight, boolean useMaxScale) {
         BitmapFactory.Options bmOptions = new BitmapFactory.Options();
         bmOptions.inJustDecodeBounds = true;
@@ -1392,6 +1575,15 @@ public class ImageLoader {
         }
     }
 
+    // the keys of the memory cache, used by ImageReceiver.setImage(), createLoadOperationForImageReceiver() and the prefetch
+    public static String getLocationKey(TLRPC.FileLocation location) {
+        return location.volume_id + "_" + location.local_id;
+    }
+
+    public static String getFilteredKey(String key, String filter) {
+        return filter != null ? key + "@" + filter : key;
+    }
+
     public static String getHttpUrlExtension(String url, String defaultExt) {
         String ext = null;
         int idx = url.lastIndexOf('.');
@@ -202,8 +202,7 @@ public class ImageReceiver implements NotificationCenter.NotificationCenterDeleg
         String key = null;
         if (fileLocation != null) {
             if (fileLocation instanceof TLRPC.FileLocation) {
-                TLRPC.FileLocation location = (TLRPC.FileLocation) fileLocation;
-                key = location.volume_id + "_" + location.local_id;
+                key = ImageLoader.getLocationKey((TLRPC.FileLocation) fileLocation);
             } else {
                 TLRPC.Document location = (TLRPC.Document) fileLocation;
                 if (location.dc_id != 0) {
@@ -216,9 +215,7 @@ public class ImageReceiver implements NotificationCenter.NotificationCenterDeleg
             key = Utilities.MD5(httpUrl);
         }
         if (key != null) {
-            if (filter != null) {
-                key += "@" + filter;
-            }
+            key = ImageLoader.getFilteredKey(key, filter);
         }
 
         if (currentKey != null && key != null && currentKey.equals(key)) {
@@ -33,6 +33,7 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.graphics.Bitmap;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
@@ -48,6 +49,7 @@ import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.media.MediaPlayer;
 import android.media.MediaRecorder;
+import android.media.ThumbnailUtils;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
@@ -57,6 +59,8 @@ import android.provider.MediaStore;
 import android.provider.OpenableColumns;
 import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
+import android.util.Log;
+import android.util.SparseArray;
 
 import com.b44t.messenger.audioinfo.AudioInfo;
 import com.b44t.messenger.video.InputSurface;
@@ -70,16 +74,16 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
-public class MediaController implements AudioManager.OnAudioFocusChangeListener, NotificationCenter.NotificationCenterDelegate, SensorEventListener {
+public class MediaController implements AudioManager.OnAudioFocusChangeListener, NotificationCenter.NotificationCenterDelegate, SensorEventListener, MsgViewModel.ThumbProvider {
     // CAVE: do not refactor this without adapting the JNI part!
     private native int startRecord(String path);
     private native int writeFrame(ByteBuffer frame, int len);
@@ -95,36 +99,6 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
 
     public static int[] readArgs = new int[3];
 
-    private class AudioBuffer {
-        public AudioBuffer(int capacity) {
-            buffer = ByteBuffer.allocateDirect(capacity);
-            bufferBytes = new byte[capacity];
-        }
-
-        ByteBuffer buffer;
-        byte[] bufferBytes;
-        int size;
-        int finished;
-        long pcmOffset;
-    }
-
-    private static final String[] projectionPhotos = {
-            MediaStore.Images.Media._ID,
-            MediaStore.Images.Media.BUCKET_ID,
-            MediaStore.Images.Media.BUCKET_DISPLAY_NAME,
-            MediaStore.Images.Media.DATA,
-            MediaStore.Images.Media.DATE_TAKEN,
-            MediaStore.Images.Media.ORIENTATION
-    };
-
-    private static final String[] projectionVideo = {
-            MediaStore.Video.Media._ID,
-            MediaStore.Video.Media.BUCKET_ID,
-            MediaStore.Video.Media.BUCKET_DISPLAY_NAME,
-            MediaStore.Video.Media.DATA,
-            MediaStore.Video.Media.DATE_TAKEN
-    };
-
     public static class AudioEntry {
         public long id;
         public String author;
@@ -241,9 +215,10 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
     private static final int AUDIO_NO_FOCUS_CAN_DUCK = 1;
     private static final int AUDIO_FOCUSED  = 2;
 
-    private ArrayList<MessageObject> videoConvertQueue = new ArrayList<>();
+    private VideoConvertQueue.Job currentVideoConvertJob; // set and cleared on the UI thread
     private boolean cancelCurrentVideoConversion = false;
     private boolean videoConvertFirstWrite = true;
+    private volatile VideoConvertQueue.Job convertingJob; // the job of the conversion thread
 
     public static final int AUTODOWNLOAD_MASK_PHOTO = 1;
     public static final int AUTODOWNLOAD_MASK_AUDIO = 2;
@@ -268,9 +243,9 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
     private int lastProgress = 0;
     private MessageObject playingMessageObject;
     private int playerBufferSize = 0;
-    private boolean decodingFinished = false;
+    private volatile boolean decodingFinished = false; // set on fileDecodingQueue, read on playerQueue
     private long currentTotalPcmDuration;
-    private long lastPlayPcm;
+    private volatile long lastPlayPcm;
     private int ignoreFirstProgress = 0;
     private Timer progressTimer = null;
     private final Object progressTimerSync = new Object();
@@ -286,16 +261,22 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
     private long recordDialogId;
     private DispatchQueue fileDecodingQueue;
     private DispatchQueue playerQueue;
-    private ArrayList<AudioBuffer> usedPlayerBuffers = new ArrayList<>();
-    private ArrayList<AudioBuffer> freePlayerBuffers = new ArrayList<>();
-    private final Object playerSync = new Object();
+    private AudioRingBuffer playerRing; // filled on fileDecodingQueue, drained on playerQueue
+    private byte[] playerBytes; // only needed before Lollipop, AudioTrack.write(ByteBuffer) is used otherwise
+    private final AtomicBoolean decoderScheduled = new AtomicBoolean();
+    private final AtomicBoolean playerScheduled = new AtomicBoolean();
     private final Object playerObjectSync = new Object();
-    private short[] recordSamples = new short[1024];
-    private long samplesCount;
+    private WaveformAccumulator recordWaveform = new WaveformAccumulator(1024);
 
     private final Object sync = new Object();
 
-    private ArrayList<ByteBuffer> recordBuffers = new ArrayList<>();
+    private AudioRingBuffer recordRing; // filled on recordQueue, drained on fileEncodingQueue
+    private final AtomicBoolean encoderScheduled = new AtomicBoolean();
+    private static final int RECORD_PROGRESS_INTERVAL_MS = 50;
+    private final AtomicBoolean recordProgressScheduled = new AtomicBoolean();
+    private long lastRecordProgressTime;
+    private double recordAmplitudePeak;
+    private volatile double recordAmplitude;
     private ByteBuffer fileBuffer;
     private int recordBufferSize;
     private int sendAfterDone;
@@ -307,99 +288,101 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
         @Override
         public void run() {
             if (audioRecorder != null) {
-                ByteBuffer buffer;
-                if (!recordBuffers.isEmpty()) {
-                    buffer = recordBuffers.get(0);
-                    recordBuffers.remove(0);
-                } else {
-                    buffer = ByteBuffer.allocateDirect(recordBufferSize);
-                    buffer.order(ByteOrder.nativeOrder());
+                AudioRingBuffer.Slot slot = recordRing.acquireWrite();
+                if (slot == null) {
+                    // the encoder is behind; AudioRecord buffers some seconds, so we can wait until it releases a slot
+                    recordRing.countOverrun();
+                    scheduleEncoder();
+                    try {
+                        slot = recordRing.awaitWrite();
+                    } catch (InterruptedException e) {
+                        recordQueue.postRunnable(recordRunnable);
+                        return;
+                    }
                 }
-                buffer.rewind();
+                ByteBuffer buffer = slot.buffer;
+                buffer.clear();
                 int len = audioRecorder.read(buffer, buffer.capacity());
                 if (len > 0) {
-                    buffer.limit(len);
                     double sum = 0;
-                    try {
-                        long newSamplesCount = samplesCount + len / 2;
-                        int currentPart = (int) (((double) samplesCount / (double) newSamplesCount) * recordSamples.length);
-                        int newPart = recordSamples.length - currentPart;
-                        float sampleStep;
-                        if (currentPart != 0) {
-                            sampleStep = (float) recordSamples.length / (float) currentPart;
-                            float currentNum = 0;
-                            for (int a = 0; a < currentPart; a++) {
-                                recordSamples[a] = recordSamples[(int) currentNum];
-                                currentNum += sampleStep;
-                            }
+                    int samples = len / 2;
+                    for (int i = 0; i < samples; i++) {
+                        short peak = buffer.getShort(i * 2);
+                        if (peak > 2500) {
+                            sum += peak * peak;
                         }
-                        int currentNum = currentPart;
-                        float nextNum = 0;
-                        sampleStep = (float) len / 2 / (float) newPart;
-                        for (int i = 0; i < len / 2; i++) {
-                            short peak = buffer.getShort();
-                            if (peak > 2500) {
-                                sum += peak * peak;
-                            }
-                            if (i == (int) nextNum && currentNum < recordSamples.length) {
-                                recordSamples[currentNum] = peak;
-                                nextNum += sampleStep;
-                                currentNum++;
-                            }
-                        }
-                        samplesCount = newSamplesCount;
-                    } catch (Exception e) {
+                        recordWaveform.add(peak);
+                    }
+                    slot.size = len;
+                    slot.finished = len != buffer.capacity() ? 1 : 0;
+                    recordRing.commitWrite();
+                    scheduleEncoder();
+                    recordQueue.postRunnable(recordRunnable);
 
+                    double amplitude = Math.sqrt(sum / len / 2);
+                    if (amplitude > recordAmplitudePeak) {
+                        recordAmplitudePeak = amplitude;
                     }
-                    buffer.position(0);
-                    final double amplitude = Math.sqrt(sum / len / 2);
-                    final ByteBuffer finalBuffer = buffer;
-                    final boolean flush = len != buffer.capacity();
-                    if (len != 0) {
-                        fileEncodingQueue.postRunnable(new Runnable() {
-                            @Override
-                            public void run() {
-                                while (finalBuffer.hasRemaining()) {
-                                    int oldLimit = -1;
-                                    if (finalBuffer.remaining() > fileBuffer.remaining()) {
-                                        oldLimit = finalBuffer.limit();
-                                        finalBuffer.limit(fileBuffer.remaining() + finalBuffer.position());
-                                    }
-                                    fileBuffer.put(finalBuffer);
-                                    if (fileBuffer.position() == fileBuffer.limit() || flush) {
-                                        if (writeFrame(fileBuffer, !flush ? fileBuffer.limit() : finalBuffer.position()) != 0) {
-                                            fileBuffer.rewind();
-                                            recordTimeCount += fileBuffer.limit() / 2 / 16;
-                                        }
-                                    }
-                                    if (oldLimit != -1) {
-                                        finalBuffer.limit(oldLimit);
-                                    }
-                                }
-                                recordQueue.postRunnable(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        recordBuffers.add(finalBuffer);
-                                    }
-                                });
-                            }
-                        });
+                    long now = System.currentTimeMillis();
+                    if (now - lastRecordProgressTime >= RECORD_PROGRESS_INTERVAL_MS && recordProgressScheduled.compareAndSet(false, true)) {
+                        lastRecordProgressTime = now;
+                        recordAmplitude = recordAmplitudePeak;
+                        recordAmplitudePeak = 0;
+                        AndroidUtilities.runOnUIThread(recordProgressRunnable);
                     }
-                    recordQueue.postRunnable(recordRunnable);
-                    AndroidUtilities.runOnUIThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            NotificationCenter.getInstance().postNotificationName(NotificationCenter.recordProgressChanged, System.currentTimeMillis() - recordStartTime, amplitude);
-                        }
-                    });
                 } else {
-                    recordBuffers.add(buffer);
                     stopRecordingInternal(sendAfterDone);
                 }
             }
         }
     };
 
+    private final Runnable recordProgressRunnable = new Runnable() {
+        @Override
+        public void run() {
+            recordProgressScheduled.set(false);
+            NotificationCenter.getInstance().postNotificationName(NotificationCenter.recordProgressChanged, System.currentTimeMillis() - recordStartTime, recordAmplitude);
+        }
+    };
+
+    private final Runnable encoderRunnable = new Runnable() {
+        @Override
+        public void run() {
+            encoderScheduled.set(false);
+            AudioRingBuffer.Slot slot;
+            while ((slot = recordRing.acquireRead()) != null) {
+                ByteBuffer buffer = slot.buffer;
+                buffer.position(0);
+                buffer.limit(slot.size);
+                boolean flush = slot.finished == 1;
+                while (buffer.hasRemaining()) {
+                    int oldLimit = -1;
+                    if (buffer.remaining() > fileBuffer.remaining()) {
+                        oldLimit = buffer.limit();
+                        buffer.limit(fileBuffer.remaining() + buffer.position());
+                    }
+                    fileBuffer.put(buffer);
+                    if (fileBuffer.position() == fileBuffer.limit() || flush) {
+                        if (writeFrame(fileBuffer, !flush ? fileBuffer.limit() : buffer.position()) != 0) {
+                            fileBuffer.rewind();
+                            recordTimeCount += fileBuffer.limit() / 2 / 16;
+                        }
+                    }
+                    if (oldLimit != -1) {
+                        buffer.limit(oldLimit);
+                    }
+                }
+                recordRing.commitRead();
+            }
+        }
+    };
+
+    private void scheduleEncoder() {
+        if (encoderScheduled.compareAndSet(false, true)) {
+            fileEncodingQueue.postRunnable(encoderRunnable);
+        }
+    }
+
     private class GalleryObserverInternal extends ContentObserver {
         public GalleryObserverInternal() {
             super(null);
@@ -469,13 +452,10 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
             if (playerBufferSize <= 0) {
                 playerBufferSize = 3840;
             }
-            for (int a = 0; a < 5; a++) {
-                ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
-                buffer.order(ByteOrder.nativeOrder());
-                recordBuffers.add(buffer);
-            }
-            for (int a = 0; a < 3; a++) {
-                freePlayerBuffers.add(new AudioBuffer(playerBufferSize));
+            recordRing = new AudioRingBuffer(16, Math.max(4096, recordBufferSize));
+            playerRing = new AudioRingBuffer(8, playerBufferSize);
+            if (Build.VERSION.SDK_INT < 21) {
+                playerBytes = new byte[playerBufferSize];
             }
         } catch (Exception e) {
 
@@ -696,7 +676,7 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
         cleanupPlayer(false, true);
         audioInfo = null;
         playMusicAgain = false;
-        videoConvertQueue.clear();
+        VideoConvertQueue.getInstance().clear();
         generatingWaveform.clear();
         typingTimes.clear();
         cancelVideoConvert(null);
@@ -715,119 +695,123 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
         }
     }
 
+    private final Runnable decoderRunnable = new Runnable() {
+        @Override
+        public void run() {
+            decoderScheduled.set(false);
+            decodeOpusBuffers();
+        }
+    };
+
+    private final Runnable playerRunnable = new Runnable() {
+        @Override
+        public void run() {
+            playerScheduled.set(false);
+            playOpusBuffers();
+        }
+    };
+
     private void checkDecoderQueue() {
-        fileDecodingQueue.postRunnable(new Runnable() {
-            @Override
-            public void run() {
-                if (decodingFinished) {
-                    checkPlayerQueue();
-                    return;
-                }
-                boolean was = false;
-                while (true) {
-                    AudioBuffer buffer = null;
-                    synchronized (playerSync) {
-                        if (!freePlayerBuffers.isEmpty()) {
-                            buffer = freePlayerBuffers.get(0);
-                            freePlayerBuffers.remove(0);
-                        }
-                        if (!usedPlayerBuffers.isEmpty()) {
-                            was = true;
-                        }
-                    }
-                    if (buffer != null) {
-                        readOpusFile(buffer.buffer, playerBufferSize, readArgs);
-                        buffer.size = readArgs[0];
-                        buffer.pcmOffset = readArgs[1];
-                        buffer.finished = readArgs[2];
-                        if (buffer.finished == 1) {
-                            decodingFinished = true;
-                        }
-                        if (buffer.size != 0) {
-                            buffer.buffer.rewind();
-                            buffer.buffer.get(buffer.bufferBytes);
-                            synchronized (playerSync) {
-                                usedPlayerBuffers.add(buffer);
-                            }
-                        } else {
-                            synchronized (playerSync) {
-                                freePlayerBuffers.add(buffer);
-                                break;
-                            }
-                        }
-                        was = true;
-                    } else {
-                        break;
-                    }
-                }
-                if (was) {
-                    checkPlayerQueue();
-                }
-            }
-        });
+        // the same runnable is posted at most once, so there are no allocations per buffer
+        if (decoderScheduled.compareAndSet(false, true)) {
+            fileDecodingQueue.postRunnable(decoderRunnable);
+        }
     }
 
     private void checkPlayerQueue() {
-        playerQueue.postRunnable(new Runnable() {
-            @Override
-            public void run() {
-                synchronized (playerObjectSync) {
-                    if (audioTrackPlayer == null || audioTrackPlayer.getPlayState() != AudioTrack.PLAYSTATE_PLAYING) {
-                        return;
-                    }
-                }
-                AudioBuffer buffer = null;
-                synchronized (playerSync) {
-                    if (!usedPlayerBuffers.isEmpty()) {
-                        buffer = usedPlayerBuffers.get(0);
-                        usedPlayerBuffers.remove(0);
-                    }
-                }
-
-                if (buffer != null) {
-                    int count = 0;
-                    try {
-                        count = audioTrackPlayer.write(buffer.bufferBytes, 0, buffer.size);
-                    } catch (Exception e) {
+        if (playerScheduled.compareAndSet(false, true)) {
+            playerQueue.postRunnable(playerRunnable);
+        }
+    }
 
-                    }
-                    buffersWrited++;
+    private void decodeOpusBuffers() {
+        if (decodingFinished) {
+            checkPlayerQueue();
+            return;
+        }
+        AudioRingBuffer.Slot slot;
+        while ((slot = playerRing.acquireWrite()) != null) {
+            readOpusFile(slot.buffer, playerBufferSize, readArgs);
+            slot.size = readArgs[0];
+            slot.pcmOffset = readArgs[1];
+            slot.finished = readArgs[2];
+            if (slot.finished == 1) {
+                decodingFinished = true;
+            }
+            if (slot.size == 0) {
+                break;
+            }
+            playerRing.commitWrite();
+            if (decodingFinished) {
+                break;
+            }
+        }
+        if (!playerRing.isEmpty()) {
+            checkPlayerQueue();
+        }
+    }
 
-                    if (count > 0) {
-                        final long pcm = buffer.pcmOffset;
-                        final int marker = buffer.finished == 1 ? count : -1;
-                        final int finalBuffersWrited = buffersWrited;
-                        AndroidUtilities.runOnUIThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                lastPlayPcm = pcm;
-                                if (marker != -1) {
-                                    if (audioTrackPlayer != null) {
-                                        audioTrackPlayer.setNotificationMarkerPosition(1);
-                                    }
-                                    if (finalBuffersWrited == 1) {
-                                        cleanupPlayer(true, true, true);
-                                    }
-                                }
-                            }
-                        });
-                    }
+    private void playOpusBuffers() {
+        AudioTrack player;
+        synchronized (playerObjectSync) {
+            player = audioTrackPlayer;
+            if (player == null || player.getPlayState() != AudioTrack.PLAYSTATE_PLAYING) {
+                return;
+            }
+        }
 
-                    if (buffer.finished != 1) {
-                        checkPlayerQueue();
-                    }
-                }
-                if (buffer == null || buffer != null && buffer.finished != 1) {
-                    checkDecoderQueue();
+        // write everything that is decoded, the blocking write paces the loop
+        AudioRingBuffer.Slot slot;
+        while ((slot = playerRing.acquireRead()) != null) {
+            int count = 0;
+            try {
+                slot.buffer.clear();
+                if (playerBytes == null) {
+                    count = player.write(slot.buffer, slot.size, AudioTrack.WRITE_BLOCKING);
+                } else {
+                    slot.buffer.get(playerBytes, 0, slot.size);
+                    count = player.write(playerBytes, 0, slot.size);
                 }
+            } catch (Exception e) {
 
-                if (buffer != null) {
-                    synchronized (playerSync) {
-                        freePlayerBuffers.add(buffer);
-                    }
+            }
+            buffersWrited++;
+
+            boolean finished = slot.finished == 1;
+            if (count > 0) {
+                lastPlayPcm = slot.pcmOffset;
+                if (finished) {
+                    final int finalBuffersWrited = buffersWrited;
+                    AndroidUtilities.runOnUIThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (audioTrackPlayer != null) {
+                                audioTrackPlayer.setNotificationMarkerPosition(1);
+                            }
+                            if (finalBuffersWrited == 1) {
+                                cleanupPlayer(true, true, true);
+                            }
+                        }
+                    });
                 }
             }
-        });
+            playerRing.commitRead();
+
+            if (finished) {
+                return;
+            }
+            checkDecoderQueue();
+            if (player.getPlayState() != AudioTrack.PLAYSTATE_PLAYING) {
+                return;
+            }
+        }
+
+        if (!decodingFinished) {
+            if (player.getPlayState() == AudioTrack.PLAYSTATE_PLAYING) {
+                playerRing.countUnderrun(); // the end of the file is no underrun, nor is an empty ring while paused
+            }
+            checkDecoderQueue();
+        }
     }
 
     protected boolean isRecordingAudio() {
@@ -1138,6 +1122,9 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
 
             }
         } else if (audioTrackPlayer != null) {
+            if (playerRing.getUnderrunCount() > 0) {
+                Log.i("DeltaChat", String.format(Locale.US, "Audio playback: %d underruns.", playerRing.getUnderrunCount()));
+            }
             synchronized (playerObjectSync) {
                 try {
                     audioTrackPlayer.pause();
@@ -1201,10 +1188,7 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
             @Override
             public void run() {
                 seekOpusFile(progress);
-                synchronized (playerSync) {
-                    freePlayerBuffers.addAll(usedPlayerBuffers);
-                    usedPlayerBuffers.clear();
-                }
+                playerRing.discardAll();
                 AndroidUtilities.runOnUIThread(new Runnable() {
                     @Override
                     public void run() {
@@ -1268,8 +1252,8 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
             }
         }
 
-        TLRPC.Message tmsg = MrMailbox.getMsg(nextMsgId).get_TLRPC_Message();
-        MessageObject msgDrawObj = new MessageObject(tmsg, true);
+        MrMsg nextMsg = MrMailbox.getMsg(nextMsgId);
+        MessageObject msgDrawObj = new MessageObject(new MsgViewModel(nextMsg, MrMailbox.getChat(nextMsg.getChatId()), this), true);
         playMusicAgain = true;
         playAudio(msgDrawObj);
     }
@@ -1455,12 +1439,10 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                     } catch (Exception e) {
 
                     }
-                    synchronized (playerSync) {
-                        freePlayerBuffers.addAll(usedPlayerBuffers);
-                        usedPlayerBuffers.clear();
-                    }
+                    playerRing.discardAll();
+                    playerRing.resetCounters();
                     decodingFinished = false;
-                    checkPlayerQueue();
+                    checkDecoderQueue();
                 }
             });
         }
@@ -1627,7 +1609,10 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                     audioRecorder = new AudioRecord(MediaRecorder.AudioSource.MIC, 16000, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, recordBufferSize * 10);
                     recordStartTime = System.currentTimeMillis();
                     recordTimeCount = 0;
-                    samplesCount = 0;
+                    recordWaveform.reset();
+                    recordRing.resetCounters();
+                    lastRecordProgressTime = 0;
+                    recordAmplitudePeak = 0;
                     recordDialogId = dialog_id;
                     fileBuffer.rewind();
 
@@ -1677,54 +1662,101 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
         }
     }
 
-    private HashMap<String, Integer> generatingWaveform = new HashMap<>();
+    // waveforms are generated on a small pool of their own, so that many voice messages in a chat do not block the
+    // globalQueue; the paths being generated and the ids of the messages waiting for them are used on the UI thread only.
+    private static final int WAVEFORM_QUEUE_COUNT = 2;
+    private final DispatchQueue[] waveformQueues = new DispatchQueue[WAVEFORM_QUEUE_COUNT];
+    private final int[] waveformQueueJobs = new int[WAVEFORM_QUEUE_COUNT];
+    private HashMap<String, ArrayList<Integer>> generatingWaveform = new HashMap<>();
+
     public void loadOrGenerateWaveform(final String path, boolean doGenerate, MessageObject setToObj) // we may call this function without setToObj to just generate the waveform
     {
-        File testfile = new File(path + ".waveform");
-        if (testfile.exists() && testfile.length() > 0) {
-            byte[] waveform = new byte[(int) testfile.length()];
-            try {
-                DataInputStream dis = new DataInputStream(new FileInputStream(testfile));
-                dis.readFully(waveform);
-                dis.close();
-                if( setToObj != null ) {
-                    setWaveformToMessageObject(setToObj, waveform);
-                }
-            } catch(Exception e) {}
+        // the cache does not block the UI thread; if it is not yet loaded, the waveform is looked up in the background
+        MediaMetaCache.Entry cached = MediaMetaCache.getInstance().get(path);
+        if (cached != null && cached.waveform != null) {
+            if( setToObj != null ) {
+                setWaveformToMessageObject(setToObj, cached.waveform);
+            }
             return;
         }
 
         if( doGenerate ) {
             final int setToObj_id = setToObj==null? 0 : setToObj.getId();
-            if (generatingWaveform.containsKey(path)) {
+            ArrayList<Integer> waiting = generatingWaveform.get(path);
+            if (waiting != null) {
+                if (!waiting.contains(setToObj_id)) {
+                    waiting.add(setToObj_id); // already being generated, notify this message as well
+                }
                 return;
             }
-            generatingWaveform.put(path, 1);
-            Utilities.globalQueue.postRunnable(new Runnable() {
+            waiting = new ArrayList<>();
+            waiting.add(setToObj_id);
+            generatingWaveform.put(path, waiting);
+
+            // the queue with the fewest jobs
+            int queueIndex = 0;
+            for (int i = 1; i < WAVEFORM_QUEUE_COUNT; i++) {
+                if (waveformQueueJobs[i] < waveformQueueJobs[queueIndex]) {
+                    queueIndex = i;
+                }
+            }
+            if (waveformQueues[queueIndex] == null) {
+                waveformQueues[queueIndex] = new DispatchQueue("waveformQueue" + queueIndex);
+            }
+            waveformQueueJobs[queueIndex]++;
+            final int finalQueueIndex = queueIndex;
+            waveformQueues[queueIndex].postRunnable(new Runnable() {
                 @Override
                 public void run() {
-                    final byte[] waveform = MediaController.getInstance().getWaveform(path);
-                    if (waveform != null && waveform.length > 0) {
-                        try {
-                            FileOutputStream out = new FileOutputStream(path + ".waveform");
-                            out.write(waveform);
-                            out.close();
-                        } catch (Exception e) { }
-                        AndroidUtilities.runOnUIThread(new Runnable() {
-                            @Override
-                            public void run() {
-                            NotificationCenter.getInstance().postNotificationName(NotificationCenter.waveformCalculated, setToObj_id);
-                            }
-                        });
+                    MediaMetaCache.Entry cached = MediaMetaCache.getInstance().get(path);
+                    byte[] waveform = cached != null ? cached.waveform : null;
+                    if (waveform == null) {
+                        waveform = readWaveformSidecar(path); // written by older versions
+                        if (waveform == null) {
+                            waveform = MediaController.getInstance().getWaveform(path); // decodes only parts of longer files
+                        }
+                        if (waveform != null && waveform.length > 0) {
+                            MediaMetaCache.getInstance().putWaveform(path, waveform); // kept in memory and on disk
+                        }
                     }
-
-                    generatingWaveform.remove(path);
+                    final boolean success = waveform != null && waveform.length > 0;
+                    AndroidUtilities.runOnUIThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            waveformQueueJobs[finalQueueIndex]--;
+                            ArrayList<Integer> waiting = generatingWaveform.remove(path);
+                            if (success && waiting != null) {
+                                for (int i = 0; i < waiting.size(); i++) {
+                                    NotificationCenter.getInstance().postNotificationName(NotificationCenter.waveformCalculated, waiting.get(i));
+                                }
+                            }
+                        }
+                    });
                 }
             });
         }
     }
 
+    static byte[] readWaveformSidecar(String path)
+    {
+        File sidecar = new File(path + ".waveform");
+        if (sidecar.exists() && sidecar.length() > 0) {
+            byte[] waveform = new byte[(int) sidecar.length()];
+            try {
+                DataInputStream dis = new DataInputStream(new FileInputStream(sidecar));
+                dis.readFully(waveform);
+                dis.close();
+                sidecar.delete();
+                return waveform;
+            } catch(Exception e) {}
+        }
+        return null;
+    }
+
     private void stopRecordingInternal(final int send) {
+        if (recordRing.getOverrunCount() > 0) {
+            Log.i("DeltaChat", String.format(Locale.US, "Audio recording: the encoder was behind %d times.", recordRing.getOverrunCount()));
+        }
         if (send != 0) {
             final TLRPC.TL_document audioToSend = recordingAudio;
             final File recordingAudioFileToSend = recordingAudioFile;
@@ -1739,7 +1771,7 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                             audioToSend.size = (int) recordingAudioFileToSend.length();
                             TLRPC.TL_documentAttributeAudio attributeAudio = new TLRPC.TL_documentAttributeAudio();
                             attributeAudio.voice = true;
-                            attributeAudio.waveform = getWaveform2(recordSamples, recordSamples.length); //getWaveform(recordingAudioFileToSend.getAbsolutePath());
+                            attributeAudio.waveform = getWaveform2(recordWaveform.getBins(), recordWaveform.getBinCount()); //getWaveform(recordingAudioFileToSend.getAbsolutePath());
                             long duration = recordTimeCount;
                             attributeAudio.duration = (int) (recordTimeCount / 1000);
                             audioToSend.attributes.add(attributeAudio);
@@ -1888,6 +1920,38 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
         return result;
     }
 
+    @Override
+    public TLRPC.PhotoSize getVideoThumb(MsgViewModel msg) {
+        MediaMetaCache.Entry cached = MediaMetaCache.getInstance().get(msg.path);
+        if( cached != null && cached.previewPath != null && new File(cached.previewPath).exists() ) { // the preview may have been removed by the StorageManager
+            return msg.createThumb(cached.previewPath, msg.getWidth(cached.width>0? cached.width : 320), msg.getHeight(cached.height>0? cached.height : 240));
+        }
+
+        File vfile = new File(msg.path);
+        File tfile = new File(MrMailbox.getBlobdir(), vfile.getName()+"-preview.jpg");
+        if( tfile.exists() ) {
+            MediaMetaCache.getInstance().putPreview(msg.path, tfile.getAbsolutePath(), msg.width, msg.height);
+            return msg.createThumb(tfile.getAbsolutePath(), msg.getWidth(320), msg.getHeight(240));
+        }
+
+        try {
+            Bitmap thumb = ThumbnailUtils.createVideoThumbnail(msg.path, MediaStore.Video.Thumbnails.MINI_KIND);
+            TLRPC.PhotoSize size = ImageLoader.scaleAndSaveImage(tfile, thumb, 90, 90, 55, false);
+            StorageManager.getInstance().registerPreview(tfile.getAbsolutePath());
+            size.location.mr_path = tfile.getAbsolutePath();
+            size.type = "s";
+
+            // the backend does not know the dimensions of the video yet; the snapshot itself stays unchanged
+            MrMailbox.getMsg(msg.id).lateFilingMediaSize(size.w, size.h, 0);
+            MediaMetaCache.getInstance().putPreview(msg.path, size.location.mr_path, size.w, size.h);
+            return size;
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
+
+    // hashes and copies the whole content, so do not call this on the UI thread
     public static String copyFileToCache(Uri uri, String ext) {
         InputStream inputStream = null;
         FileOutputStream output = null;
@@ -1899,14 +1963,28 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                 UserConfig.saveConfig();
                 name = String.format(Locale.US, "%d.%s", id, ext);
             }
-            inputStream = ApplicationLoader.applicationContext.getContentResolver().openInputStream(uri);
             File f = new File(FileLoader.getInstance().getDirectory(FileLoader.MEDIA_DIR_CACHE), name);
+
+            // the same content was copied before, use that copy; documents are hashed completely as they may be edited in place
+            String key = SentFileCache.getKey(uri, "copy", false);
+            if (SentFileCache.getInstance().reuse(key, f) != null) {
+                f.setLastModified(System.currentTimeMillis()); // a hard link has the age of the first copy, the GC keeps new copies
+                StorageManager.getInstance().registerCopy(f.getAbsolutePath());
+                return f.getAbsolutePath();
+            }
+
+            inputStream = ApplicationLoader.applicationContext.getContentResolver().openInputStream(uri);
+            f.delete(); // an existing file may be a hard link to the file of another message, do not overwrite that
             output = new FileOutputStream(f);
             byte[] buffer = new byte[1024 * 20];
             int len;
             while ((len = inputStream.read(buffer)) != -1) {
                 output.write(buffer, 0, len);
             }
+            output.close();
+            output = null;
+            StorageManager.getInstance().registerCopy(f.getAbsolutePath());
+            SentFileCache.getInstance().put(key, f.getAbsolutePath(), 0, 0);
             return f.getAbsolutePath();
         } catch (Exception e) {
 
@@ -1963,162 +2041,148 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
         return directShare;
     }
 
+    // the gallery is read through a persistent index that is updated incrementally, see GalleryIndex;
+    // the albums are built from the index for every post, as the pickers modify the entries (captions, edited images).
+    private static final DispatchQueue galleryQueue = new DispatchQueue("galleryQueue");
+    private static final GalleryIndex galleryIndex = new GalleryIndex();
+    private static ArrayList<AlbumEntry> galleryAlbumsSorted;
+    private static ArrayList<AlbumEntry> galleryVideoAlbumsSorted;
+    private static AlbumEntry galleryAllPhotosAlbum;
+    private static Integer galleryCameraAlbumId;
+    private static Integer galleryCameraAlbumVideoId;
+
+    static {
+        galleryQueue.setPriority(Thread.MIN_PRIORITY);
+    }
+
     public static void loadGalleryPhotosAlbums(final int guid) {
-        Thread thread = new Thread(new Runnable() {
+        galleryQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
-                final ArrayList<AlbumEntry> albumsSorted = new ArrayList<>();
-                final ArrayList<AlbumEntry> videoAlbumsSorted = new ArrayList<>();
-                HashMap<Integer, AlbumEntry> albums = new HashMap<>();
-                AlbumEntry allPhotosAlbum = null;
-                String cameraFolder = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM).getAbsolutePath() + "/" + "Camera/";
-                Integer cameraAlbumId = null;
-                Integer cameraAlbumVideoId = null;
-
-                Cursor cursor = null;
-                try {
-                    if (Build.VERSION.SDK_INT < 23 || Build.VERSION.SDK_INT >= 23 && ApplicationLoader.applicationContext.checkSelfPermission(Manifest.permission.READ_EXTERNAL_STORAGE) == PackageManager.PERMISSION_GRANTED) {
-                        cursor = MediaStore.Images.Media.query(ApplicationLoader.applicationContext.getContentResolver(), MediaStore.Images.Media.EXTERNAL_CONTENT_URI, projectionPhotos, null, null, MediaStore.Images.Media.DATE_TAKEN + " DESC");
-                        if (cursor != null) {
-                            int imageIdColumn = cursor.getColumnIndex(MediaStore.Images.Media._ID);
-                            int bucketIdColumn = cursor.getColumnIndex(MediaStore.Images.Media.BUCKET_ID);
-                            int bucketNameColumn = cursor.getColumnIndex(MediaStore.Images.Media.BUCKET_DISPLAY_NAME);
-                            int dataColumn = cursor.getColumnIndex(MediaStore.Images.Media.DATA);
-                            int dateColumn = cursor.getColumnIndex(MediaStore.Images.Media.DATE_TAKEN);
-                            int orientationColumn = cursor.getColumnIndex(MediaStore.Images.Media.ORIENTATION);
-
-                            while (cursor.moveToNext()) {
-                                int imageId = cursor.getInt(imageIdColumn);
-                                int bucketId = cursor.getInt(bucketIdColumn);
-                                String bucketName = cursor.getString(bucketNameColumn);
-                                String path = cursor.getString(dataColumn);
-                                long dateTaken = cursor.getLong(dateColumn);
-                                int orientation = cursor.getInt(orientationColumn);
-
-                                if (path == null || path.length() == 0) {
-                                    continue;
-                                }
-
-                                PhotoEntry photoEntry = new PhotoEntry(bucketId, imageId, dateTaken, path, orientation, false);
-
-                                if (allPhotosAlbum == null) {
-                                    allPhotosAlbum = new AlbumEntry(0, ApplicationLoader.applicationContext.getString(R.string.AllPhotos), photoEntry, false);
-                                    albumsSorted.add(0, allPhotosAlbum);
-                                }
-                                if (allPhotosAlbum != null) {
-                                    allPhotosAlbum.addPhoto(photoEntry);
-                                }
-
-                                AlbumEntry albumEntry = albums.get(bucketId);
-                                if (albumEntry == null) {
-                                    albumEntry = new AlbumEntry(bucketId, bucketName, photoEntry, false);
-                                    albums.put(bucketId, albumEntry);
-                                    if (cameraAlbumId == null && cameraFolder != null && path != null && path.startsWith(cameraFolder)) {
-                                        albumsSorted.add(0, albumEntry);
-                                        cameraAlbumId = bucketId;
-                                    } else {
-                                        albumsSorted.add(albumEntry);
-                                    }
-                                }
-
-                                albumEntry.addPhoto(photoEntry);
-                            }
-                        }
-                    }
-                } catch (Throwable e) {
-
-                } finally {
-                    if (cursor != null) {
-                        try {
-                            cursor.close();
-                        } catch (Exception e) {
-
-                        }
-                    }
+                if (Build.VERSION.SDK_INT >= 23 && ApplicationLoader.applicationContext.checkSelfPermission(Manifest.permission.READ_EXTERNAL_STORAGE) != PackageManager.PERMISSION_GRANTED) {
+                    galleryAlbumsSorted = galleryVideoAlbumsSorted = null;
+                    galleryAllPhotosAlbum = null;
+                    galleryCameraAlbumId = galleryCameraAlbumVideoId = null;
+                    postGalleryAlbums(guid);
+                    return;
                 }
 
-                try {
-                    if (Build.VERSION.SDK_INT < 23 || Build.VERSION.SDK_INT >= 23 && ApplicationLoader.applicationContext.checkSelfPermission(Manifest.permission.READ_EXTERNAL_STORAGE) == PackageManager.PERMISSION_GRANTED) {
-                        albums.clear();
-                        AlbumEntry allVideosAlbum = null;
-                        cursor = MediaStore.Images.Media.query(ApplicationLoader.applicationContext.getContentResolver(), MediaStore.Video.Media.EXTERNAL_CONTENT_URI, projectionVideo, null, null, MediaStore.Video.Media.DATE_TAKEN + " DESC");
-                        if (cursor != null) {
-                            int imageIdColumn = cursor.getColumnIndex(MediaStore.Video.Media._ID);
-                            int bucketIdColumn = cursor.getColumnIndex(MediaStore.Video.Media.BUCKET_ID);
-                            int bucketNameColumn = cursor.getColumnIndex(MediaStore.Video.Media.BUCKET_DISPLAY_NAME);
-                            int dataColumn = cursor.getColumnIndex(MediaStore.Video.Media.DATA);
-                            int dateColumn = cursor.getColumnIndex(MediaStore.Video.Media.DATE_TAKEN);
-
-                            while (cursor.moveToNext()) {
-                                int imageId = cursor.getInt(imageIdColumn);
-                                int bucketId = cursor.getInt(bucketIdColumn);
-                                String bucketName = cursor.getString(bucketNameColumn);
-                                String path = cursor.getString(dataColumn);
-                                long dateTaken = cursor.getLong(dateColumn);
-
-                                if (path == null || path.length() == 0) {
-                                    continue;
-                                }
-
-                                PhotoEntry photoEntry = new PhotoEntry(bucketId, imageId, dateTaken, path, 0, true);
-
-                                if (allVideosAlbum == null) {
-                                    allVideosAlbum = new AlbumEntry(0, ApplicationLoader.applicationContext.getString(R.string.AllVideo), photoEntry, true);
-                                    videoAlbumsSorted.add(0, allVideosAlbum);
-                                }
-                                if (allVideosAlbum != null) {
-                                    allVideosAlbum.addPhoto(photoEntry);
-                                }
+                // show the albums from the index on disk at once, the changes are read afterwards
+                boolean posted = false;
+                if (galleryIndex.load()) {
+                    buildGalleryAlbums();
+                    postGalleryAlbums(guid);
+                    posted = true;
+                }
 
-                                AlbumEntry albumEntry = albums.get(bucketId);
-                                if (albumEntry == null) {
-                                    albumEntry = new AlbumEntry(bucketId, bucketName, photoEntry, true);
-                                    albums.put(bucketId, albumEntry);
-                                    if (cameraAlbumVideoId == null && cameraFolder != null && path != null && path.startsWith(cameraFolder)) {
-                                        videoAlbumsSorted.add(0, albumEntry);
-                                        cameraAlbumVideoId = bucketId;
-                                    } else {
-                                        videoAlbumsSorted.add(albumEntry);
-                                    }
-                                }
+                if (galleryIndex.sync() || !posted) {
+                    buildGalleryAlbums();
+                    postGalleryAlbums(guid);
+                }
+            }
+        });
+    }
 
-                                albumEntry.addPhoto(photoEntry);
-                            }
-                        }
-                    }
-                } catch (Throwable e) {
+    private static void buildGalleryAlbums() {
+        String cameraFolder = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM).getAbsolutePath() + "/" + "Camera/";
+        galleryCameraAlbumId = null;
+        galleryCameraAlbumVideoId = null;
+        galleryAllPhotosAlbum = null;
+        galleryAlbumsSorted = buildGalleryAlbums(galleryIndex.photos, cameraFolder);
+        galleryVideoAlbumsSorted = buildGalleryAlbums(galleryIndex.videos, cameraFolder);
+    }
+
+    private static ArrayList<AlbumEntry> buildGalleryAlbums(GalleryIndex.Table table, String cameraFolder) {
+        final ArrayList<AlbumEntry> albumsSorted = new ArrayList<>();
+        SparseArray<AlbumEntry> albums = new SparseArray<>();
+        AlbumEntry allAlbum = null;
+        for (int i = 0; i < table.count; i++) {
+            int bucketId = table.bucketIds[i];
+            String path = table.paths[i];
+            PhotoEntry photoEntry = new PhotoEntry(bucketId, table.ids[i], table.datesTaken[i], path, table.orientations[i], table.isVideo);
+
+            if (allAlbum == null) {
+                allAlbum = new AlbumEntry(0, ApplicationLoader.applicationContext.getString(table.isVideo ? R.string.AllVideo : R.string.AllPhotos), photoEntry, table.isVideo);
+                albumsSorted.add(0, allAlbum);
+                if (!table.isVideo) {
+                    galleryAllPhotosAlbum = allAlbum;
+                }
+            }
+            allAlbum.addPhoto(photoEntry);
+
+            AlbumEntry albumEntry = albums.get(bucketId);
+            if (albumEntry == null) {
+                albumEntry = new AlbumEntry(bucketId, galleryIndex.bucketNames.get(bucketId), photoEntry, table.isVideo);
+                albums.put(bucketId, albumEntry);
+                boolean isCamera = path.startsWith(cameraFolder);
+                if (isCamera && !table.isVideo && galleryCameraAlbumId == null) {
+                    albumsSorted.add(0, albumEntry);
+                    galleryCameraAlbumId = bucketId;
+                } else if (isCamera && table.isVideo && galleryCameraAlbumVideoId == null) {
+                    albumsSorted.add(0, albumEntry);
+                    galleryCameraAlbumVideoId = bucketId;
+                } else {
+                    albumsSorted.add(albumEntry);
+                }
+            }
+            albumEntry.addPhoto(photoEntry);
+        }
+        return albumsSorted;
+    }
 
-                } finally {
-                    if (cursor != null) {
-                        try {
-                            cursor.close();
-                        } catch (Exception e) {
+    private static void postGalleryAlbums(final int guid) {
+        final ArrayList<AlbumEntry> albumsSorted = galleryAlbumsSorted != null ? galleryAlbumsSorted : new ArrayList<AlbumEntry>();
+        final ArrayList<AlbumEntry> videoAlbumsSorted = galleryVideoAlbumsSorted != null ? galleryVideoAlbumsSorted : new ArrayList<AlbumEntry>();
+        final Integer cameraAlbumIdFinal = galleryCameraAlbumId;
+        final Integer cameraAlbumVideoIdFinal = galleryCameraAlbumVideoId;
+        final AlbumEntry allPhotosAlbumFinal = galleryAllPhotosAlbum;
+        AndroidUtilities.runOnUIThread(new Runnable() {
+            @Override
+            public void run() {
+                allPhotosAlbumEntry = allPhotosAlbumFinal;
+                NotificationCenter.getInstance().postNotificationName(NotificationCenter.albumsDidLoaded, guid, albumsSorted, cameraAlbumIdFinal, videoAlbumsSorted, cameraAlbumVideoIdFinal);
+            }
+        });
+    }
 
-                        }
-                    }
-                }
+    /**
+     * Add a video to the persistent conversion queue; the converted file is added to the SentFileCache
+     * with the given key, which may be null. Can be called from any thread.
+     */
+    public void scheduleVideoConvert(MessageObject messageObject, String sentFileKey) {
+        VideoConvertQueue.getInstance().add(messageObject, sentFileKey, VideoConvertQueue.PRIORITY_NORMAL);
+        AndroidUtilities.runOnUIThread(new Runnable() {
+            @Override
+            public void run() {
+                startVideoConvertFromQueue();
+            }
+        });
+    }
 
-                final Integer cameraAlbumIdFinal = cameraAlbumId;
-                final Integer cameraAlbumVideoIdFinal = cameraAlbumVideoId;
-                final AlbumEntry allPhotosAlbumFinal = allPhotosAlbum;
+    // restart the conversions interrupted by the death of the process, called on startup
+    public void resumeVideoConversions() {
+        Utilities.globalQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                final ArrayList<VideoConvertQueue.Job> failed = VideoConvertQueue.getInstance().restore();
                 AndroidUtilities.runOnUIThread(new Runnable() {
                     @Override
                     public void run() {
-                        allPhotosAlbumEntry = allPhotosAlbumFinal;
-                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.albumsDidLoaded, guid, albumsSorted, cameraAlbumIdFinal, videoAlbumsSorted, cameraAlbumVideoIdFinal);
+                        SendMessagesHelper.getInstance(); // observes the notifications and hands the files over to the backend
+                        for (int i = 0; i < failed.size(); i++) {
+                            VideoConvertQueue.Job job = failed.get(i);
+                            NotificationCenter.getInstance().postNotificationName(NotificationCenter.FilePreparingFailed, job.messageObject, job.attachPath);
+                        }
+                        startVideoConvertFromQueue();
                     }
                 });
             }
         });
-        thread.setPriority(Thread.MIN_PRIORITY);
-        thread.start();
     }
 
-    public void scheduleVideoConvert(MessageObject messageObject) {
-        videoConvertQueue.add(messageObject);
-        if (videoConvertQueue.size() == 1) {
-            startVideoConvertFromQueue();
-        }
+    // returns the progress of a video waiting for conversion or being converted, -1 if there is no such job
+    public float getVideoConvertProgress(String attachPath) {
+        return VideoConvertQueue.getInstance().getProgress(attachPath);
     }
 
     public void cancelVideoConvert(MessageObject messageObject) {
@@ -2127,24 +2191,30 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                 cancelCurrentVideoConversion = true;
             }
         } else {
-            if (!videoConvertQueue.isEmpty()) {
-                if (videoConvertQueue.get(0) == messageObject) {
+            VideoConvertQueue.Job job = VideoConvertQueue.getInstance().get(messageObject.messageOwner.attachPath);
+            if (job != null) {
+                if (job == currentVideoConvertJob) {
                     synchronized (videoConvertSync) {
                         cancelCurrentVideoConversion = true;
                     }
+                } else {
+                    VideoConvertQueue.getInstance().remove(job, false);
                 }
-                videoConvertQueue.remove(messageObject);
             }
         }
     }
 
     private void startVideoConvertFromQueue() {
-        if (!videoConvertQueue.isEmpty()) {
+        if (currentVideoConvertJob != null) {
+            return; // one at a time, the next one is started when the current one is done
+        }
+        VideoConvertQueue.Job job = VideoConvertQueue.getInstance().next();
+        if (job != null) {
             synchronized (videoConvertSync) {
                 cancelCurrentVideoConversion = false;
             }
-            MessageObject messageObject = videoConvertQueue.get(0);
-            VideoConvertRunnable.runConversion(messageObject);
+            currentVideoConvertJob = job;
+            VideoConvertRunnable.runConversion(job);
         }
     }
 
@@ -2220,11 +2290,21 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
         return -5;
     }
 
-    private void didWriteData(final MessageObject messageObject, final File file, final boolean last, final boolean error) {
+    // called on the conversion thread; timeUs is the presentation time of the last sample written
+    private void didWriteData(final MessageObject messageObject, final File file, final long timeUs, final boolean last, final boolean error) {
         final boolean firstWrite = videoConvertFirstWrite;
         if (firstWrite) {
             videoConvertFirstWrite = false;
         }
+        final VideoConvertQueue.Job job = convertingJob;
+        if (job != null && !last) {
+            VideoConvertQueue.getInstance().checkpoint(job, timeUs);
+        }
+        final float progress = job != null ? (last ? 1.0f : job.getProgress()) : 0.0f;
+        if (job != null && (error || last)) {
+            // removed and saved here on the conversion thread, before SendMessagesHelper deletes the .increation file
+            VideoConvertQueue.getInstance().remove(job, !error);
+        }
         AndroidUtilities.runOnUIThread(new Runnable() {
             @Override
             public void run() {
@@ -2234,13 +2314,13 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                     if (firstWrite) {
                         NotificationCenter.getInstance().postNotificationName(NotificationCenter.FilePreparingStarted, messageObject, file.toString());
                     }
-                    NotificationCenter.getInstance().postNotificationName(NotificationCenter.FileNewChunkAvailable, messageObject, file.toString(), last ? file.length() : 0);
+                    NotificationCenter.getInstance().postNotificationName(NotificationCenter.FileNewChunkAvailable, messageObject, file.toString(), last ? file.length() : 0, progress);
                 }
                 if (error || last) {
                     synchronized (videoConvertSync) {
                         cancelCurrentVideoConversion = false;
                     }
-                    videoConvertQueue.remove(messageObject);
+                    currentVideoConvertJob = null;
                     startVideoConvertFromQueue();
                 }
             }
@@ -2290,7 +2370,7 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                                 info.offset = 0;
                                 info.flags = extractor.getSampleFlags();
                                 if (mediaMuxer.writeSampleData(muxerTrackIndex, buffer, info, isAudio)) {
-                                    didWriteData(messageObject, file, false, false);
+                                    didWriteData(messageObject, file, info.presentationTimeUs, false, false);
                                 }
                             }
                             lastTimestamp = info.presentationTimeUs;
@@ -2319,18 +2399,21 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
 
     private static class VideoConvertRunnable implements Runnable {
 
-        private MessageObject messageObject;
+        private VideoConvertQueue.Job job;
 
-        private VideoConvertRunnable(MessageObject message) {
-            messageObject = message;
+        private VideoConvertRunnable(VideoConvertQueue.Job job) {
+            this.job = job;
         }
 
         @Override
         public void run() {
-            MediaController.getInstance().convertVideo(messageObject);
+            VideoConvertQueue.getInstance().startAttempt(job);
+            MediaController controller = MediaController.getInstance();
+            controller.convertingJob = job;
+            controller.convertVideo(job.messageObject);
         }
 
-        public static void runConversion(final MessageObject obj) {
+        public static void runConversion(final VideoConvertQueue.Job obj) {
             new Thread(new Runnable() {
                 @Override
                 public void run() {
@@ -2400,14 +2483,10 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
             }
         }
 
-        SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("videoconvert", Activity.MODE_PRIVATE);
-        boolean isPreviousOk = preferences.getBoolean("isPreviousOk", true);
-        preferences.edit().putBoolean("isPreviousOk", false).apply();
-
+        // conversions crashing the process are given up by the VideoConvertQueue after some attempts
         File inputFile = new File(videoPath);
-        if (!inputFile.canRead() || !isPreviousOk) {
-            didWriteData(messageObject, cacheFile, true, true);
-            preferences.edit().putBoolean("isPreviousOk", true).apply();
+        if (!inputFile.canRead()) {
+            didWriteData(messageObject, cacheFile, 0, true, true);
             ApplicationLoader.convertVideoWakeLock.release();
             return false;
         }
@@ -2428,10 +2507,21 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                 movie.setCacheFile(cacheFile);
                 movie.setRotation(rotationValue);
                 movie.setSize(resultWidth, resultHeight);
-                mediaMuxer = new MP4Builder().createMovie(movie);
                 extractor = new MediaExtractor();
                 extractor.setDataSource(inputFile.toString());
 
+                // fast start, so that recipients can play the video while it is downloaded; the space reserved
+                // for the moov box depends on the duration, for untrimmed videos, endTime is -1
+                long durationEnd = endTime;
+                if (durationEnd <= 0) {
+                    int sourceTrack = selectTrack(extractor, false);
+                    MediaFormat sourceFormat = sourceTrack >= 0 ? extractor.getTrackFormat(sourceTrack) : null;
+                    if (sourceFormat != null && sourceFormat.containsKey(MediaFormat.KEY_DURATION)) {
+                        durationEnd = sourceFormat.getLong(MediaFormat.KEY_DURATION);
+                    }
+                }
+                mediaMuxer = new MP4Builder().createMovie(movie, true, durationEnd > 0 ? durationEnd - Math.max(startTime, 0) : 0);
+
                 checkConversionCanceled();
 
                 if (resultBitrate<originalBitrate || resultWidth != originalWidth || resultHeight != originalHeight || rotateRender != 0) {
@@ -2628,7 +2718,7 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                                         if (info.size > 1) {
                                             if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
                                                 if (mediaMuxer.writeSampleData(videoTrackIndex, encodedData, info, false)) {
-                                                    didWriteData(messageObject, cacheFile, false, false);
+                                                    didWriteData(messageObject, cacheFile, info.presentationTimeUs, false, false);
                                                 }
                                             } else if (videoTrackIndex == -5) {
                                                 byte[] csd = new byte[info.size];
@@ -2796,13 +2886,11 @@ public class MediaController implements AudioManager.OnAudioFocusChangeListener,
                 //Log.i("DeltaChat", "time = " + (System.currentTimeMillis() - time));
             }
         } else {
-            preferences.edit().putBoolean("isPreviousOk", true).apply();
-            didWriteData(messageObject, cacheFile, true, true);
+            didWriteData(messageObject, cacheFile, 0, true, true);
             ApplicationLoader.convertVideoWakeLock.release();
             return false;
         }
-        preferences.edit().putBoolean("isPreviousOk", true).apply();
-        didWriteData(messageObject, cacheFile, true, error);
+        didWriteData(messageObject, cacheFile, 0, true, error);
         ApplicationLoader.convertVideoWakeLock.release();
         return true;
     }
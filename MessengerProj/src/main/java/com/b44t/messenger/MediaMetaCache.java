@@ -0,0 +1,323 @@
+/*******************************************************************************
+ *
+ *                              Delta Chat Android
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    MediaMetaCache.java
+ * Purpose: Metadata of audio, video and other files, stored in a single file
+ *          and keyed by path, size and modification time
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class MediaMetaCache {
+
+    public static class Entry {
+        long   size;
+        long   mtime;
+        public int    duration;    // in milliseconds, 0 if unknown
+        public String title;
+        public String performer;
+        public int    width;
+        public int    height;
+        public byte[] waveform;
+        public String previewPath;
+    }
+
+    private static final int FILE_VERSION = 1;
+    private static final int MAX_ENTRIES  = 2000;
+    private static final int SAVE_DELAY_MS = 2000; // changes are collected and written together
+
+    private static volatile MediaMetaCache Instance = null;
+
+    public static MediaMetaCache getInstance() {
+        MediaMetaCache localInstance = Instance;
+        if (localInstance == null) {
+            synchronized (MediaMetaCache.class) {
+                localInstance = Instance;
+                if (localInstance == null) {
+                    Instance = localInstance = new MediaMetaCache();
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    // least recently used entries first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private boolean loaded;
+    private boolean loadScheduled;
+    private boolean saveScheduled;
+
+    private final Runnable saveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            save();
+        }
+    };
+
+    private static File getCacheFile() {
+        return new File(ApplicationLoader.applicationContext.getFilesDir(), "media_meta.dat");
+    }
+
+    /**
+     * Get the metadata of a file if the file was not modified since they were stored.
+     * On the UI thread, this does not wait for the cache to be loaded; null is returned then
+     * and the caller has to use the slow way.
+     */
+    public Entry get(String path) {
+        if (path == null || !ensureLoaded()) {
+            return null;
+        }
+        File file = new File(path);
+        long size = file.length(), mtime = file.lastModified();
+        synchronized (this) {
+            Entry entry = entries.get(path);
+            if (entry != null && (entry.size != size || entry.mtime != mtime)) {
+                entries.remove(path);
+                scheduleSave();
+                entry = null;
+            }
+            return entry;
+        }
+    }
+
+    public void putAudioInfo(String path, int duration, String title, String performer) {
+        Entry entry = edit(path);
+        if (entry != null) {
+            synchronized (this) {
+                entry.duration  = duration;
+                entry.title     = title;
+                entry.performer = performer;
+                scheduleSave();
+            }
+        }
+    }
+
+    public void putWaveform(String path, byte[] waveform) {
+        Entry entry = edit(path);
+        if (entry != null) {
+            synchronized (this) {
+                entry.waveform = waveform;
+                scheduleSave();
+            }
+        }
+    }
+
+    public void putPreview(String path, String previewPath, int width, int height) {
+        Entry entry = edit(path);
+        if (entry != null) {
+            synchronized (this) {
+                entry.previewPath = previewPath;
+                entry.width       = width;
+                entry.height      = height;
+                scheduleSave();
+            }
+        }
+    }
+
+    // returns the entry to modify, a new one if the file was modified
+    private Entry edit(String path) {
+        if (path == null || !ensureLoaded()) {
+            return null;
+        }
+        File file = new File(path);
+        long size = file.length(), mtime = file.lastModified();
+        if (size == 0) {
+            return null; // file does not exist (yet)
+        }
+        synchronized (this) {
+            Entry entry = entries.get(path);
+            if (entry == null || entry.size != size || entry.mtime != mtime) {
+                entry = new Entry();
+                entry.size  = size;
+                entry.mtime = mtime;
+                entries.put(path, entry);
+                trim();
+            }
+            return entry;
+        }
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (entries.size() > MAX_ENTRIES && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /* load/save
+     **********************************************************************************************/
+
+    private boolean ensureLoaded() {
+        synchronized (this) {
+            if (loaded) {
+                return true;
+            }
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                if (!loadScheduled) {
+                    loadScheduled = true;
+                    Utilities.globalQueue.postRunnable(new Runnable() {
+                        @Override
+                        public void run() {
+                            ensureLoaded();
+                        }
+                    });
+                }
+                return false;
+            }
+        }
+
+        // read the file outside the lock, the UI thread must not wait for it
+        LinkedHashMap<String, Entry> read = new LinkedHashMap<>();
+        File cacheFile = getCacheFile();
+        if (cacheFile.exists()) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+                if (in.readInt() == FILE_VERSION) {
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        String path = in.readUTF();
+                        Entry entry = new Entry();
+                        entry.size        = in.readLong();
+                        entry.mtime       = in.readLong();
+                        entry.duration    = in.readInt();
+                        entry.title       = readString(in);
+                        entry.performer   = readString(in);
+                        entry.width       = in.readInt();
+                        entry.height      = in.readInt();
+                        int waveformLen   = in.readInt();
+                        if (waveformLen > 0) {
+                            entry.waveform = new byte[waveformLen];
+                            in.readFully(entry.waveform);
+                        }
+                        entry.previewPath = readString(in);
+                        read.put(path, entry);
+                    }
+                }
+            } catch (Exception e) {
+                Log.e("DeltaChat", "Cannot read media metadata cache, starting with an empty one.", e);
+            } finally {
+                if (in != null) {
+                    try { in.close(); } catch (Exception e) { }
+                }
+            }
+        }
+
+        synchronized (this) {
+            if (!loaded) {
+                // entries added meanwhile are newer, so they are added after the ones read
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    read.put(e.getKey(), e.getValue());
+                }
+                entries.clear();
+                entries.putAll(read);
+                trim();
+                loaded = true;
+            }
+        }
+        return true;
+    }
+
+    private void scheduleSave() {
+        // called with the lock held
+        if (!saveScheduled) {
+            saveScheduled = true;
+            Utilities.globalQueue.postRunnable(saveRunnable, SAVE_DELAY_MS);
+        }
+    }
+
+    private void save() {
+        ArrayList<String> paths;
+        ArrayList<Entry> values;
+        synchronized (this) {
+            saveScheduled = false;
+            paths = new ArrayList<>(entries.keySet());
+            values = new ArrayList<>(entries.values());
+        }
+
+        File cacheFile = getCacheFile();
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(FILE_VERSION);
+            out.writeInt(paths.size());
+            for (int i = 0; i < paths.size(); i++) {
+                Entry entry = values.get(i);
+                synchronized (this) {
+                    out.writeUTF(paths.get(i));
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.mtime);
+                    out.writeInt(entry.duration);
+                    writeString(out, entry.title);
+                    writeString(out, entry.performer);
+                    out.writeInt(entry.width);
+                    out.writeInt(entry.height);
+                    out.writeInt(entry.waveform == null ? 0 : entry.waveform.length);
+                    if (entry.waveform != null) {
+                        out.write(entry.waveform);
+                    }
+                    writeString(out, entry.previewPath);
+                }
+            }
+            out.close();
+            out = null;
+            if (!tempFile.renameTo(cacheFile)) {
+                Log.e("DeltaChat", "Cannot write media metadata cache.");
+            }
+        } catch (Exception e) {
+            Log.e("DeltaChat", "Cannot write media metadata cache.", e);
+        } finally {
+            if (out != null) {
+                try { out.close(); } catch (Exception e) { }
+            }
+        }
+    }
+
+    private static String readString(DataInputStream in) throws java.io.IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws java.io.IOException {
+        out.writeBoolean(str != null);
+        if (str != null) {
+            out.writeUTF(str);
+        }
+    }
+}
@@ -44,6 +44,7 @@ public class MessageObject {
     public static final int MESSAGE_SEND_STATE_SEND_ERROR = 2;
 
     public TLRPC.Message messageOwner;
+    public final MsgViewModel msg; // null for objects not created from a backend message, eg. date headlines
     public CharSequence messageText;
     public CharSequence caption;
     public final MessageObject replyMessageObject = null;
@@ -89,12 +90,36 @@ public class MessageObject {
 
     public ArrayList<TextLayoutBlock> textLayoutBlocks;
 
+    /**
+     *
+     * @param msg The message as loaded from the backend; type, duration etc. are taken directly from it.
+     * @param generateLayout Set to true for raw text messages, so emojis and other graphical elements get rendered.
+     */
+    public MessageObject(MsgViewModel msg, boolean generateLayout) {
+        this(msg.toTLRPC(true), msg, generateLayout, true);
+    }
+
+    /**
+     *
+     * @param msg The message as loaded from the backend.
+     * @param generateLayout Set to true for raw text messages, so emojis and other graphical elements get rendered.
+     * @param withMedia Set to false if the object is not drawn, eg. for notifications; no media objects, thumbs
+     *                  or file checks are created then.
+     */
+    public MessageObject(MsgViewModel msg, boolean generateLayout, boolean withMedia) {
+        this(msg.toTLRPC(withMedia), msg, generateLayout, withMedia);
+    }
+
     /**
      *
      * @param message The outer message.
      * @param generateLayout Set to true for raw text messages, so emojis and other graphical elements get rendered.
      */
     public MessageObject(TLRPC.Message message, boolean generateLayout) {
+        this(message, null, generateLayout, true);
+    }
+
+    private MessageObject(TLRPC.Message message, MsgViewModel msg, boolean generateLayout, boolean withMedia) {
         if (textPaint == null) {
             textPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
             textPaint.setColor(Theme.MSG_TEXT_COLOR);
@@ -108,6 +133,7 @@ public class MessageObject {
         }
 
         messageOwner = message;
+        this.msg = msg;
 
         if( !messageOwner.colored_text ) {
             textPaint.setTextSize(AndroidUtilities.dp(ApplicationLoader.fontSize));
@@ -128,8 +154,10 @@ public class MessageObject {
             messageText = EmojiInputView.replaceEmoji(messageText, false);
             generateLayout();
         }
-        generateThumbs(false);
-        checkMediaExistance();
+        if (withMedia) {
+            generateThumbs(false);
+            checkMediaExistance();
+        }
     }
 
     public static TextPaint getTextPaint() {
@@ -144,7 +172,12 @@ public class MessageObject {
 
     private void setType() {
         int oldType = type;
-        if (messageOwner instanceof TLRPC.TL_message /*|| messageOwner instanceof TLRPC.TL_messageForwarded_old2*/) {
+        if (msg != null) {
+            type = getTypeFromMsg();
+            if (type == MO_TYPE0_TEXT && (messageText == null || messageText.length() == 0)) {
+                messageText = "Empty message";
+            }
+        } else if (messageOwner instanceof TLRPC.TL_message /*|| messageOwner instanceof TLRPC.TL_messageForwarded_old2*/) {
             if (isMediaEmpty()) {
                 type = MO_TYPE0_TEXT;
                 if (messageText == null || messageText.length() == 0) {
@@ -178,6 +211,21 @@ public class MessageObject {
         }
     }
 
+    // same result as the checks of the TLRPC objects above, without iterating over attributes
+    private int getTypeFromMsg() {
+        if (isMediaEmpty()) {
+            return MO_TYPE0_TEXT;
+        }
+        switch (msg.type) {
+            case MrMsg.MR_MSG_IMAGE: return MO_TYPE1_PHOTO;
+            case MrMsg.MR_MSG_VIDEO: return MO_TYPE3_VIDEO;
+            case MrMsg.MR_MSG_VOICE: return MO_TYPE2_VOICE;
+            case MrMsg.MR_MSG_AUDIO: return MO_TYPE14_MUSIC;
+            case MrMsg.MR_MSG_GIF:   return "image/gif".equals(msg.mime)? MO_TYPE8_GIF : MO_TYPE9_FILE;
+            default:                 return MO_TYPE9_FILE;
+        }
+    }
+
     public static boolean isGifDocument(TLRPC.Document document) {
         return document != null && document.thumb != null && document.mime_type != null && document.mime_type.equals("image/gif");
     }
@@ -342,7 +390,7 @@ public class MessageObject {
         addLinks(messageText);
 
         int maxWidth;
-        boolean substractAvatar = !isOut() && MrMailbox.getChat((int)messageOwner.dialog_id).isGroup();
+        boolean substractAvatar = !isOut() && isGroupChat();
         if (substractAvatar) {
             maxWidth = Math.min(AndroidUtilities.displaySize.x, AndroidUtilities.displaySize.y) - AndroidUtilities.dp(122);
         } else {
@@ -486,6 +534,13 @@ public class MessageObject {
         }
     }
 
+    private boolean isGroupChat() {
+        if (msg != null) {
+            return msg.groupChat;
+        }
+        return MrMailbox.getChat((int)messageOwner.dialog_id).isGroup();
+    }
+
     public boolean isOut() {
         return messageOwner.out;
     }
@@ -663,14 +718,23 @@ public class MessageObject {
     }
 
     public boolean isMusic() {
+        if (msg != null) {
+            return msg.type == MrMsg.MR_MSG_AUDIO && !isMediaEmpty();
+        }
         return isMusicMessage(messageOwner);
     }
 
     public boolean isVoice() {
+        if (msg != null) {
+            return msg.type == MrMsg.MR_MSG_VOICE && !isMediaEmpty();
+        }
         return isVoiceMessage(messageOwner);
     }
 
     public boolean isVideo() {
+        if (msg != null) {
+            return msg.type == MrMsg.MR_MSG_VIDEO && !isMediaEmpty();
+        }
         return isVideoMessage(messageOwner);
     }
 
@@ -679,6 +743,9 @@ public class MessageObject {
     }
 
     public int getDuration() {
+        if (msg != null) {
+            return (isVoice() || isMusic())? msg.duration / 1000 : 0;
+        }
         TLRPC.Document document;
         document = messageOwner.media.document;
         for (int a = 0; a < document.attributes.size(); a++) {
@@ -250,10 +250,10 @@ public class MrMailbox {
                     @Override
                     public void run() {
                         if( data1 == 0 || data1 == 1000 ) {
-                            NotificationCenter.getInstance().postNotificationName(NotificationCenter.configureEnded, (int)data1);
+                            NotificationCenter.getInstance().postNotification(NotificationCenter.configureEnded, (int)data1);
                         }
                         else {
-                            NotificationCenter.getInstance().postNotificationName(NotificationCenter.configureProgress, (int)data1);
+                            NotificationCenter.getInstance().postNotification(NotificationCenter.configureProgress, (int)data1);
                         }
                     }
                 });
@@ -264,10 +264,10 @@ public class MrMailbox {
                     @Override
                     public void run() {
                         if (data1==0 || data1==1000) {
-                            NotificationCenter.getInstance().postNotificationName(NotificationCenter.imexEnded, (int) data1);
+                            NotificationCenter.getInstance().postNotification(NotificationCenter.imexEnded, (int) data1);
                         }
                         else {
-                            NotificationCenter.getInstance().postNotificationName(NotificationCenter.imexProgress, (int) data1);
+                            NotificationCenter.getInstance().postNotification(NotificationCenter.imexProgress, (int) data1);
                         }
                     }
                 });
@@ -288,7 +288,7 @@ public class MrMailbox {
                 AndroidUtilities.runOnUIThread(new Runnable() {
                     @Override
                     public void run() {
-                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.secureJoinInviterProgress, (int)data1, (int)data2);
+                        NotificationCenter.getInstance().postNotification(NotificationCenter.secureJoinInviterProgress, (int)data1, (int)data2);
                     }
                 });
                 return 0;
@@ -297,17 +297,18 @@ public class MrMailbox {
                 AndroidUtilities.runOnUIThread(new Runnable() {
                     @Override
                     public void run() {
-                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.secureJoinJoinerProgress, (int)data1, (int)data2);
+                        NotificationCenter.getInstance().postNotification(NotificationCenter.secureJoinJoinerProgress, (int)data1, (int)data2);
                     }
                 });
                 return 0;
 
             case MR_EVENT_MSGS_CHANGED:
             case MR_EVENT_INCOMING_MSG:
+                MsgSearchIndex.getInstance().onMsgsChanged((int)data1, (int)data2);
                 AndroidUtilities.runOnUIThread(new Runnable() {
                     @Override
                     public void run() {
-                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.dialogsNeedReload, event, (int)data1, (int)data2);
+                        NotificationCenter.getInstance().postNotification(NotificationCenter.dialogsNeedReload, event, (int)data1, (int)data2);
                         if( event == MR_EVENT_INCOMING_MSG ) {
                             NotificationsController.getInstance().processNewMessages((int)data1, (int)data2);
                         }
@@ -321,19 +322,20 @@ public class MrMailbox {
                 AndroidUtilities.runOnUIThread(new Runnable() {
                     @Override
                     public void run() {
-                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.messagesSentOrRead, event, (int)data1, (int)data2);
-                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.dialogsNeedReload);
+                        NotificationCenter.getInstance().postNotification(NotificationCenter.messagesSentOrRead, event, (int)data1, (int)data2);
+                        NotificationCenter.getInstance().postNotification(NotificationCenter.dialogsNeedReload);
                     }
                 });
                 return 0;
 
             case MR_EVENT_CONTACTS_CHANGED:
+                MsgSearchIndex.getInstance().onContactsChanged();
                 AndroidUtilities.runOnUIThread(new Runnable() {
                     @Override
                     public void run() {
-                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.contactsDidLoaded, (int)data1);
-                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.blockedUsersDidLoaded);
-                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.dialogsNeedReload);
+                        NotificationCenter.getInstance().postNotification(NotificationCenter.contactsDidLoaded, (int)data1);
+                        NotificationCenter.getInstance().postNotification(NotificationCenter.blockedUsersDidLoaded);
+                        NotificationCenter.getInstance().postNotification(NotificationCenter.dialogsNeedReload);
                     }
                 });
                 return 0;
@@ -342,8 +344,8 @@ public class MrMailbox {
                 AndroidUtilities.runOnUIThread(new Runnable() {
                     @Override
                     public void run() {
-                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.dialogsNeedReload);
-                        NotificationCenter.getInstance().postNotificationName(NotificationCenter.updateInterfaces,
+                        NotificationCenter.getInstance().postNotification(NotificationCenter.dialogsNeedReload);
+                        NotificationCenter.getInstance().postNotification(NotificationCenter.updateInterfaces,
                                 UPDATE_MASK_NAME|UPDATE_MASK_CHAT_NAME|
                                 UPDATE_MASK_CHAT_MEMBERS|UPDATE_MASK_AVATAR);
                     }
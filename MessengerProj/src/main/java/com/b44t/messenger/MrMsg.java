@@ -27,12 +27,6 @@
 
 package com.b44t.messenger;
 
-import android.graphics.Bitmap;
-import android.media.ThumbnailUtils;
-import android.provider.MediaStore;
-
-import java.io.File;
-
 public class MrMsg {
 
     private static final String TAG = "MrMsg";
@@ -101,157 +95,12 @@ public class MrMsg {
     /* additional functions that are not 1:1 available in the backend
      **********************************************************************************************/
 
-    public TLRPC.Message get_TLRPC_Message()
+    public static int state2SendState(int state)
     {
-        TLRPC.Message ret = new TLRPC.TL_message(); // the class derived from TLRPC.Message defines the basic type:
-        //  TLRPC.TL_messageService is used to display messages as "You joined the group"
-        //  TLRPC.TL_message is a normal message (also photos?)
-
-        int state = getState();
-        int type  = getType();
         switch( state ) {
-            case MR_OUT_DELIVERED: ret.send_state = MessageObject.MESSAGE_SEND_STATE_SENT; break;
-            case MR_OUT_ERROR:     ret.send_state = MessageObject.MESSAGE_SEND_STATE_SEND_ERROR; break;
-            case MR_OUT_PENDING:   ret.send_state = MessageObject.MESSAGE_SEND_STATE_SENDING; break;
-            case MR_OUT_MDN_RCVD:  ret.send_state = MessageObject.MESSAGE_SEND_STATE_SENT; break;
-        }
-
-        ret.id            = getId();
-        ret.from_id       = getFromId();
-        ret.date          = (int)getTimestamp();
-        ret.dialog_id     = getChatId();
-        ret.unread        = state!=MR_OUT_MDN_RCVD; // the state of outgoing messages
-        ret.media_unread  = ret.unread;
-        ret.flags         = 0; // posible flags: MESSAGE_FLAG_HAS_FROM_ID, however, this seems to be read only
-        ret.out           = ret.from_id==MrContact.MR_CONTACT_ID_SELF; // true=outgoing message, read eg. in MessageObject.isOutOwner()
-        ret.created_by_mr = true;
-        ret.show_padlock  = showPadlock()!=0;
-        ret.is_setup_message = isSetupMessage();
-        ret.colored_text  = ret.is_setup_message;
-
-        if( type == MR_MSG_TEXT ) {
-            ret.message       = getText();
-        }
-        else if( type == MR_MSG_FILE && isSetupMessage() )
-        {
-            ret.message = ApplicationLoader.applicationContext.getString(R.string.AutocryptSetupMessageTapBody);
-        }
-        else if( type == MR_MSG_IMAGE ) {
-            String path = getFile();
-            TLRPC.TL_photo photo = null;
-            if( !path.isEmpty() ) {
-                try {
-                    TLRPC.TL_photoSize photoSize = new TLRPC.TL_photoSize();
-                    photoSize.w = getWidth(800);
-                    photoSize.h = getHeight(800);
-                    photoSize.size = 0; // not sure what to use here, maybe `getBytes();`?
-                    photoSize.location = new TLRPC.TL_fileLocation();
-                    photoSize.location.mr_path = path;
-                    photoSize.location.local_id = -ret.id; // this forces the document to be searched in the cache dir
-                    if (photoSize.w <= 100 && photoSize.h <= 100) {
-                        photoSize.type = "s";
-                    } else if (photoSize.w <= 320 && photoSize.h <= 320) {
-                        photoSize.type = "m";
-                    } else if (photoSize.w <= 800 && photoSize.h <= 800) {
-                        photoSize.type = "x";
-                    } else if (photoSize.w <= 1280 && photoSize.h <= 1280) {
-                        photoSize.type = "y";
-                    } else {
-                        photoSize.type = "w";
-                    }
-                    photo = new TLRPC.TL_photo();
-                    photo.sizes.add(photoSize);
-                } catch (Exception e) {
-                    // the most common reason is a simple "file not found error"
-                }
-            }
-
-            if(photo!=null) {
-                ret.message = "-1";
-                ret.media = new TLRPC.TL_messageMediaPhoto();
-                ret.media.photo = photo;
-                ret.attachPath = path; // ret.attachPathExists set later in MessageObject.checkMediaExistance()
-            }
-            else {
-                ret.message = "<cannot load image>";
-            }
+            case MR_OUT_ERROR:     return MessageObject.MESSAGE_SEND_STATE_SEND_ERROR;
+            case MR_OUT_PENDING:   return MessageObject.MESSAGE_SEND_STATE_SENDING;
+            default:               return MessageObject.MESSAGE_SEND_STATE_SENT;
         }
-        else if( type == MR_MSG_GIF || type == MR_MSG_AUDIO || type == MR_MSG_VOICE || type == MR_MSG_VIDEO || type == MR_MSG_FILE ) {
-            String path = getFile();
-            if( !path.isEmpty()) {
-                ret.message = "-1"; // may be misused for video editing information
-                ret.media = new TLRPC.TL_messageMediaDocument();
-                ret.media.caption = "";
-                ret.media.document = new TLRPC.TL_document();
-                ret.media.document.file_name = getFilename();
-                ret.media.document.mr_path = path;
-                ret.media.document.size = getBytes();
-                if( type == MR_MSG_GIF ) {
-                    ret.media.document.mime_type = getFilemime();
-                    TLRPC.PhotoSize size = new TLRPC.PhotoSize();
-                    size.location = new TLRPC.TL_fileLocation();
-                    size.location.mr_path = path;
-                    size.location.local_id = -ret.id;
-                    size.w = getWidth(320);
-                    size.h = getHeight(240);
-                    size.type = "s";
-                    ret.media.document.thumb = size;
-                }
-                else if( type == MR_MSG_AUDIO || type == MR_MSG_VOICE ) {
-                    TLRPC.TL_documentAttributeAudio attr = new TLRPC.TL_documentAttributeAudio();
-                    attr.voice = type == MR_MSG_VOICE;
-                    attr.duration = getDuration() / 1000;
-                    ret.media.document.attributes.add(attr);
-                }
-                else if( type == MR_MSG_VIDEO ) {
-                    File vfile = new File(path);
-                    File tfile = new File(MrMailbox.getBlobdir(), vfile.getName()+"-preview.jpg");
-                    if( !tfile.exists() ) {
-                        try {
-                            Bitmap thumb = ThumbnailUtils.createVideoThumbnail(path, MediaStore.Video.Thumbnails.MINI_KIND);
-                            TLRPC.PhotoSize size = ImageLoader.scaleAndSaveImage(tfile, thumb, 90, 90, 55, false);
-                            size.location.mr_path = tfile.getAbsolutePath();
-                            size.type = "s";
-                            ret.media.document.thumb = size;
-
-                            lateFilingMediaSize(size.w, size.h, 0);
-                        }
-                        catch (Exception e) {}
-                    }
-                    else {
-                        TLRPC.PhotoSize size = new TLRPC.PhotoSize();
-                        size.location = new TLRPC.TL_fileLocation();
-                        size.location.mr_path = tfile.getAbsolutePath();
-                        size.location.local_id = -ret.id;
-                        size.w = getWidth(320);
-                        size.h = getHeight(240);
-                        size.type = "s";
-                        ret.media.document.thumb = size;
-                    }
-
-                    TLRPC.TL_documentAttributeVideo attr = new TLRPC.TL_documentAttributeVideo();
-                    attr.duration = getDuration() / 1000;
-                    attr.w = getWidth(320);
-                    attr.h = getHeight(240);
-                    ret.media.document.attributes.add(attr);
-                }
-                else {
-                    ret.media.document.mime_type = getFilemime();
-                }
-
-            }
-            else {
-                ret.message = "<file path missing>";
-            }
-        }
-        else {
-            ret.message = String.format("<unsupported message type #%d for id #%d>", type, ret.id);
-        }
-
-        if( isForwarded() ) {
-            ret.flags |= TLRPC.MESSAGE_FLAG_FWD;
-        }
-
-        return ret;
     }
-};
+}
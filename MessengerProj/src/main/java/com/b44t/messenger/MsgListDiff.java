@@ -0,0 +1,196 @@
+/*******************************************************************************
+ *
+ *                              Delta Chat Android
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    MsgListDiff.java
+ * Purpose: Calculate the differences between two message lists as returned by
+ *          MrMailbox.getChatMsgs() as insert/remove/move operations
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import com.b44t.messenger.aosp.RecyclerView;
+
+import java.util.Arrays;
+
+public class MsgListDiff {
+
+    private static final int OP_REMOVE = 0;
+    private static final int OP_INSERT = 1;
+    private static final int OP_MOVE   = 2;
+    private static final int OP_CHANGE = 3;
+
+    // for more changes, a full refresh is cheaper than the single operations
+    private static final int MAX_OPS = 64;
+
+    private int[]   ops = new int[3*16]; // type, position, count or target position
+    private int     opsCount;
+    private boolean fullRefresh;
+
+    private MsgListDiff() {
+    }
+
+    // may be called on any thread; the lists are not modified
+    public static MsgListDiff calculate(int[] oldList, int[] newList) {
+        MsgListDiff diff = new MsgListDiff();
+        diff.calculateOps(getKeys(oldList), getKeys(newList));
+        return diff;
+    }
+
+    // to be called on the UI thread, directly after the new list is set as the data of the adapter
+    public void dispatchUpdatesTo(RecyclerView.Adapter adapter) {
+        if (fullRefresh) {
+            adapter.notifyDataSetChanged();
+            return;
+        }
+        for (int i = 0; i < opsCount; i++) {
+            int pos = ops[i*3+1], arg = ops[i*3+2];
+            switch (ops[i*3]) {
+                case OP_REMOVE: adapter.notifyItemRangeRemoved(pos, arg);  break;
+                case OP_INSERT: adapter.notifyItemRangeInserted(pos, arg); break;
+                case OP_MOVE:   adapter.notifyItemMoved(pos, arg);         break;
+                case OP_CHANGE: adapter.notifyItemChanged(pos);            break;
+            }
+        }
+    }
+
+    // messages are identified by their id; a day marker by the id of the following message
+    // as it shows its date, the unread marker by its special id as it appears at most once.
+    private static int[] getKeys(int[] list) {
+        int[] keys = new int[list.length];
+        int nextMsgId = 0;
+        for (int i = list.length - 1; i >= 0; i--) {
+            int id = list[i];
+            if (id > MrMsg.MR_MSG_ID_DAYMARKER) {
+                keys[i] = id;
+                nextMsgId = id;
+            } else if (id == MrMsg.MR_MSG_ID_DAYMARKER) {
+                keys[i] = nextMsgId != 0 ? -nextMsgId : Integer.MIN_VALUE + i;
+            } else {
+                keys[i] = id;
+            }
+        }
+        return keys;
+    }
+
+    private static boolean hasDuplicates(int[] sortedKeys) {
+        for (int i = 1; i < sortedKeys.length; i++) {
+            if (sortedKeys[i] == sortedKeys[i - 1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean contains(int[] sortedKeys, int key) {
+        return Arrays.binarySearch(sortedKeys, key) >= 0;
+    }
+
+    private void calculateOps(int[] oldKeys, int[] newKeys) {
+        int[] sortedOld = oldKeys.clone();
+        int[] sortedNew = newKeys.clone();
+        Arrays.sort(sortedOld);
+        Arrays.sort(sortedNew);
+        if (hasDuplicates(sortedOld) || hasDuplicates(sortedNew)) {
+            fullRefresh = true; // should not happen, however, the operations below rely on unique keys
+            return;
+        }
+
+        // remove the rows that are no longer present, from the end so that the positions stay valid
+        int[] curr = new int[oldKeys.length];
+        int currCount = 0;
+        int removeEnd = -1;
+        for (int i = oldKeys.length - 1; i >= -1; i--) {
+            boolean remove = i >= 0 && !contains(sortedNew, oldKeys[i]);
+            if (remove && removeEnd == -1) {
+                removeEnd = i;
+            } else if (!remove && removeEnd != -1) {
+                if (!addOp(OP_REMOVE, i + 1, removeEnd - i)) {
+                    return;
+                }
+                removeEnd = -1;
+            }
+        }
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (contains(sortedNew, oldKeys[i])) {
+                curr[currCount++] = oldKeys[i];
+            }
+        }
+
+        // insert new rows and move existing rows to their new positions;
+        // in chats, moves are rare (eg. after a correction of the sending time), so a simple approach is fine
+        curr = Arrays.copyOf(curr, newKeys.length);
+        int j = 0;
+        while (j < newKeys.length) {
+            int key = newKeys[j];
+            if (!contains(sortedOld, key)) {
+                int insertCount = 1;
+                while (j + insertCount < newKeys.length && !contains(sortedOld, newKeys[j + insertCount])) {
+                    insertCount++;
+                }
+                System.arraycopy(curr, j, curr, j + insertCount, currCount - j);
+                System.arraycopy(newKeys, j, curr, j, insertCount);
+                currCount += insertCount;
+                if (!addOp(OP_INSERT, j, insertCount)) {
+                    return;
+                }
+                j += insertCount;
+                continue;
+            }
+
+            if (curr[j] != key) {
+                int from = j + 1;
+                while (curr[from] != key) {
+                    from++;
+                }
+                System.arraycopy(curr, j, curr, j + 1, from - j);
+                curr[j] = key;
+                if (!addOp(OP_MOVE, from, j)) {
+                    return;
+                }
+            }
+
+            if (key == MrMsg.MR_MSG_ID_MARKER1) {
+                // the unread marker shows the number of new messages which may have changed
+                if (!addOp(OP_CHANGE, j, 0)) {
+                    return;
+                }
+            }
+            j++;
+        }
+    }
+
+    private boolean addOp(int type, int pos, int arg) {
+        if (opsCount >= MAX_OPS) {
+            fullRefresh = true;
+            return false;
+        }
+        if (opsCount*3 == ops.length) {
+            ops = Arrays.copyOf(ops, ops.length*2);
+        }
+        ops[opsCount*3] = type;
+        ops[opsCount*3+1] = pos;
+        ops[opsCount*3+2] = arg;
+        opsCount++;
+        return true;
+    }
+}
@@ -0,0 +1,170 @@
+/*******************************************************************************
+ *
+ *                              Delta Chat Android
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    MsgSearchController.java
+ * Purpose: Debounced, cancellable message search on Utilities.searchQueue;
+ *          a query extending the previous one is refined in memory
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import android.util.SparseArray;
+
+public class MsgSearchController {
+
+    public interface Delegate {
+        // called on the UI thread, only for the most recent query
+        void onSearchResult(String query, int[] msgIds);
+    }
+
+    private static final int DEBOUNCE_MS     = 250;
+    private static final int MAX_REFINE_MSGS = 500; // above this, a new scan in the backend is faster than loading the messages
+
+    private final int      chatId;
+    private final Delegate delegate;
+
+    // modified on the UI thread, read on the searchQueue to drop superseded queries
+    private volatile int generation;
+    private Runnable     pendingSearch;
+
+    // accessed on the searchQueue only
+    private String lastQuery;
+    private int[]  lastResult;
+
+    public MsgSearchController(int chatId, Delegate delegate) {
+        this.chatId = chatId;
+        this.delegate = delegate;
+    }
+
+    // to be called on the UI thread; set refine to false if the messages may have changed since the last search
+    public void search(final String query, final boolean refine) {
+        cancelPending();
+        final int gen = generation;
+
+        if (query == null || query.isEmpty()) {
+            Utilities.searchQueue.postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    lastQuery = null;
+                    lastResult = null;
+                }
+            });
+            delegate.onSearchResult("", new int[0]);
+            return;
+        }
+
+        pendingSearch = new Runnable() {
+            @Override
+            public void run() {
+                searchInBackground(gen, query, refine);
+            }
+        };
+        Utilities.searchQueue.postRunnable(pendingSearch, DEBOUNCE_MS);
+    }
+
+    // to be called on the UI thread; any result of a running search is dropped
+    public void cancel() {
+        cancelPending();
+    }
+
+    private void cancelPending() {
+        generation++;
+        if (pendingSearch != null) {
+            Utilities.searchQueue.cancelRunnable(pendingSearch);
+            pendingSearch = null;
+        }
+    }
+
+    private void searchInBackground(final int gen, final String query, boolean refine) {
+        if (gen != generation) {
+            return;
+        }
+
+        int[] result = null;
+        String queryLower = query.toLowerCase();
+        if (refine && lastResult != null && lastResult.length <= MAX_REFINE_MSGS
+         && queryLower.contains(lastQuery.toLowerCase())) {
+            // the backend matches substrings, so the result of a longer query is a subset of the previous result
+            result = refine(gen, lastResult, queryLower);
+        }
+
+        if (result == null) {
+            if (gen != generation) {
+                return;
+            }
+            if (chatId == 0) {
+                result = MsgSearchIndex.getInstance().search(query);
+            }
+            if (result == null) {
+                result = MrMailbox.searchMsgs(chatId, query);
+            }
+        }
+
+        lastQuery = query;
+        lastResult = result;
+
+        final int[] finalResult = result;
+        AndroidUtilities.runOnUIThread(new Runnable() {
+            @Override
+            public void run() {
+                if (gen == generation) {
+                    pendingSearch = null;
+                    delegate.onSearchResult(query, finalResult);
+                }
+            }
+        });
+    }
+
+    // returns null if the search was superseded in between
+    private int[] refine(int gen, int[] msgIds, String queryLower) {
+        int[] temp = new int[msgIds.length];
+        int cnt = 0;
+        SparseArray<String> names = new SparseArray<>();
+        for (int i = 0; i < msgIds.length; i++) {
+            if ((i & 31) == 0 && gen != generation) {
+                return null;
+            }
+            MrMsg msg = MrMailbox.getMsg(msgIds[i]);
+            String text = msg.getText();
+            boolean match = text != null && text.toLowerCase().contains(queryLower);
+            if (!match) {
+                // the backend also finds messages by the name of the sender
+                int fromId = msg.getFromId();
+                String name = names.get(fromId);
+                if (name == null) {
+                    name = MrMailbox.getContact(fromId).getName();
+                    name = name == null ? "" : name.toLowerCase();
+                    names.put(fromId, name);
+                }
+                match = name.contains(queryLower);
+            }
+            if (match) {
+                temp[cnt++] = msgIds[i];
+            }
+        }
+
+        int[] ret = new int[cnt];
+        System.arraycopy(temp, 0, ret, 0, cnt);
+        return ret;
+    }
+}
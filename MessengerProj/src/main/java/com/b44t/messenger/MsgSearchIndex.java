@@ -0,0 +1,571 @@
+/*******************************************************************************
+ *
+ *                              Delta Chat Android
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    MsgSearchIndex.java
+ * Purpose: In-memory inverted index over the message texts of all chats,
+ *          used to speed up the global message search
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+
+public class MsgSearchIndex {
+
+    private static final int RECONCILE_DELAY_MS  = 2000;
+    private static final int MIN_TOKEN_LENGTH    = 2;   // shorter queries match most messages anyway, the backend is used for them
+    private static final int MAX_VERIFY_MSGS     = 1000;
+    private static final int ADD_BATCH_SIZE      = 256;
+
+    private static final byte SCORE_NONE         = -1;
+    private static final byte SCORE_SUBSTRING    = 0;
+    private static final byte SCORE_WORD_PREFIX  = 1;
+    private static final byte SCORE_WORD         = 2;
+
+    private static class IntList {
+        int[] items = new int[4];
+        int   count;
+
+        void add(int value) {
+            if (count == items.length) {
+                items = Arrays.copyOf(items, count * 2);
+            }
+            items[count++] = value;
+        }
+    }
+
+    private static volatile MsgSearchIndex Instance = null;
+
+    public static MsgSearchIndex getInstance() {
+        MsgSearchIndex localInstance = Instance;
+        if (localInstance == null) {
+            synchronized (MsgSearchIndex.class) {
+                localInstance = Instance;
+                if (localInstance == null) {
+                    Instance = localInstance = new MsgSearchIndex();
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    private final DispatchQueue indexQueue = new DispatchQueue("searchIndexQueue");
+
+    // all members below are guarded by "this"; they're modified on the indexQueue only.
+    // the ids are sorted; the postings may contain ids of deleted messages, these are skipped as not in m_ids
+    private int[]                    m_ids = new int[0];
+    private int[]                    m_fromIds = new int[0];
+    private int                      m_count;
+    private HashMap<String, IntList> m_postings = new HashMap<>();
+    private ArrayList<String>        m_tokens = new ArrayList<>(); // the keys of m_postings, numbered in the order they were added
+    private SparseArray<IntList>     m_grams = new SparseArray<>(); // pair of chars to the numbers of the tokens containing it
+    private int                      m_postingsCount;
+    private int                      m_staleCount;
+    private SparseBooleanArray       m_removedIds = new SparseBooleanArray();
+    private SparseBooleanArray       m_chatIds = new SparseBooleanArray();
+    private SparseArray<String>      m_senderNames = new SparseArray<>();
+
+    // the index is not used until it is complete and as long as messages may have been deleted
+    private volatile boolean started;
+    private volatile boolean ready;
+    private volatile boolean dirty;
+
+    private final Runnable reconcileRunnable = new Runnable() {
+        @Override
+        public void run() {
+            reconcile();
+        }
+    };
+
+    private MsgSearchIndex() {
+        indexQueue.setPriority(Thread.MIN_PRIORITY);
+    }
+
+    // the index is built on the first global search; until then, it does not use any memory
+    public void start() {
+        if (!started) {
+            started = true;
+            dirty = true;
+            indexQueue.postRunnable(reconcileRunnable);
+        }
+    }
+
+    /* keep the index up to date, may be called from any thread
+     **********************************************************************************************/
+
+    public void onMsgsChanged(final int chatId, final int msgId) {
+        if (!started) {
+            return;
+        }
+        if (msgId <= MrMsg.MR_MSG_ID_DAYMARKER) {
+            // unspecific change, eg. messages or chats were deleted
+            scheduleReconcile();
+            return;
+        }
+        indexQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                boolean knownChat;
+                synchronized (MsgSearchIndex.this) {
+                    knownChat = m_chatIds.get(chatId);
+                }
+                if (!knownChat) {
+                    scheduleReconcile(); // a new chat or a message in the deaddrop
+                    return;
+                }
+                addMsgs(new int[]{msgId}, 1);
+            }
+        });
+    }
+
+    public void onContactsChanged() {
+        if (!started) {
+            return;
+        }
+        synchronized (this) {
+            m_senderNames.clear();
+        }
+        scheduleReconcile(); // contacts may have been blocked
+    }
+
+    private void scheduleReconcile() {
+        dirty = true;
+        indexQueue.cancelRunnable(reconcileRunnable);
+        indexQueue.postRunnable(reconcileRunnable, RECONCILE_DELAY_MS);
+    }
+
+    /* build the index, this is done on the indexQueue
+     **********************************************************************************************/
+
+    private void reconcile() {
+        long startTime = System.currentTimeMillis();
+        dirty = false;
+
+        // collect the ids of all messages that can be found by the global search
+        SparseBooleanArray chatIds = new SparseBooleanArray();
+        IntList currIds = new IntList();
+        collectMsgIds(MrMailbox.getChatlist(MrMailbox.MR_GCL_NO_SPECIALS, null, 0), chatIds, currIds);
+        collectMsgIds(MrMailbox.getChatlist(MrMailbox.MR_GCL_NO_SPECIALS|MrMailbox.MR_GCL_ARCHIVED_ONLY, null, 0), chatIds, currIds);
+        Arrays.sort(currIds.items, 0, currIds.count);
+
+        // compare with the index; a few deleted messages are just dropped from m_ids,
+        // if there are too many or if ids are reused, the index is rebuilt from scratch
+        IntList newIds = new IntList();
+        synchronized (this) {
+            m_chatIds = chatIds;
+            int removed = 0;
+            boolean reused = false;
+            for (int i = 0; i < m_count; i++) {
+                if (Arrays.binarySearch(currIds.items, 0, currIds.count, m_ids[i]) < 0) {
+                    removed++;
+                }
+            }
+            for (int i = 0; i < currIds.count; i++) {
+                int id = currIds.items[i];
+                if (Arrays.binarySearch(m_ids, 0, m_count, id) < 0) {
+                    newIds.add(id);
+                    if (m_removedIds.get(id)) {
+                        reused = true;
+                    }
+                }
+            }
+
+            if (reused || (m_staleCount + removed) * 4 > currIds.count) {
+                ready = false;
+                clear();
+                newIds = currIds;
+            }
+            else if (removed > 0) {
+                int[] ids = new int[m_ids.length];
+                int[] fromIds = new int[m_ids.length];
+                int cnt = 0;
+                for (int i = 0; i < m_count; i++) {
+                    if (Arrays.binarySearch(currIds.items, 0, currIds.count, m_ids[i]) >= 0) {
+                        ids[cnt] = m_ids[i];
+                        fromIds[cnt] = m_fromIds[i];
+                        cnt++;
+                    } else {
+                        m_removedIds.put(m_ids[i], true);
+                    }
+                }
+                m_ids = ids;
+                m_fromIds = fromIds;
+                m_count = cnt;
+                m_staleCount += removed;
+            }
+        }
+
+        if (!addMsgs(newIds.items, newIds.count)) {
+            return; // changed again in between, another reconcile is scheduled
+        }
+
+        if (!dirty) {
+            ready = true;
+        }
+
+        synchronized (this) {
+            Log.i("DeltaChat", String.format(Locale.US, "Search index: %d msgs (%d new), %d tokens, %d postings (~%d KB), %d ms.",
+                    m_count, newIds.count, m_postings.size(), m_postingsCount, (m_postingsCount*4 + m_count*8) / 1024,
+                    System.currentTimeMillis() - startTime));
+        }
+    }
+
+    private static void collectMsgIds(MrChatlist chatlist, SparseBooleanArray chatIds, IntList msgIds) {
+        int cnt = chatlist.getCnt();
+        for (int i = 0; i < cnt; i++) {
+            int chatId = chatlist.getChatByIndex(i).getId();
+            if (chatId > MrChat.MR_CHAT_ID_LAST_SPECIAL && !chatIds.get(chatId)) {
+                chatIds.put(chatId, true);
+                int[] ids = MrMailbox.getChatMsgs(chatId, 0, 0);
+                for (int id : ids) {
+                    if (id > MrMsg.MR_MSG_ID_DAYMARKER) {
+                        msgIds.add(id);
+                    }
+                }
+            }
+        }
+    }
+
+    private void clear() {
+        m_ids = new int[0];
+        m_fromIds = new int[0];
+        m_count = 0;
+        m_postings = new HashMap<>();
+        m_tokens = new ArrayList<>();
+        m_grams = new SparseArray<>();
+        m_postingsCount = 0;
+        m_staleCount = 0;
+        m_removedIds.clear();
+        m_senderNames.clear();
+    }
+
+    // the messages are loaded without holding the lock and added in batches; returns false if aborted
+    private boolean addMsgs(int[] msgIds, int msgCount) {
+        ArrayList<HashSet<String>> tokens = new ArrayList<>(ADD_BATCH_SIZE);
+        int[] fromIds = new int[ADD_BATCH_SIZE];
+        for (int start = 0; start < msgCount; start += ADD_BATCH_SIZE) {
+            if (ready && dirty) {
+                return false;
+            }
+
+            int end = Math.min(start + ADD_BATCH_SIZE, msgCount);
+            tokens.clear();
+            for (int i = start; i < end; i++) {
+                MrMsg msg = MrMailbox.getMsg(msgIds[i]);
+                HashSet<String> msgTokens = new HashSet<>();
+                String text = msg.getText();
+                if (text != null) {
+                    tokenize(text.toLowerCase(Locale.ROOT), msgTokens);
+                }
+                tokens.add(msgTokens);
+                fromIds[i - start] = msg.getFromId();
+            }
+
+            synchronized (this) {
+                for (int i = start; i < end; i++) {
+                    int id = msgIds[i];
+                    int pos = Arrays.binarySearch(m_ids, 0, m_count, id);
+                    if (pos >= 0) {
+                        continue; // already indexed
+                    }
+                    insertId(-pos - 1, id, fromIds[i - start]);
+                    for (String token : tokens.get(i - start)) {
+                        IntList postings = m_postings.get(token);
+                        if (postings == null) {
+                            postings = new IntList();
+                            m_postings.put(token, postings);
+                            addTokenGrams(token);
+                        }
+                        postings.add(id);
+                        m_postingsCount++;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    // must be called with the lock held
+    private void addTokenGrams(String token) {
+        int tokenNumber = m_tokens.size();
+        m_tokens.add(token);
+        for (int i = 0; i + 1 < token.length(); i++) {
+            int gram = getGram(token, i);
+            IntList tokenNumbers = m_grams.get(gram);
+            if (tokenNumbers == null) {
+                tokenNumbers = new IntList();
+                m_grams.put(gram, tokenNumbers);
+            }
+            if (tokenNumbers.count == 0 || tokenNumbers.items[tokenNumbers.count - 1] != tokenNumber) {
+                tokenNumbers.add(tokenNumber); // a token may contain a pair of chars several times
+            }
+        }
+    }
+
+    private static int getGram(String str, int index) {
+        return (str.charAt(index) << 16) | str.charAt(index + 1);
+    }
+
+    private void insertId(int pos, int id, int fromId) {
+        if (m_count == m_ids.length) {
+            int newLength = Math.max(64, m_count + m_count / 2);
+            m_ids = Arrays.copyOf(m_ids, newLength);
+            m_fromIds = Arrays.copyOf(m_fromIds, newLength);
+        }
+        if (pos < m_count) {
+            // new messages usually have the highest id, so this is the exception
+            System.arraycopy(m_ids, pos, m_ids, pos + 1, m_count - pos);
+            System.arraycopy(m_fromIds, pos, m_fromIds, pos + 1, m_count - pos);
+        }
+        m_ids[pos] = id;
+        m_fromIds[pos] = fromId;
+        m_count++;
+    }
+
+    private static void tokenize(String textLower, HashSet<String> ret) {
+        int start = -1;
+        int len = textLower.length();
+        for (int i = 0; i < len; i++) {
+            if (Character.isLetterOrDigit(textLower.charAt(i))) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                ret.add(textLower.substring(start, i));
+                start = -1;
+            }
+        }
+        if (start >= 0) {
+            ret.add(textLower.substring(start));
+        }
+    }
+
+    /* search, may be called from any thread
+     **********************************************************************************************/
+
+    // returns the ids of the matching messages, best matches and newest messages first;
+    // returns null if the index cannot be used for the query, the caller should use MrMailbox.searchMsgs() then
+    public int[] search(String query) {
+        if (!ready || dirty || query == null) {
+            return null;
+        }
+
+        String queryLower = query.toLowerCase(Locale.ROOT);
+        HashSet<String> queryTokenSet = new HashSet<>();
+        tokenize(queryLower, queryTokenSet);
+        ArrayList<String> queryTokens = new ArrayList<>();
+        for (String token : queryTokenSet) {
+            if (token.length() >= MIN_TOKEN_LENGTH) {
+                queryTokens.add(token);
+            }
+        }
+        if (queryTokens.isEmpty()) {
+            return null;
+        }
+        // a query that is a single word matches exactly the messages containing a word with the query as a substring;
+        // for other queries, the words only select the candidates that are checked against the message text
+        boolean exact = queryTokens.size() == 1 && queryTokens.get(0).equals(queryLower);
+
+        // only the matching postings are copied while holding the lock, they are scored afterwards
+        int[] ids;
+        int[] fromIds;
+        ArrayList<ArrayList<int[]>> postingsByToken = new ArrayList<>();
+        ArrayList<byte[]> postingScoresByToken = new ArrayList<>();
+        synchronized (this) {
+            ids = Arrays.copyOf(m_ids, m_count);
+            fromIds = Arrays.copyOf(m_fromIds, m_count);
+            for (String queryToken : queryTokens) {
+                ArrayList<int[]> postings = new ArrayList<>();
+                postingScoresByToken.add(collectPostings(queryToken, postings));
+                postingsByToken.add(postings);
+            }
+        }
+
+        byte[] scores = null;
+        for (int t = 0; t < postingsByToken.size(); t++) {
+            byte[] tokenScores = scorePostings(ids, postingsByToken.get(t), postingScoresByToken.get(t));
+            if (scores == null) {
+                scores = tokenScores;
+            } else {
+                for (int i = 0; i < ids.length; i++) {
+                    scores[i] = (byte) Math.min(scores[i], tokenScores[i]);
+                }
+            }
+        }
+
+        // the backend also finds messages by the name of the sender
+        boolean[] bySender = null;
+        SparseBooleanArray matchingSenders = getMatchingSenders(fromIds, queryLower);
+        if (matchingSenders.size() > 0) {
+            bySender = new boolean[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                bySender[i] = matchingSenders.get(fromIds[i]);
+            }
+        }
+
+        // collect the result as score|id, so that a single sort gives the order
+        long[] temp = new long[ids.length];
+        int cnt = 0;
+        IntList toVerify = new IntList();
+        for (int i = 0; i < ids.length; i++) {
+            if (bySender != null && bySender[i]) {
+                temp[cnt++] = ((long) Math.max(scores[i], SCORE_SUBSTRING) << 32) | ids[i];
+            } else if (scores[i] != SCORE_NONE) {
+                if (exact) {
+                    temp[cnt++] = ((long) scores[i] << 32) | ids[i];
+                } else {
+                    if (toVerify.count >= MAX_VERIFY_MSGS) {
+                        return null;
+                    }
+                    toVerify.add(i);
+                }
+            }
+        }
+
+        for (int v = 0; v < toVerify.count; v++) {
+            int i = toVerify.items[v];
+            String text = MrMailbox.getMsg(ids[i]).getText();
+            if (text != null && text.toLowerCase(Locale.ROOT).contains(queryLower)) {
+                temp[cnt++] = ((long) scores[i] << 32) | ids[i];
+            }
+        }
+
+        Arrays.sort(temp, 0, cnt);
+        int[] ret = new int[cnt];
+        for (int i = 0; i < cnt; i++) {
+            ret[i] = (int) temp[cnt - 1 - i];
+        }
+        return ret;
+    }
+
+    // the postings of all tokens containing the query token, found by the rarest pair of chars of the query token;
+    // returns the score of each of the postings. must be called with the lock held
+    private byte[] collectPostings(String queryToken, ArrayList<int[]> retPostings) {
+        IntList candidates = null;
+        for (int i = 0; i + 1 < queryToken.length(); i++) {
+            IntList tokenNumbers = m_grams.get(getGram(queryToken, i));
+            if (tokenNumbers == null) {
+                return new byte[0]; // no token contains this pair of chars
+            }
+            if (candidates == null || tokenNumbers.count < candidates.count) {
+                candidates = tokenNumbers;
+            }
+        }
+        if (candidates == null) {
+            return new byte[0];
+        }
+
+        byte[] scores = new byte[candidates.count];
+        for (int c = 0; c < candidates.count; c++) {
+            String token = m_tokens.get(candidates.items[c]);
+            if (!token.contains(queryToken)) {
+                continue;
+            }
+            IntList postings = m_postings.get(token);
+            scores[retPostings.size()] = token.equals(queryToken) ? SCORE_WORD : (token.startsWith(queryToken) ? SCORE_WORD_PREFIX : SCORE_SUBSTRING);
+            retPostings.add(Arrays.copyOf(postings.items, postings.count));
+        }
+        return scores;
+    }
+
+    // returns the best score of each message in ids; the postings are merged as id|score, sorted, with the sorted ids
+    private static byte[] scorePostings(int[] ids, ArrayList<int[]> postings, byte[] postingScores) {
+        byte[] scores = new byte[ids.length];
+        Arrays.fill(scores, SCORE_NONE);
+        int total = 0;
+        for (int[] p : postings) {
+            total += p.length;
+        }
+        long[] entries = new long[total];
+        int cnt = 0;
+        for (int t = 0; t < postings.size(); t++) {
+            for (int id : postings.get(t)) {
+                entries[cnt++] = ((long) id << 8) | postingScores[t];
+            }
+        }
+        Arrays.sort(entries);
+        int pos = 0;
+        for (int e = 0; e < cnt && pos < ids.length; e++) {
+            int id = (int) (entries[e] >> 8);
+            while (pos < ids.length && ids[pos] < id) {
+                pos++;
+            }
+            if (pos < ids.length && ids[pos] == id) {
+                byte score = (byte) (entries[e] & 0xFF);
+                if (scores[pos] < score) {
+                    scores[pos] = score;
+                }
+            }
+        }
+        return scores;
+    }
+
+    // the names of unknown senders are loaded without holding the lock
+    private SparseBooleanArray getMatchingSenders(int[] fromIds, String queryLower) {
+        SparseBooleanArray ret = new SparseBooleanArray();
+        SparseArray<String> names = new SparseArray<>();
+        IntList unknown = new IntList();
+        synchronized (this) {
+            for (int fromId : fromIds) {
+                if (names.indexOfKey(fromId) >= 0) {
+                    continue;
+                }
+                String name = m_senderNames.get(fromId);
+                names.put(fromId, name);
+                if (name == null) {
+                    unknown.add(fromId);
+                }
+            }
+        }
+
+        if (unknown.count > 0) {
+            String[] loaded = new String[unknown.count];
+            for (int u = 0; u < unknown.count; u++) {
+                String name = MrMailbox.getContact(unknown.items[u]).getName();
+                loaded[u] = name == null ? "" : name.toLowerCase(Locale.ROOT);
+                names.put(unknown.items[u], loaded[u]);
+            }
+            synchronized (this) {
+                for (int u = 0; u < unknown.count; u++) {
+                    m_senderNames.put(unknown.items[u], loaded[u]);
+                }
+            }
+        }
+
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.valueAt(i);
+            if (!name.isEmpty() && name.contains(queryLower)) {
+                ret.put(names.keyAt(i), true);
+            }
+        }
+        return ret;
+    }
+}
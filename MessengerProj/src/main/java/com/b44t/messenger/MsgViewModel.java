@@ -0,0 +1,255 @@
+/*******************************************************************************
+ *
+ *                              Delta Chat Android
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    MsgViewModel.java
+ * Purpose: Immutable snapshot of a message as needed for displaying it,
+ *          read once from the backend
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+public final class MsgViewModel {
+
+    // creates or finds the preview of a video message, see MediaController.getVideoThumb()
+    public interface ThumbProvider {
+        TLRPC.PhotoSize getVideoThumb(MsgViewModel msg);
+    }
+
+    public final int     id;
+    public final int     chatId;
+    public final int     fromId;
+    public final long    timestamp;
+    public final int     type;        // one of MrMsg.MR_MSG_*
+    public final int     state;       // one of MrMsg.MR_IN_* or MrMsg.MR_OUT_*
+    public final String  text;
+
+    public final int     width;       // 0 if unknown
+    public final int     height;      // 0 if unknown
+    public final int     duration;    // in milliseconds, 0 if unknown
+    public final int     bytes;
+    public final String  path;        // never null, empty if the message has no file
+    public final String  mime;
+    public final String  filename;
+
+    public final boolean showPadlock;
+    public final boolean forwarded;
+    public final boolean setupMessage;
+    public final boolean increation;
+    public final boolean groupChat;   // the message belongs to a group, the avatar and the name of the sender are shown then
+
+    private final ThumbProvider thumbs; // may be null, video messages are shown without preview then
+
+    public MsgViewModel(MrMsg mrMsg, MrChat mrChat, ThumbProvider thumbs) {
+        id           = mrMsg.getId();
+        chatId       = mrMsg.getChatId();
+        fromId       = mrMsg.getFromId();
+        timestamp    = mrMsg.getTimestamp();
+        type         = mrMsg.getType();
+        state        = mrMsg.getState();
+        text         = type==MrMsg.MR_MSG_TEXT? mrMsg.getText() : null;
+        width        = mrMsg.getWidth(0);
+        height       = mrMsg.getHeight(0);
+        duration     = mrMsg.getDuration();
+        showPadlock  = mrMsg.showPadlock()!=0;
+        forwarded    = mrMsg.isForwarded();
+        setupMessage = mrMsg.isSetupMessage();
+        groupChat    = mrChat.isGroup();
+        this.thumbs  = thumbs;
+
+        if( hasFileType(type) ) {
+            String file = mrMsg.getFile();
+            path       = file==null? "" : file;
+            bytes      = mrMsg.getBytes();
+            mime       = mrMsg.getFilemime();
+            filename   = mrMsg.getFilename();
+            increation = mrMsg.isIncreation();
+        }
+        else {
+            path       = "";
+            bytes      = 0;
+            mime       = null;
+            filename   = null;
+            increation = false;
+        }
+    }
+
+    public static MsgViewModel load(int msgId, MrChat mrChat, ThumbProvider thumbs) {
+        return new MsgViewModel(MrMailbox.getMsg(msgId), mrChat, thumbs);
+    }
+
+    private static boolean hasFileType(int type) {
+        return type == MrMsg.MR_MSG_IMAGE || type == MrMsg.MR_MSG_GIF || type == MrMsg.MR_MSG_AUDIO
+            || type == MrMsg.MR_MSG_VOICE || type == MrMsg.MR_MSG_VIDEO || type == MrMsg.MR_MSG_FILE;
+    }
+
+    public boolean isOutgoing() {
+        return fromId == MrContact.MR_CONTACT_ID_SELF;
+    }
+
+    public boolean isUnread() {
+        return state != MrMsg.MR_OUT_MDN_RCVD;
+    }
+
+    public int getSendState() {
+        return MrMsg.state2SendState(state);
+    }
+
+    public int getWidth(int def) {
+        return width > 0? width : def;
+    }
+
+    public int getHeight(int def) {
+        return height > 0? height : def;
+    }
+
+    public boolean hasFile() {
+        return !path.isEmpty();
+    }
+
+
+    /* the message in the form the drawing code shared with the original Telegram sources expects;
+    only the objects really needed by the given message type are allocated; without media, only the
+    message itself is created, which is enough for the notifications.
+     **********************************************************************************************/
+
+    TLRPC.Message toTLRPC(boolean withMedia)
+    {
+        TLRPC.Message ret = new TLRPC.TL_message(); // the class derived from TLRPC.Message defines the basic type:
+        //  TLRPC.TL_messageService is used to display messages as "You joined the group"
+        //  TLRPC.TL_message is a normal message (also photos?)
+
+        ret.send_state    = getSendState();
+        ret.id            = id;
+        ret.from_id       = fromId;
+        ret.date          = (int)timestamp;
+        ret.dialog_id     = chatId;
+        ret.unread        = isUnread(); // the state of outgoing messages
+        ret.media_unread  = ret.unread;
+        ret.flags         = forwarded? TLRPC.MESSAGE_FLAG_FWD : 0;
+        ret.out           = isOutgoing(); // true=outgoing message, read eg. in MessageObject.isOutOwner()
+        ret.created_by_mr = true;
+        ret.show_padlock  = showPadlock;
+        ret.is_setup_message = setupMessage;
+        ret.colored_text  = setupMessage;
+
+        if( type == MrMsg.MR_MSG_TEXT ) {
+            ret.message = text;
+        }
+        else if( !withMedia ) {
+            ret.message = "-1";
+        }
+        else if( type == MrMsg.MR_MSG_FILE && setupMessage )
+        {
+            ret.message = ApplicationLoader.applicationContext.getString(R.string.AutocryptSetupMessageTapBody);
+        }
+        else if( type == MrMsg.MR_MSG_IMAGE ) {
+            if( hasFile() ) {
+                TLRPC.TL_photoSize photoSize = new TLRPC.TL_photoSize();
+                photoSize.w = getWidth(800);
+                photoSize.h = getHeight(800);
+                photoSize.size = 0; // not sure what to use here, maybe `bytes`?
+                photoSize.location = createFileLocation(path, id);
+                if (photoSize.w <= 100 && photoSize.h <= 100) {
+                    photoSize.type = "s";
+                } else if (photoSize.w <= 320 && photoSize.h <= 320) {
+                    photoSize.type = "m";
+                } else if (photoSize.w <= 800 && photoSize.h <= 800) {
+                    photoSize.type = "x";
+                } else if (photoSize.w <= 1280 && photoSize.h <= 1280) {
+                    photoSize.type = "y";
+                } else {
+                    photoSize.type = "w";
+                }
+                TLRPC.TL_photo photo = new TLRPC.TL_photo();
+                photo.sizes.add(photoSize);
+
+                ret.message = "-1";
+                ret.media = new TLRPC.TL_messageMediaPhoto();
+                ret.media.photo = photo;
+                ret.attachPath = path; // ret.attachPathExists set later in MessageObject.checkMediaExistance()
+            }
+            else {
+                ret.message = "<cannot load image>";
+            }
+        }
+        else if( hasFileType(type) ) {
+            if( hasFile() ) {
+                ret.message = "-1"; // may be misused for video editing information
+                ret.media = new TLRPC.TL_messageMediaDocument();
+                ret.media.caption = "";
+                ret.media.document = new TLRPC.TL_document();
+                ret.media.document.file_name = filename;
+                ret.media.document.mr_path = path;
+                ret.media.document.size = bytes;
+                if( type == MrMsg.MR_MSG_GIF ) {
+                    ret.media.document.mime_type = mime;
+                    ret.media.document.thumb = createThumb(path, getWidth(320), getHeight(240));
+                }
+                else if( type == MrMsg.MR_MSG_AUDIO || type == MrMsg.MR_MSG_VOICE ) {
+                    TLRPC.TL_documentAttributeAudio attr = new TLRPC.TL_documentAttributeAudio();
+                    attr.voice = type == MrMsg.MR_MSG_VOICE;
+                    attr.duration = duration / 1000;
+                    ret.media.document.attributes.add(attr);
+                }
+                else if( type == MrMsg.MR_MSG_VIDEO ) {
+                    ret.media.document.thumb = thumbs!=null? thumbs.getVideoThumb(this) : null;
+
+                    TLRPC.TL_documentAttributeVideo attr = new TLRPC.TL_documentAttributeVideo();
+                    attr.duration = duration / 1000;
+                    attr.w = getWidth(320);
+                    attr.h = getHeight(240);
+                    ret.media.document.attributes.add(attr);
+                }
+                else {
+                    ret.media.document.mime_type = mime;
+                }
+            }
+            else {
+                ret.message = "<file path missing>";
+            }
+        }
+        else {
+            ret.message = String.format("<unsupported message type #%d for id #%d>", type, id);
+        }
+
+        return ret;
+    }
+
+    // also used by ImageLoader.prefetchMsgImages() to get the key the photo is cached under
+    static TLRPC.TL_fileLocation createFileLocation(String path, int msgId) {
+        TLRPC.TL_fileLocation location = new TLRPC.TL_fileLocation();
+        location.mr_path = path;
+        location.local_id = -msgId; // this forces the document to be searched in the cache dir
+        return location;
+    }
+
+    // also used by the ThumbProvider to wrap the preview it has found
+    TLRPC.PhotoSize createThumb(String thumbPath, int w, int h) {
+        TLRPC.PhotoSize size = new TLRPC.PhotoSize();
+        size.location = createFileLocation(thumbPath, id);
+        size.w = w;
+        size.h = h;
+        size.type = "s";
+        return size;
+    }
+}
@@ -25,7 +25,7 @@ package com.b44t.messenger;
 
 import android.util.SparseArray;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 
 public class NotificationCenter {
 
@@ -76,29 +76,35 @@ public class NotificationCenter {
     public static final int audioDidStarted = totalEvents++;
     public static final int audioRouteChanged = totalEvents++;
 
-    private SparseArray<ArrayList<Object>> observers = new SparseArray<>();
-    private SparseArray<ArrayList<Object>> removeAfterBroadcast = new SparseArray<>();
-    private SparseArray<ArrayList<Object>> addAfterBroadcast = new SparseArray<>();
-    private ArrayList<DelayedPost> delayedPosts = new ArrayList<>(10);
+    // the observer arrays are never modified but replaced, so a broadcast can iterate over them
+    // while observers are added or removed
+    private SparseArray<NotificationCenterDelegate[]> observers = new SparseArray<>();
+    private static final NotificationCenterDelegate[] NO_OBSERVERS = new NotificationCenterDelegate[0];
 
-    private int broadcasting = 0;
     private boolean animationInProgress;
+    private final long[] allowedNotifications = new long[(totalEvents + 63) / 64]; // bitset of the ids allowed during animations
 
-    private int[] allowedNotifications;
+    // the posts delayed during animations; the records are reused, two arrays are swapped while the posts are sent
+    private DelayedPost[] delayedPosts = new DelayedPost[16];
+    private DelayedPost[] sparePosts = new DelayedPost[16];
+    private int delayedCount;
 
     public interface NotificationCenterDelegate {
         void didReceivedNotification(int id, Object... args);
     }
 
-    private class DelayedPost {
-
-        private DelayedPost(int id, Object[] args) {
-            this.id = id;
-            this.args = args;
-        }
+    // observers implementing this additionally get the notifications posted with int arguments
+    // without boxing; unused arguments are 0.  If false is returned, the notification is passed to
+    // didReceivedNotification() then.
+    public interface IntNotificationDelegate {
+        boolean didReceivedIntNotification(int id, int arg0, int arg1, int arg2);
+    }
 
-        private int id;
-        private Object[] args;
+    private static class DelayedPost {
+        int      id;
+        Object[] args;     // null for posts with int arguments
+        int      argCount;
+        int      arg0, arg1, arg2;
     }
 
     private static volatile NotificationCenter Instance = null;
@@ -117,30 +123,104 @@ public class NotificationCenter {
     }
 
     public void setAllowedNotificationsDutingAnimation(int notifications[]) {
-        allowedNotifications = notifications;
+        Arrays.fill(allowedNotifications, 0);
+        if (notifications != null) {
+            for (int id : notifications) {
+                allowedNotifications[id >> 6] |= 1L << (id & 63);
+            }
+        }
+    }
+
+    private boolean isAllowedDuringAnimation(int id) {
+        return (allowedNotifications[id >> 6] & (1L << (id & 63))) != 0;
     }
 
     public void setAnimationInProgress(boolean value) {
         animationInProgress = value;
-        if (!animationInProgress && !delayedPosts.isEmpty()) {
-            for (DelayedPost delayedPost : delayedPosts) {
-                postNotificationNameInternal(delayedPost.id, true, delayedPost.args);
+        if (!animationInProgress && delayedCount > 0) {
+            DelayedPost[] posts = delayedPosts;
+            int count = delayedCount;
+            delayedPosts = sparePosts != null ? sparePosts : new DelayedPost[posts.length];
+            sparePosts = null;
+            delayedCount = 0;
+            for (int a = 0; a < count; a++) {
+                DelayedPost post = posts[a];
+                if (post.args != null) {
+                    postNotificationNameInternal(post.id, true, post.args);
+                    post.args = null;
+                } else {
+                    postIntNotificationInternal(post.id, true, post.argCount, post.arg0, post.arg1, post.arg2);
+                }
             }
-            delayedPosts.clear();
+            sparePosts = posts;
         }
     }
 
-    public void postNotificationName(int id, Object... args) {
-        boolean allowDuringAnimation = false;
-        if (allowedNotifications != null) {
-            for (int a = 0; a < allowedNotifications.length; a++) {
-                if (allowedNotifications[a] == id) {
-                    allowDuringAnimation = true;
-                    break;
-                }
+    private DelayedPost obtainDelayedPost() {
+        if (delayedCount == delayedPosts.length) {
+            delayedPosts = Arrays.copyOf(delayedPosts, delayedCount * 2);
+        }
+        DelayedPost post = delayedPosts[delayedCount];
+        if (post == null) {
+            post = delayedPosts[delayedCount] = new DelayedPost();
+        }
+        delayedCount++;
+        return post;
+    }
+
+
+    /* posting with int arguments, this does not allocate anything unless an observer does not
+     * implement IntNotificationDelegate; to be used for frequent events
+     **********************************************************************************************/
+
+    public void postNotification(int id) {
+        postIntNotificationInternal(id, isAllowedDuringAnimation(id), 0, 0, 0, 0);
+    }
+
+    public void postNotification(int id, int arg0) {
+        postIntNotificationInternal(id, isAllowedDuringAnimation(id), 1, arg0, 0, 0);
+    }
+
+    public void postNotification(int id, int arg0, int arg1) {
+        postIntNotificationInternal(id, isAllowedDuringAnimation(id), 2, arg0, arg1, 0);
+    }
+
+    public void postNotification(int id, int arg0, int arg1, int arg2) {
+        postIntNotificationInternal(id, isAllowedDuringAnimation(id), 3, arg0, arg1, arg2);
+    }
+
+    private void postIntNotificationInternal(int id, boolean allowDuringAnimation, int argCount, int arg0, int arg1, int arg2) {
+        if (!allowDuringAnimation && animationInProgress) {
+            DelayedPost post = obtainDelayedPost();
+            post.id = id;
+            post.argCount = argCount;
+            post.arg0 = arg0;
+            post.arg1 = arg1;
+            post.arg2 = arg2;
+            return;
+        }
+        NotificationCenterDelegate[] objects = getObservers(id);
+        Object[] args = null;
+        for (NotificationCenterDelegate obj : objects) {
+            if (obj instanceof IntNotificationDelegate && ((IntNotificationDelegate) obj).didReceivedIntNotification(id, arg0, arg1, arg2)) {
+                continue;
             }
+            if (args == null) {
+                args = new Object[argCount];
+                if (argCount > 0) { args[0] = arg0; }
+                if (argCount > 1) { args[1] = arg1; }
+                if (argCount > 2) { args[2] = arg2; }
+            }
+            obj.didReceivedNotification(id, args);
         }
-        postNotificationNameInternal(id, allowDuringAnimation, args);
+    }
+
+
+    /* posting with any arguments
+     **********************************************************************************************/
+
+    public void postNotificationName(int id, Object... args) {
+        postNotificationNameInternal(id, isAllowedDuringAnimation(id), args);
     }
 
     public void postNotificationNameInternal(int id, boolean allowDuringAnimation, Object... args) {
@@ -151,69 +231,44 @@ public class NotificationCenter {
         }*/
 
         if (!allowDuringAnimation && animationInProgress) {
-            DelayedPost delayedPost = new DelayedPost(id, args);
-            delayedPosts.add(delayedPost);
+            DelayedPost post = obtainDelayedPost();
+            post.id = id;
+            post.args = args;
             /*if (BuildConfig.BUILD_TYPE.equals("debug")) {
                 Log.i("DeltaChat", "delay post notification " + id + " with args count = " + args.length);
             }*/
             return;
         }
-        broadcasting++;
-        ArrayList<Object> objects = observers.get(id);
-        if (objects != null && !objects.isEmpty()) {
-            for (int a = 0; a < objects.size(); a++) {
-                Object obj = objects.get(a);
-                ((NotificationCenterDelegate) obj).didReceivedNotification(id, args);
-            }
-        }
-        broadcasting--;
-        if (broadcasting == 0) {
-            if (removeAfterBroadcast.size() != 0) {
-                for (int a = 0; a < removeAfterBroadcast.size(); a++) {
-                    int key = removeAfterBroadcast.keyAt(a);
-                    ArrayList<Object> arrayList = removeAfterBroadcast.get(key);
-                    for (int b = 0; b < arrayList.size(); b++) {
-                        removeObserver(arrayList.get(b), key);
-                    }
-                }
-                removeAfterBroadcast.clear();
-            }
-            if (addAfterBroadcast.size() != 0) {
-                for (int a = 0; a < addAfterBroadcast.size(); a++) {
-                    int key = addAfterBroadcast.keyAt(a);
-                    ArrayList<Object> arrayList = addAfterBroadcast.get(key);
-                    for (int b = 0; b < arrayList.size(); b++) {
-                        addObserver(arrayList.get(b), key);
-                    }
-                }
-                addAfterBroadcast.clear();
-            }
+        NotificationCenterDelegate[] objects = getObservers(id);
+        for (NotificationCenterDelegate obj : objects) {
+            obj.didReceivedNotification(id, args);
         }
     }
 
+
+    /* observers
+     **********************************************************************************************/
+
+    private NotificationCenterDelegate[] getObservers(int id) {
+        NotificationCenterDelegate[] objects = observers.get(id);
+        return objects != null ? objects : NO_OBSERVERS;
+    }
+
     public void addObserver(Object observer, int id) {
         /*if (BuildConfig.BUILD_TYPE.equals("debug")) {
             if (Thread.currentThread() != ApplicationLoader.applicationHandler.getLooper().getThread()) {
                 throw new RuntimeException("addObserver allowed only from MAIN thread");
             }
         }*/
-        if (broadcasting != 0) {
-            ArrayList<Object> arrayList = addAfterBroadcast.get(id);
-            if (arrayList == null) {
-                arrayList = new ArrayList<>();
-                addAfterBroadcast.put(id, arrayList);
+        NotificationCenterDelegate[] objects = getObservers(id);
+        for (NotificationCenterDelegate obj : objects) {
+            if (obj == observer) {
+                return;
             }
-            arrayList.add(observer);
-            return;
         }
-        ArrayList<Object> objects = observers.get(id);
-        if (objects == null) {
-            observers.put(id, (objects = new ArrayList<>()));
-        }
-        if (objects.contains(observer)) {
-            return;
-        }
-        objects.add(observer);
+        objects = Arrays.copyOf(objects, objects.length + 1);
+        objects[objects.length - 1] = (NotificationCenterDelegate) observer;
+        observers.put(id, objects);
     }
 
     public void removeObserver(Object observer, int id) {
@@ -222,18 +277,19 @@ public class NotificationCenter {
                 throw new RuntimeException("removeObserver allowed only from MAIN thread");
             }
         }*/
-        if (broadcasting != 0) {
-            ArrayList<Object> arrayList = removeAfterBroadcast.get(id);
-            if (arrayList == null) {
-                arrayList = new ArrayList<>();
-                removeAfterBroadcast.put(id, arrayList);
+        NotificationCenterDelegate[] objects = getObservers(id);
+        for (int a = 0; a < objects.length; a++) {
+            if (objects[a] == observer) {
+                NotificationCenterDelegate[] newObjects = new NotificationCenterDelegate[objects.length - 1];
+                System.arraycopy(objects, 0, newObjects, 0, a);
+                System.arraycopy(objects, a + 1, newObjects, a, objects.length - a - 1);
+                if (newObjects.length == 0) {
+                    observers.remove(id);
+                } else {
+                    observers.put(id, newObjects);
+                }
+                return;
             }
-            arrayList.add(observer);
-            return;
-        }
-        ArrayList<Object> objects = observers.get(id);
-        if (objects != null) {
-            objects.remove(observer);
         }
     }
 }
@@ -405,18 +405,18 @@ public class NotificationsController {
                 boolean value = !((!preferences.getBoolean("EnableAll", true) || isGroupChat && !preferences.getBoolean("EnableGroup", true)) && notifyOverride == 0);
 
                 if (value) {
-                    MrMsg mrMsg = MrMailbox.getMsg(msg_id);
-                    if (mrMsg.getId() == 0 || mrMsg.getFromId() == MrContact.MR_CONTACT_ID_SELF) {
+                    MsgViewModel msg = MsgViewModel.load(msg_id, mrChat, null); // no media, so no preview needed
+                    if (msg.id == 0 || msg.fromId == MrContact.MR_CONTACT_ID_SELF) {
                         return;
                     }
-                    TLRPC.Message tmsg = mrMsg.get_TLRPC_Message();
-                    MessageObject msgDrawObj = new MessageObject(tmsg, true);
+                    // the notification texts are created from the summary, so no layout is needed
+                    MessageObject msgDrawObj = new MessageObject(msg, false, false);
 
                     delayedPushMessages.add(msgDrawObj);
                     pushMessages.add(0, msgDrawObj);
                     pushMessagesDict.put((long) msg_id, msgDrawObj);
 
-                    int chat_id = mrMsg.getChatId();
+                    int chat_id = msg.chatId;
                     int old_cnt = pushDialogs.get(chat_id)==null? 0 : pushDialogs.get(chat_id);
                     pushDialogs.put(chat_id, old_cnt+1);
                     total_unread_count++;
@@ -76,6 +76,7 @@ import com.b44t.messenger.Components.SizeNotifierFrameLayoutPhoto;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -2387,6 +2388,7 @@ public class PhotoViewer implements NotificationCenter.NotificationCenterDelegat
                 menuItem.showSubItem(gallery_menu_save);
                 menuItem.showSubItem(gallery_menu_share);
             }
+            prefetchImages(prevIndex);
         } else if (!imagesArrLocations.isEmpty()) {
             nameTextView.setText("");
             dateTextView.setText("");
@@ -2584,6 +2586,22 @@ public class PhotoViewer implements NotificationCenter.NotificationCenterDelegat
         }
     }
 
+    private static final int PREFETCH_IMAGES = 2;
+
+    private void prefetchImages(int prevIndex) {
+        // the neighbours are loaded by leftImage and rightImage, warm the cache for the images behind them
+        int direction = currentIndex < prevIndex ? -1 : 1;
+        int[] msgIds = new int[PREFETCH_IMAGES];
+        int count = 0;
+        for (int i = currentIndex + direction * 2; i >= 0 && i < imagesArr.size() && count < PREFETCH_IMAGES; i += direction) {
+            msgIds[count++] = imagesArr.get(i).getId();
+        }
+        if (count > 0) {
+            ImageLoader.getInstance().prefetchMsgImages(count < PREFETCH_IMAGES ? Arrays.copyOf(msgIds, count) : msgIds,
+                    direction, ImageLoader.PREFETCH_PHOTO_VIEWER, false);
+        }
+    }
+
     private void setIndexToImage(ImageReceiver imageReceiver, int index) {
         imageReceiver.setOrientation(0, false);
         if (!imagesArrLocals.isEmpty()) {
@@ -40,6 +40,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Locale;
 
 public class SendMessagesHelper implements NotificationCenter.NotificationCenterDelegate {
 
@@ -161,8 +162,12 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
             }
             else if (document != null && MessageObject.isVideoDocument(document))
             {
-                // SEND VIDEO, encoding is done in a working thread, the backend waits automatically until the `.increation`-file is deleted
-                new File(path+".increation").createNewFile();
+                // SEND VIDEO, encoding is done in a working thread, the backend waits automatically until the `.increation`-file is deleted;
+                // if the same video was converted before, the file is already there.
+                boolean convert = params == null || params.get("mr_prepared") == null;
+                if( convert ) {
+                    new File(path+".increation").createNewFile();
+                }
 
                 int time_ms = 0;
                 for (int i = 0; i < document.attributes.size(); i++) {
@@ -176,14 +181,17 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
                 newMsg_id = MrMailbox.sendMediaMsg((int)dialog_id, MrMsg.MR_MSG_VIDEO,
                         path, document.mime_type, videoEditedInfo.resultWidth, videoEditedInfo.resultHeight, time_ms, null, null);
 
-                TLRPC.TL_message mown = new TLRPC.TL_message();
-                mown.dialog_id = dialog_id;
-                mown.media = new TLRPC.TL_messageMediaDocument();
-                mown.media.document = document;
-                mown.attachPath = path;
-                MessageObject mobj = new MessageObject(mown, false);
-                mobj.videoEditedInfo = videoEditedInfo;
-                MediaController.getInstance().scheduleVideoConvert(mobj);
+                if( convert ) {
+                    // the conversion queue is persisted and resumed after a restart, the converted file is added to the SentFileCache
+                    TLRPC.TL_message mown = new TLRPC.TL_message();
+                    mown.dialog_id = dialog_id;
+                    mown.media = new TLRPC.TL_messageMediaDocument();
+                    mown.media.document = document;
+                    mown.attachPath = path;
+                    MessageObject mobj = new MessageObject(mown, false);
+                    mobj.videoEditedInfo = videoEditedInfo;
+                    MediaController.getInstance().scheduleVideoConvert(mobj, params != null ? params.get("mr_sent_file_key") : null);
+                }
             }
             else if ( MessageObject.isVoiceDocument(document) || MessageObject.isMusicDocument(document) )
             {
@@ -295,12 +303,27 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
             ext = path.substring(idx + 1);
         }
         if (ext.toLowerCase().equals("mp3") || ext.toLowerCase().equals("m4a")) {
-            AudioInfo audioInfo = AudioInfo.getAudioInfo(f);
-            if (audioInfo != null && audioInfo.getDuration() != 0) {
+            int duration = 0;
+            String title = null, performer = null;
+            MediaMetaCache.Entry cached = MediaMetaCache.getInstance().get(path);
+            if (cached != null && cached.duration != 0) {
+                duration = cached.duration;
+                title = cached.title;
+                performer = cached.performer;
+            } else {
+                AudioInfo audioInfo = AudioInfo.getAudioInfo(f, false); // the cover is not needed here
+                if (audioInfo != null && audioInfo.getDuration() != 0) {
+                    duration = (int) audioInfo.getDuration();
+                    title = audioInfo.getTitle();
+                    performer = audioInfo.getArtist();
+                    MediaMetaCache.getInstance().putAudioInfo(path, duration, title, performer);
+                }
+            }
+            if (duration != 0) {
                 attributeAudio = new TLRPC.TL_documentAttributeAudio();
-                attributeAudio.duration = (int) (audioInfo.getDuration() / 1000);
-                attributeAudio.title = audioInfo.getTitle();
-                attributeAudio.performer = audioInfo.getArtist();
+                attributeAudio.duration = duration / 1000;
+                attributeAudio.title = title;
+                attributeAudio.performer = performer;
                 if (attributeAudio.title == null) {
                     attributeAudio.title = "";
                 }
@@ -575,15 +598,16 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
                         } else {
                             originalPath = null;
                         }
-                        TLRPC.TL_photo photo = null;
-                        /*if (!isEncrypted)*/ {
-                            photo = null;//MessagesStorage.getInstance().getSentFile(originalPath, !isEncrypted ? 0 : 3);
-                            if (photo == null && uri != null) {
-                                photo = null;//MessagesStorage.getInstance().getSentFile(AndroidUtilities.getPath(uri), !isEncrypted ? 0 : 3);
-                            }
-                        }
+                        // the same photo sent before is not scaled again
+                        String key = path != null ? SentFileCache.getKey(path, "photo" + AndroidUtilities.getPhotoSize())
+                                : SentFileCache.getKey(uri, "photo" + AndroidUtilities.getPhotoSize(), true);
+                        TLRPC.TL_photo photo = reuseSentPhoto(key);
                         if (photo == null) {
                             photo = SendMessagesHelper.getInstance().generatePhotoSizes(path, uri);
+                            if (photo != null) {
+                                TLRPC.PhotoSize size = photo.sizes.get(photo.sizes.size() - 1);
+                                SentFileCache.getInstance().put(key, FileLoader.getPathToAttach(size.location, true).getAbsolutePath(), size.w, size.h);
+                            }
                         }
                         if (photo != null) {
                             if (captions != null) {
@@ -612,6 +636,34 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
         }).start();
     }
 
+    private static TLRPC.TL_photo reuseSentPhoto(String key) {
+        if (key == null) {
+            return null;
+        }
+        TLRPC.TL_fileLocation location = new TLRPC.TL_fileLocation();
+        location.volume_id = Integer.MIN_VALUE;
+        location.dc_id = Integer.MIN_VALUE;
+        location.local_id = UserConfig.lastLocalId;
+        UserConfig.lastLocalId--;
+        SentFileCache.Entry entry = SentFileCache.getInstance().reuse(key, FileLoader.getPathToAttach(location, true));
+        if (entry == null) {
+            return null;
+        }
+        UserConfig.saveConfig();
+
+        TLRPC.PhotoSize size = new TLRPC.TL_photoSize();
+        size.location = location;
+        size.w = entry.width;
+        size.h = entry.height;
+        size.size = (int) entry.length;
+        size.type = Math.max(size.w, size.h) <= 800 ? "x" : (Math.max(size.w, size.h) <= 1280 ? "y" : "w");
+        TLRPC.TL_photo photo = new TLRPC.TL_photo();
+        photo.date = MrMailbox.getCurrentTime();
+        photo.sizes = new ArrayList<>();
+        photo.sizes.add(size);
+        return photo;
+    }
+
     public static void prepareSendingVideo(final String videoPath, final long estimatedSize, final long duration, final int width, final int height, final VideoEditedInfo videoEditedInfo, final long dialog_id) {
         if (videoPath == null || videoPath.length() == 0) {
             return;
@@ -622,6 +674,7 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
 
                 if (videoEditedInfo != null || videoPath.endsWith("mp4")) {
                     String path = videoPath;
+                    final HashMap<String, String> params = new HashMap<>();
                     //String originalPath = videoPath;
                     File temp = new File(videoPath);
                     /*originalPath += temp.length() + "_" + temp.lastModified();
@@ -648,9 +701,22 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
                                 attributeVideo.h = height;
                             }
                             document.size = (int) estimatedSize;
-                            String fileName = temp.getName(); // we could also all videoEditInformation to the filename and re-use already encoded videos this way. however, for the moment, I have no time to check this out (bp)
+                            String fileName = temp.getName();
                             File cacheFile = AndroidUtilities.getFineFilename(FileLoader.getInstance().getDirectory(FileLoader.MEDIA_DIR_CACHE), fileName);
                             path = cacheFile.getAbsolutePath();
+
+                            // a video converted before with the same settings is not converted again
+                            String key = SentFileCache.getKey(videoPath, String.format(Locale.US, "video%d_%d_%d_%d_%d_%d",
+                                    videoEditedInfo.startTime, videoEditedInfo.endTime, videoEditedInfo.resultWidth, videoEditedInfo.resultHeight,
+                                    videoEditedInfo.resultBitrate, videoEditedInfo.rotationValue));
+                            if (key != null) {
+                                if (SentFileCache.getInstance().reuse(key, cacheFile) != null) {
+                                    document.size = (int) cacheFile.length();
+                                    params.put("mr_prepared", "1");
+                                } else {
+                                    params.put("mr_sent_file_key", key);
+                                }
+                            }
                         } else {
                             if (temp.exists()) {
                                 document.size = (int) temp.length();
@@ -708,15 +774,12 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
                     File vfile = new File(finalPath);
                     File tfile = new File(MrMailbox.getBlobdir(), vfile.getName()+"-preview.jpg");
                     ImageLoader.scaleAndSaveImage(tfile, thumb, 90, 90, 55, false);
+                    StorageManager.getInstance().registerPreview(tfile.getAbsolutePath());
 
-                    /*final HashMap<String, String> params = new HashMap<>();
-                    if (originalPath != null) {
-                        params.put("originalPath", originalPath);
-                    }*/
                     AndroidUtilities.runOnUIThread(new Runnable() {
                         @Override
                         public void run() {
-                            SendMessagesHelper.getInstance().sendMessageDocument(videoFinal, videoEditedInfo, finalPath, dialog_id, null);
+                            SendMessagesHelper.getInstance().sendMessageDocument(videoFinal, videoEditedInfo, finalPath, dialog_id, params);
                         }
                     });
                 } else {
@@ -0,0 +1,359 @@
+/*******************************************************************************
+ *
+ *                              Delta Chat Android
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    SentFileCache.java
+ * Purpose: Remember the prepared (scaled, converted or copied) files of sent
+ *          media by a hash of their source, so that sending the same content
+ *          again does not prepare it again
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import android.annotation.TargetApi;
+import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+class SentFileCache {
+
+    private static final int  FILE_VERSION   = 1;
+    private static final int  MAX_ENTRIES    = 500;
+    private static final int  SAVE_DELAY_MS  = 2000;
+    private static final long FULL_HASH_SIZE = 4 * 1024 * 1024; // larger files are hashed by samples
+    private static final int  EDGE_SIZE      = 1024 * 1024;     // hashed at the start and at the end of larger files
+    private static final int  SAMPLE_SIZE    = 64 * 1024;
+    private static final int  SAMPLE_COUNT   = 16;
+
+    static class Entry {
+        String path;   // the prepared file, as sent
+        long   length;
+        int    width;  // for photos, the size of the scaled image
+        int    height;
+    }
+
+    private static volatile SentFileCache Instance = null;
+
+    static SentFileCache getInstance() {
+        SentFileCache localInstance = Instance;
+        if (localInstance == null) {
+            synchronized (SentFileCache.class) {
+                localInstance = Instance;
+                if (localInstance == null) {
+                    Instance = localInstance = new SentFileCache();
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    // least recently used entries first; all members are guarded by "this"
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private boolean loaded;
+    private boolean saveScheduled;
+
+    private final Runnable saveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            save();
+        }
+    };
+
+
+    /* keys, the hash of the source plus the parameters used for preparing it
+     **********************************************************************************************/
+
+    // returns null if the file cannot be read; larger files are sampled, this is meant for photos and videos
+    static String getKey(String path, String params) {
+        if (path == null) {
+            return null;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(path);
+            return getKey(in.getChannel(), params, true);
+        } catch (Exception e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try { in.close(); } catch (Exception e) { }
+            }
+        }
+    }
+
+    // returns null if the content is not a seekable file, eg. a pipe; sampled=false hashes all of the content,
+    // needed for arbitrary documents that may be edited in place without changing their size
+    static String getKey(Uri uri, String params, boolean sampled) {
+        if (uri == null) {
+            return null;
+        }
+        ParcelFileDescriptor pfd = null;
+        try {
+            pfd = ApplicationLoader.applicationContext.getContentResolver().openFileDescriptor(uri, "r");
+            if (pfd == null) {
+                return null;
+            }
+            return getKey(new FileInputStream(pfd.getFileDescriptor()).getChannel(), params, sampled);
+        } catch (Exception e) {
+            return null;
+        } finally {
+            if (pfd != null) {
+                try { pfd.close(); } catch (Exception e) { }
+            }
+        }
+    }
+
+    // small files are hashed completely; for larger ones, the start, the end and some blocks in between
+    // are used together with the size, this is enough to tell apart different photos and videos.
+    private static String getKey(FileChannel channel, String params, boolean sampled) throws Exception {
+        long size = channel.size();
+        if (size <= 0) {
+            return null;
+        }
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        ByteBuffer buffer = ByteBuffer.allocate(EDGE_SIZE);
+        if (!sampled || size <= FULL_HASH_SIZE) {
+            hashRange(channel, digest, buffer, 0, size);
+        } else {
+            hashRange(channel, digest, buffer, 0, EDGE_SIZE);
+            long step = (size - 2 * EDGE_SIZE) / (SAMPLE_COUNT + 1);
+            for (int i = 1; i <= SAMPLE_COUNT; i++) {
+                hashRange(channel, digest, buffer, EDGE_SIZE + step * i, SAMPLE_SIZE);
+            }
+            hashRange(channel, digest, buffer, size - EDGE_SIZE, EDGE_SIZE);
+        }
+
+        StringBuilder ret = new StringBuilder();
+        for (byte b : digest.digest()) {
+            ret.append(String.format("%02x", b));
+        }
+        ret.append(':').append(size).append(':').append(params);
+        return ret.toString();
+    }
+
+    private static void hashRange(FileChannel channel, MessageDigest digest, ByteBuffer buffer, long position, long length) throws Exception {
+        long end = position + length;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                throw new java.io.EOFException();
+            }
+            buffer.flip();
+            digest.update(buffer);
+            position += read;
+        }
+    }
+
+
+    /* lookup; as the cache file may be read on the first call, better not used on the UI thread
+     **********************************************************************************************/
+
+    /**
+     * Make the prepared file of a key available as target, as a hard link if possible.
+     * Returns the entry or null if there is no prepared file or if it was modified or deleted meanwhile.
+     */
+    Entry reuse(String key, File target) {
+        if (key == null || target == null) {
+            return null;
+        }
+        Entry entry;
+        synchronized (this) {
+            load();
+            entry = entries.get(key);
+        }
+        if (entry == null) {
+            return null;
+        }
+
+        File source = new File(entry.path);
+        if (source.length() != entry.length) {
+            synchronized (this) {
+                entries.remove(key);
+                scheduleSave();
+            }
+            return null;
+        }
+        if (source.getAbsolutePath().equals(target.getAbsolutePath())) {
+            return entry;
+        }
+        if (!linkOrCopy(source, target)) {
+            target.delete();
+            return null;
+        }
+        return entry;
+    }
+
+    void put(String key, String path, int width, int height) {
+        if (key == null || path == null) {
+            return;
+        }
+        long length = new File(path).length();
+        if (length == 0) {
+            return;
+        }
+        Entry entry = new Entry();
+        entry.path   = path;
+        entry.length = length;
+        entry.width  = width;
+        entry.height = height;
+        synchronized (this) {
+            load();
+            entries.put(key, entry);
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (entries.size() > MAX_ENTRIES && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+            scheduleSave();
+        }
+    }
+
+    // a hard link does not take any additional space and deleting one message does not affect the other
+    private static boolean linkOrCopy(File source, File target) {
+        target.delete(); // writing to an existing file would also modify the files linked to it
+        if (Build.VERSION.SDK_INT >= 21 && link(source, target)) {
+            return true;
+        }
+        try {
+            return AndroidUtilities.copyFile(source, target);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    @TargetApi(21)
+    private static boolean link(File source, File target) {
+        try {
+            Os.link(source.getAbsolutePath(), target.getAbsolutePath());
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+
+    /* load/save
+     **********************************************************************************************/
+
+    private static File getCacheFile() {
+        return new File(ApplicationLoader.applicationContext.getFilesDir(), "sent_files.dat");
+    }
+
+    // called with the lock held; the file is small and read on the first lookup
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        File cacheFile = getCacheFile();
+        if (!cacheFile.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+            if (in.readInt() == FILE_VERSION) {
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String key = in.readUTF();
+                    Entry entry = new Entry();
+                    entry.path   = in.readUTF();
+                    entry.length = in.readLong();
+                    entry.width  = in.readInt();
+                    entry.height = in.readInt();
+                    entries.put(key, entry);
+                }
+            }
+        } catch (Exception e) {
+            Log.e("DeltaChat", "Cannot read sent files cache, starting with an empty one.", e);
+        } finally {
+            if (in != null) {
+                try { in.close(); } catch (Exception e) { }
+            }
+        }
+    }
+
+    private void scheduleSave() {
+        // called with the lock held
+        if (!saveScheduled) {
+            saveScheduled = true;
+            Utilities.globalQueue.postRunnable(saveRunnable, SAVE_DELAY_MS);
+        }
+    }
+
+    private void save() {
+        ArrayList<String> keys;
+        ArrayList<Entry> values;
+        synchronized (this) {
+            saveScheduled = false;
+            keys = new ArrayList<>(entries.keySet());
+            values = new ArrayList<>(entries.values());
+        }
+
+        File cacheFile = getCacheFile();
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(FILE_VERSION);
+            out.writeInt(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                Entry entry = values.get(i);
+                out.writeUTF(keys.get(i));
+                out.writeUTF(entry.path);
+                out.writeLong(entry.length);
+                out.writeInt(entry.width);
+                out.writeInt(entry.height);
+            }
+            out.close();
+            out = null;
+            if (!tempFile.renameTo(cacheFile)) {
+                Log.e("DeltaChat", "Cannot write sent files cache.");
+            }
+        } catch (Exception e) {
+            Log.e("DeltaChat", "Cannot write sent files cache.", e);
+        } finally {
+            if (out != null) {
+                try { out.close(); } catch (Exception e) { }
+            }
+        }
+    }
+}
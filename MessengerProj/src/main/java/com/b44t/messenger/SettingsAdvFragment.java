@@ -55,6 +55,7 @@ import com.b44t.messenger.Cells.TextSettingsCell;
 import com.b44t.messenger.ActionBar.ActionBar;
 import com.b44t.messenger.ActionBar.BaseFragment;
 import com.b44t.messenger.Components.LayoutHelper;
+import com.b44t.messenger.Components.ListPerfStats;
 
 import java.io.File;
 
@@ -84,6 +85,9 @@ public class SettingsAdvFragment extends BaseFragment implements NotificationCen
     private int manageKeysRow;
     private int labsEnableQrRow;
     private int labsQrOverlayLogoRow;
+    private int labsListStatsRow;
+    private int labsListStatsExportRow;
+    private int labsStorageRow;
     private int backupRow;
     private int backupShadowRow;
     private int rowCount;
@@ -153,6 +157,15 @@ public class SettingsAdvFragment extends BaseFragment implements NotificationCen
             labsQrOverlayLogoRow = -1;
         }
 
+        labsListStatsRow        = rowCount++;
+        if( ListPerfStats.isEnabled() ) {
+            labsListStatsExportRow  = rowCount++;
+        }
+        else {
+            labsListStatsExportRow = -1;
+        }
+        labsStorageRow          = rowCount++;
+
         backupRow               = rowCount++;
         backupShadowRow         = rowCount++;
 
@@ -252,6 +265,43 @@ public class SettingsAdvFragment extends BaseFragment implements NotificationCen
                 else if( i == labsQrOverlayLogoRow ) {
                     MrMailbox.setConfigInt("qr_overlay_logo", MrMailbox.getConfigInt("qr_overlay_logo", 1)!=0? 0 : 1);
                 }
+                else if( i == labsListStatsRow ) {
+                    ListPerfStats.setEnabled(!ListPerfStats.isEnabled());
+                    // lists check the setting when they are shown, so restart the activity as for the QR code options
+                    Intent intent = getParentActivity().getIntent();
+                    getParentActivity().finish();
+                    getParentActivity().startActivity(intent);
+                }
+                else if( i == labsListStatsExportRow ) {
+                    final String stats = ListPerfStats.export();
+                    AlertDialog.Builder builder1 = new AlertDialog.Builder(getParentActivity());
+                    builder1.setTitle("Labs: List statistics");
+                    builder1.setMessage(stats);
+                    builder1.setNegativeButton(R.string.Cancel, null);
+                    builder1.setPositiveButton(R.string.OK, new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialog, int which) {
+                            try {
+                                Intent intent = new Intent(Intent.ACTION_SEND);
+                                intent.setType("text/plain");
+                                intent.putExtra(Intent.EXTRA_TEXT, stats);
+                                getParentActivity().startActivity(Intent.createChooser(intent, "Labs: List statistics"));
+                            } catch (Exception e) {
+                                e.printStackTrace();
+                            }
+                        }
+                    });
+                    builder1.setNeutralButton("Reset", new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialog, int which) {
+                            ListPerfStats.reset();
+                        }
+                    });
+                    showDialog(builder1.create());
+                }
+                else if( i == labsStorageRow ) {
+                    showStorageUsage(false);
+                }
                 else if (i == blockedRow) {
                     presentFragment(new BlockedUsersActivity());
                 }
@@ -572,6 +622,42 @@ public class SettingsAdvFragment extends BaseFragment implements NotificationCen
         MrMailbox.imex(progressWhat, imexDir.getAbsolutePath());
     }
 
+    private void showStorageUsage(final boolean gc)
+    {
+        final ProgressDialog scanDialog = new ProgressDialog(getParentActivity());
+        scanDialog.setMessage(ApplicationLoader.applicationContext.getString(R.string.OneMoment));
+        scanDialog.setCanceledOnTouchOutside(false);
+        scanDialog.show();
+
+        StorageManager.getInstance().scan(gc, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    scanDialog.dismiss();
+                } catch (Exception e) {
+                }
+                StorageManager.Usage usage = StorageManager.getInstance().getLastUsage();
+                if (getParentActivity() == null || usage == null) {
+                    return;
+                }
+                if (listView != null) {
+                    listView.invalidateViews();
+                }
+                AlertDialog.Builder builder1 = new AlertDialog.Builder(getParentActivity());
+                builder1.setTitle("Labs: Storage usage");
+                builder1.setMessage(usage.format(5));
+                builder1.setNegativeButton(R.string.OK, null);
+                builder1.setPositiveButton("Clean up", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        showStorageUsage(true);
+                    }
+                });
+                showDialog(builder1.create());
+            }
+        });
+    }
+
     @Override
     public void didReceivedNotification(int id, Object... args) {
         if( id==NotificationCenter.imexProgress ) {
@@ -699,6 +785,13 @@ public class SettingsAdvFragment extends BaseFragment implements NotificationCen
                 else if( i==backupRow ) {
                     textCell.setText(mContext.getString(R.string.Backup), false);
                 }
+                else if( i==labsListStatsExportRow ) {
+                    textCell.setText("Labs: Send list statistics", true);
+                }
+                else if( i==labsStorageRow ) {
+                    StorageManager.Usage usage = StorageManager.getInstance().getLastUsage();
+                    textCell.setTextAndValue("Labs: Storage usage", usage!=null? AndroidUtilities.formatFileSize(usage.getTotalBytes()) : "", true);
+                }
                 else if( i == accountSettingsRow ) {
                     textCell.setText(mContext.getString(R.string.AccountSettings), true);
                 }
@@ -745,6 +838,8 @@ public class SettingsAdvFragment extends BaseFragment implements NotificationCen
                 } else if (i == labsQrOverlayLogoRow) {
                     boolean qr_overlay_logo = MrMailbox.getConfigInt("qr_overlay_logo", 1)!=0;
                     textCell.setTextAndCheck("Labs: QR logo overlay", qr_overlay_logo, true);
+                } else if (i == labsListStatsRow) {
+                    textCell.setTextAndCheck("Labs: List statistics", ListPerfStats.isEnabled(), true);
                 }
             }
             else if (type == ROWTYPE_HEADER) {
@@ -774,7 +869,7 @@ public class SettingsAdvFragment extends BaseFragment implements NotificationCen
                 return ROWTYPE_HEADER;
             } else if ( i == sendByEnterRow || i == raiseToSpeakRow || i == autoplayGifsRow
                     || i==showUnknownSendersRow || i == directShareRow || i==e2eEncryptionRow
-                    || i==labsEnableQrRow || i==labsQrOverlayLogoRow ) {
+                    || i==labsEnableQrRow || i==labsQrOverlayLogoRow || i==labsListStatsRow ) {
                 return ROWTYPE_CHECK;
             } else {
                 return ROWTYPE_TEXT_SETTINGS;
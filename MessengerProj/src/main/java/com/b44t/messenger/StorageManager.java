@@ -0,0 +1,634 @@
+/*******************************************************************************
+ *
+ *                              Delta Chat Android
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    StorageManager.java
+ * Purpose: Usage of the blob directory by category and chat and incremental
+ *          removal of orphaned derived files and stale copies
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+public class StorageManager {
+
+    // the cache directory of FileLoader is the blob directory, so derived files and the attachments
+    // of the backend are in one directory; only files that are known to be created here are deleted.
+    public static final int CATEGORY_IMAGES    = 0;
+    public static final int CATEGORY_VIDEOS    = 1;
+    public static final int CATEGORY_AUDIO     = 2;
+    public static final int CATEGORY_FILES     = 3;
+    public static final int CATEGORY_PREVIEWS  = 4; // "-preview.jpg" snapshots of videos
+    public static final int CATEGORY_WAVEFORMS = 5; // ".waveform" sidecars written by older versions
+    public static final int CATEGORY_THUMBS    = 6; // "q_" quality thumbnails
+    public static final int CATEGORY_COPIES    = 7; // copies of shared content, see MediaController.copyFileToCache()
+    public static final int CATEGORY_OTHER     = 8;
+    public static final int CATEGORY_COUNT     = 9;
+    private static final String[] CATEGORY_NAMES = {"Images", "Videos", "Audio", "Files",
+            "Video previews", "Waveforms", "Thumbnails", "Shared copies", "Other"};
+
+    private static final int  FILE_VERSION      = 2; // version 1 had no previews
+
+    // the name of the thumbnails created by ImageLoader.ThumbGenerateTask, q_<volume_id>_<local_id>.jpg
+    private static final int MAX_WAVEFORM_SIDECAR = 256; // the sidecars of older versions hold 100 peaks of 5 bits
+
+    private static final Pattern THUMB_NAME = Pattern.compile("q_-?\\d+_-?\\d+\\.jpg");
+    private static final long GC_INTERVAL_MS    = 24L * 60 * 60 * 1000;
+    private static final long GC_START_DELAY_MS = 60 * 1000;     // do not compete with the startup of the app
+    private static final long MIN_AGE_MS        = 24L * 60 * 60 * 1000; // younger files may still be in use, eg. while sending
+    private static final long THUMBS_QUOTA      = 50L * 1024 * 1024; // for previews and thumbnails, they're created again when needed
+    private static final int  CHAT_BATCH_SIZE   = 16;
+    private static final int  DELETE_BATCH_SIZE = 32;
+    private static final long BATCH_DELAY_MS    = 50;
+
+    public static class ChatUsage {
+        public int    chatId;
+        public String name;
+        public long   bytes;
+        public int    files;
+    }
+
+    public static class Usage {
+        public final long[] bytes = new long[CATEGORY_COUNT];
+        public final int[]  files = new int[CATEGORY_COUNT];
+        public final ArrayList<ChatUsage> chats = new ArrayList<>(); // largest first
+        public long  deletedBytes; // by the garbage collection of the same run
+        public int   deletedFiles;
+        public long  time;
+
+        public long getTotalBytes() {
+            long total = 0;
+            for (int i = 0; i < CATEGORY_COUNT; i++) {
+                total += bytes[i];
+            }
+            return total;
+        }
+
+        public String format(int maxChats) {
+            StringBuilder ret = new StringBuilder();
+            ret.append("Total: ").append(AndroidUtilities.formatFileSize(getTotalBytes())).append("\n\n");
+            for (int i = 0; i < CATEGORY_COUNT; i++) {
+                if (files[i] > 0) {
+                    ret.append(String.format(Locale.US, "%s: %s (%d)\n", CATEGORY_NAMES[i], AndroidUtilities.formatFileSize(bytes[i]), files[i]));
+                }
+            }
+            if (!chats.isEmpty()) {
+                ret.append("\nLargest chats:\n");
+                for (int i = 0; i < chats.size() && i < maxChats; i++) {
+                    ChatUsage chat = chats.get(i);
+                    ret.append(String.format(Locale.US, "%s: %s (%d)\n", chat.name, AndroidUtilities.formatFileSize(chat.bytes), chat.files));
+                }
+            }
+            if (deletedFiles > 0) {
+                ret.append(String.format(Locale.US, "\nRemoved: %s (%d)\n", AndroidUtilities.formatFileSize(deletedBytes), deletedFiles));
+            }
+            return ret.toString();
+        }
+    }
+
+    private static volatile StorageManager Instance = null;
+
+    public static StorageManager getInstance() {
+        StorageManager localInstance = Instance;
+        if (localInstance == null) {
+            synchronized (StorageManager.class) {
+                localInstance = Instance;
+                if (localInstance == null) {
+                    Instance = localInstance = new StorageManager();
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    private final DispatchQueue storageQueue = new DispatchQueue("storageQueue");
+
+    // guarded by "this"
+    private final HashSet<String> copies = new HashSet<>(); // absolute paths of the files from copyFileToCache()
+    private final HashSet<String> previews = new HashSet<>(); // absolute paths of the video previews created by the app
+    private long    lastGcTime;
+    private boolean loaded;
+    private Usage   lastUsage;
+
+    // used on the storageQueue only
+    private Run                 currentRun;
+    private boolean             pendingGc;
+    private ArrayList<Runnable> pendingListeners = new ArrayList<>();
+
+    private StorageManager() {
+        storageQueue.setPriority(Thread.MIN_PRIORITY);
+    }
+
+    /**
+     * Remember a file created as a copy of shared content; it is deleted by the garbage collection
+     * if no message refers to it.  May be called from any thread.
+     */
+    public void registerCopy(String path) {
+        register(path, copies);
+    }
+
+    /**
+     * Remember a video preview created by the app; as received files keep their names, only registered
+     * previews are deleted if their video is gone or if there are too many previews.  May be called from any thread.
+     */
+    public void registerPreview(String path) {
+        register(path, previews);
+    }
+
+    private void register(String path, final HashSet<String> set) {
+        if (path == null) {
+            return;
+        }
+        final String absolutePath = new File(path).getAbsolutePath();
+        storageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                load();
+                synchronized (StorageManager.this) {
+                    if (!set.add(absolutePath)) {
+                        return;
+                    }
+                }
+                save();
+            }
+        });
+    }
+
+    // the usage of the last scan, null if there was no scan since the app was started
+    public synchronized Usage getLastUsage() {
+        return lastUsage;
+    }
+
+    // to be called on startup; the garbage collection runs at most once a day
+    public void scheduleGc() {
+        storageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                load();
+                long lastTime;
+                synchronized (StorageManager.this) {
+                    lastTime = lastGcTime;
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastTime > GC_INTERVAL_MS || lastTime > now) {
+                    start(true, null);
+                }
+            }
+        }, GC_START_DELAY_MS);
+    }
+
+    /**
+     * Scan the blob directory and, if gc is set, delete orphaned and stale files.
+     * onDone is called on the UI thread; the result is available by getLastUsage() then.
+     */
+    public void scan(final boolean gc, final Runnable onDone) {
+        storageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                load();
+                start(gc, onDone);
+            }
+        });
+    }
+
+    private void start(boolean gc, Runnable onDone) {
+        if (onDone != null) {
+            pendingListeners.add(onDone);
+        }
+        if (currentRun != null) {
+            pendingGc |= gc && !currentRun.gc; // run again when the current run is done
+            return;
+        }
+        currentRun = new Run(gc);
+        storageQueue.postRunnable(currentRun);
+    }
+
+    private void finish(Run run) {
+        synchronized (this) {
+            lastUsage = run.usage;
+            if (run.gc) {
+                lastGcTime = run.usage.time;
+            }
+        }
+        if (run.gc) {
+            save();
+        }
+        currentRun = null;
+        if (pendingGc) {
+            pendingGc = false;
+            start(true, null);
+            return; // the listeners are called when the garbage collection is done
+        }
+        final ArrayList<Runnable> listeners = pendingListeners;
+        pendingListeners = new ArrayList<>();
+        AndroidUtilities.runOnUIThread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < listeners.size(); i++) {
+                    listeners.get(i).run();
+                }
+            }
+        });
+    }
+
+
+    /* a single scan, done in small steps on the storageQueue so that other work is not blocked
+     **********************************************************************************************/
+
+    private class Run implements Runnable {
+        final boolean gc;
+        final Usage   usage = new Usage();
+        final long    now   = System.currentTimeMillis();
+
+        int[] chatIds;
+        int   nextChat;
+        final HashMap<String, Integer> referenced = new HashMap<>(); // absolute path to category
+        final SparseArray<ChatUsage>   chatUsages = new SparseArray<>();
+
+        File[]          blobFiles;
+        ArrayList<File> candidates; // files to delete and their categories
+        ArrayList<Integer> candidateCategories;
+        int             nextCandidate;
+
+        Run(boolean gc) {
+            this.gc = gc;
+            usage.time = now;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (chatIds == null) {
+                    chatIds = getChatIds();
+                } else if (nextChat < chatIds.length) {
+                    int end = Math.min(chatIds.length, nextChat + CHAT_BATCH_SIZE);
+                    for (; nextChat < end; nextChat++) {
+                        addChat(chatIds[nextChat]);
+                    }
+                } else if (blobFiles == null) {
+                    listBlobdir();
+                } else if (candidates != null && nextCandidate < candidates.size()) {
+                    int end = Math.min(candidates.size(), nextCandidate + DELETE_BATCH_SIZE);
+                    for (; nextCandidate < end; nextCandidate++) {
+                        delete(candidates.get(nextCandidate), candidateCategories.get(nextCandidate));
+                    }
+                } else {
+                    for (int i = 0; i < chatUsages.size(); i++) {
+                        if (chatUsages.valueAt(i).files > 0) {
+                            usage.chats.add(chatUsages.valueAt(i));
+                        }
+                    }
+                    Collections.sort(usage.chats, new Comparator<ChatUsage>() {
+                        @Override
+                        public int compare(ChatUsage lhs, ChatUsage rhs) {
+                            return lhs.bytes == rhs.bytes ? 0 : (lhs.bytes > rhs.bytes ? -1 : 1);
+                        }
+                    });
+                    finish(this);
+                    return;
+                }
+            } catch (Exception e) {
+                Log.e("DeltaChat", "Cannot scan the storage.", e);
+                candidates = null;
+                finish(this);
+                return;
+            }
+            storageQueue.postRunnable(this, candidates != null ? BATCH_DELAY_MS : 0);
+        }
+
+        private int[] getChatIds() {
+            ArrayList<Integer> ids = new ArrayList<>();
+            ids.add(MrChat.MR_CHAT_ID_DEADDROP);
+            MrChatlist[] chatlists = {MrMailbox.getChatlist(MrMailbox.MR_GCL_NO_SPECIALS, null, 0),
+                    MrMailbox.getChatlist(MrMailbox.MR_GCL_ARCHIVED_ONLY, null, 0)};
+            for (MrChatlist chatlist : chatlists) {
+                int cnt = chatlist.getCnt();
+                for (int i = 0; i < cnt; i++) {
+                    int id = chatlist.getChatByIndex(i).getId();
+                    if (id > MrChat.MR_CHAT_ID_LAST_SPECIAL && !ids.contains(id)) {
+                        ids.add(id);
+                    }
+                }
+            }
+            int[] ret = new int[ids.size()];
+            for (int i = 0; i < ret.length; i++) {
+                ret[i] = ids.get(i);
+            }
+            return ret;
+        }
+
+        private void addChat(int chatId) {
+            MrChat chat = MrMailbox.getChat(chatId);
+            ChatUsage chatUsage = new ChatUsage();
+            chatUsage.chatId = chatId;
+            chatUsage.name = chatId == MrChat.MR_CHAT_ID_DEADDROP ? ApplicationLoader.applicationContext.getString(R.string.Deaddrop) : chat.getName();
+            chatUsages.put(chatId, chatUsage);
+
+            addFile(chatUsage, chat.getProfileImage(), CATEGORY_OTHER);
+            addMedia(chatUsage, MrMsg.MR_MSG_IMAGE, MrMsg.MR_MSG_GIF, CATEGORY_IMAGES);
+            addMedia(chatUsage, MrMsg.MR_MSG_VIDEO, MrMsg.MR_MSG_VIDEO, CATEGORY_VIDEOS);
+            addMedia(chatUsage, MrMsg.MR_MSG_AUDIO, MrMsg.MR_MSG_VOICE, CATEGORY_AUDIO);
+            addMedia(chatUsage, MrMsg.MR_MSG_FILE, MrMsg.MR_MSG_FILE, CATEGORY_FILES);
+        }
+
+        private void addMedia(ChatUsage chatUsage, int msgType, int orMsgType, int category) {
+            int[] msgIds = MrMailbox.getChatMedia(chatUsage.chatId, msgType, orMsgType);
+            if (msgIds == null) {
+                return;
+            }
+            for (int msgId : msgIds) {
+                addFile(chatUsage, MrMailbox.getMsg(msgId).getFile(), category);
+            }
+        }
+
+        private void addFile(ChatUsage chatUsage, String path, int category) {
+            if (path == null || path.isEmpty()) {
+                return;
+            }
+            File file = new File(path);
+            if (!file.exists()) {
+                return;
+            }
+            chatUsage.bytes += file.length();
+            chatUsage.files++;
+            String absolutePath = file.getAbsolutePath();
+            if (!referenced.containsKey(absolutePath)) {
+                referenced.put(absolutePath, category);
+            }
+        }
+
+        private void listBlobdir() {
+            File blobdir = new File(MrMailbox.getBlobdir());
+            blobFiles = blobdir.listFiles();
+            if (blobFiles == null) {
+                blobFiles = new File[0];
+            }
+
+            HashSet<String> registeredCopies, registeredPreviews;
+            synchronized (StorageManager.this) {
+                registeredCopies = new HashSet<>(copies);
+                registeredPreviews = new HashSet<>(previews);
+            }
+            HashSet<String> existingPreviews = new HashSet<>();
+
+            ArrayList<File> regenerable = new ArrayList<>();
+            long regenerableBytes = 0;
+            candidates = gc ? new ArrayList<File>() : null;
+            candidateCategories = new ArrayList<>();
+            for (File file : blobFiles) {
+                String name = file.getName();
+                if (name.equals(".nomedia") || file.isDirectory()) {
+                    continue;
+                }
+                String absolutePath = file.getAbsolutePath();
+                long length = file.length();
+                int category = getCategory(absolutePath, name, length, registeredCopies, registeredPreviews);
+                if (registeredPreviews.contains(absolutePath)) {
+                    existingPreviews.add(absolutePath);
+                }
+                usage.bytes[category] += length;
+                usage.files[category]++;
+                if (!gc) {
+                    continue;
+                }
+
+                if (isDeletable(file, category)) {
+                    candidates.add(file);
+                    candidateCategories.add(category);
+                } else if (category == CATEGORY_PREVIEWS || category == CATEGORY_THUMBS) {
+                    regenerable.add(file);
+                    regenerableBytes += length;
+                }
+            }
+
+            // forget the previews deleted meanwhile, eg. together with their message
+            if (existingPreviews.size() != registeredPreviews.size()) {
+                synchronized (StorageManager.this) {
+                    previews.retainAll(existingPreviews);
+                }
+                save();
+            }
+
+            // above the quota, the least recently modified previews and thumbnails are deleted
+            if (gc && regenerableBytes > THUMBS_QUOTA) {
+                final long[] modified = new long[regenerable.size()];
+                Integer[] order = new Integer[regenerable.size()];
+                for (int i = 0; i < order.length; i++) {
+                    modified[i] = regenerable.get(i).lastModified();
+                    order[i] = i;
+                }
+                Arrays.sort(order, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer lhs, Integer rhs) {
+                        return modified[lhs] == modified[rhs] ? 0 : (modified[lhs] < modified[rhs] ? -1 : 1);
+                    }
+                });
+                for (int i = 0; i < order.length && regenerableBytes > THUMBS_QUOTA; i++) {
+                    File file = regenerable.get(order[i]);
+                    if (now - modified[order[i]] > MIN_AGE_MS) {
+                        candidates.add(file);
+                        candidateCategories.add(registeredPreviews.contains(file.getAbsolutePath()) ? CATEGORY_PREVIEWS : CATEGORY_THUMBS);
+                        regenerableBytes -= file.length();
+                    }
+                }
+            }
+        }
+
+        // received files keep their names, so files not referenced by a message are only treated as generated
+        // if they are registered or if they match the exact names generated by the app
+        private int getCategory(String absolutePath, String name, long length, HashSet<String> registeredCopies, HashSet<String> registeredPreviews) {
+            Integer category = referenced.get(absolutePath);
+            if (category != null) {
+                return category;
+            } else if (registeredPreviews.contains(absolutePath)) {
+                return CATEGORY_PREVIEWS;
+            } else if (name.endsWith(".waveform") && length <= MAX_WAVEFORM_SIDECAR) {
+                return CATEGORY_WAVEFORMS;
+            } else if (THUMB_NAME.matcher(name).matches()) {
+                return CATEGORY_THUMBS;
+            } else if (registeredCopies.contains(absolutePath)) {
+                return CATEGORY_COPIES;
+            }
+            return CATEGORY_OTHER;
+        }
+
+        // orphaned derived files and copies no message refers to; checked again directly before deletion
+        private boolean isDeletable(File file, int category) {
+            String path = file.getPath();
+            switch (category) {
+                case CATEGORY_PREVIEWS:
+                    return path.endsWith("-preview.jpg") && !new File(path.substring(0, path.length() - "-preview.jpg".length())).exists();
+                case CATEGORY_WAVEFORMS:
+                    return true; // if the audio file still exists, the waveform is moved to the MediaMetaCache
+                case CATEGORY_COPIES:
+                    return now - file.lastModified() > MIN_AGE_MS;
+            }
+            return false;
+        }
+
+        private void delete(File file, int category) {
+            String path = file.getPath();
+            long length = file.length();
+            if (length == 0 && !file.exists()) {
+                return;
+            }
+            if (!isDeletable(file, category)) {
+                return; // changed since the scan, eg. a copy overwritten or the original of a preview received again
+            }
+
+            if (category == CATEGORY_WAVEFORMS) {
+                String audioPath = path.substring(0, path.length() - ".waveform".length());
+                if (new File(audioPath).exists()) {
+                    byte[] waveform = MediaController.readWaveformSidecar(audioPath); // deletes the sidecar
+                    if (waveform != null) {
+                        MediaMetaCache.getInstance().putWaveform(audioPath, waveform);
+                    }
+                } else {
+                    file.delete();
+                }
+            } else {
+                file.delete();
+            }
+
+            if (!file.exists()) {
+                usage.bytes[category] -= length;
+                usage.files[category]--;
+                usage.deletedBytes += length;
+                usage.deletedFiles++;
+                if (category == CATEGORY_COPIES || category == CATEGORY_PREVIEWS) {
+                    synchronized (StorageManager.this) {
+                        copies.remove(file.getAbsolutePath());
+                        previews.remove(file.getAbsolutePath());
+                    }
+                }
+            }
+        }
+    }
+
+
+    /* load/save
+     **********************************************************************************************/
+
+    private static File getStateFile() {
+        return new File(ApplicationLoader.applicationContext.getFilesDir(), "storage.dat");
+    }
+
+    // called on the storageQueue only
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        File file = getStateFile();
+        if (!file.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            int version = in.readInt();
+            if (version != FILE_VERSION && version != 1) {
+                return;
+            }
+            long readGcTime = in.readLong();
+            ArrayList<String> readCopies = readPaths(in);
+            ArrayList<String> readPreviews = version >= 2 ? readPaths(in) : new ArrayList<String>();
+            synchronized (this) {
+                lastGcTime = readGcTime;
+                copies.addAll(readCopies);
+                previews.addAll(readPreviews);
+            }
+        } catch (Exception e) {
+            Log.e("DeltaChat", "Cannot read storage state.", e);
+        } finally {
+            if (in != null) {
+                try { in.close(); } catch (Exception e) { }
+            }
+        }
+    }
+
+    private static ArrayList<String> readPaths(DataInputStream in) throws java.io.IOException {
+        int count = in.readInt();
+        ArrayList<String> paths = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            paths.add(in.readUTF());
+        }
+        return paths;
+    }
+
+    private static void writePaths(DataOutputStream out, ArrayList<String> paths) throws java.io.IOException {
+        out.writeInt(paths.size());
+        for (int i = 0; i < paths.size(); i++) {
+            out.writeUTF(paths.get(i));
+        }
+    }
+
+    private void save() {
+        long gcTime;
+        ArrayList<String> copyPaths, previewPaths;
+        synchronized (this) {
+            gcTime = lastGcTime;
+            copyPaths = new ArrayList<>(copies);
+            previewPaths = new ArrayList<>(previews);
+        }
+
+        File file = getStateFile();
+        File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(FILE_VERSION);
+            out.writeLong(gcTime);
+            writePaths(out, copyPaths);
+            writePaths(out, previewPaths);
+            out.close();
+            out = null;
+            if (!tempFile.renameTo(file)) {
+                Log.e("DeltaChat", "Cannot write storage state.");
+            }
+        } catch (Exception e) {
+            Log.e("DeltaChat", "Cannot write storage state.", e);
+        } finally {
+            if (out != null) {
+                try { out.close(); } catch (Exception e) { }
+            }
+        }
+    }
+}
@@ -0,0 +1,392 @@
+/*******************************************************************************
+ *
+ *                              Delta Chat Android
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    VideoConvertQueue.java
+ * Purpose: The videos waiting for conversion, persisted so that conversions
+ *          interrupted by the death of the process are restarted on the next
+ *          start instead of leaving the messages in creation forever
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+
+class VideoConvertQueue {
+
+    static final int PRIORITY_RECOVERED = 0; // jobs restarted after the death of the process
+    static final int PRIORITY_NORMAL    = 1; // videos just sent, the user is probably waiting for them
+
+    private static final int FILE_VERSION    = 1;
+    private static final int MAX_ATTEMPTS    = 3;    // a job interrupted this often is given up, it probably crashes the process
+    private static final int SAVE_DELAY_MS   = 2000; // checkpoints are saved at most this often
+
+    static class Job {
+        String          attachPath;     // the converted file, also identifies the job
+        long            dialogId;
+        int             priority;
+        long            seq;            // jobs of the same priority are converted in the order they were added
+        VideoEditedInfo info;
+        int             durationSec;    // of the original video
+        String          sentFileKey;    // the converted file is added to the SentFileCache with this key, may be null
+        int             attempts;       // incremented when a conversion starts
+        long            checkpointUs;   // presentation time of the last sample written to the file
+
+        MessageObject   messageObject;  // not persisted
+
+        float getProgress() {
+            long start = Math.max(info.startTime, 0);
+            long end = info.endTime > 0 ? info.endTime : durationSec * 1000000L;
+            if (end <= start || checkpointUs <= start) {
+                return 0.0f;
+            }
+            return Math.min(1.0f, (float) (checkpointUs - start) / (end - start));
+        }
+
+        // the message object as created by SendMessagesHelper, used for the notifications
+        private void createMessageObject() {
+            TLRPC.TL_documentAttributeVideo attribute = new TLRPC.TL_documentAttributeVideo();
+            attribute.duration = durationSec;
+            attribute.w = info.resultWidth;
+            attribute.h = info.resultHeight;
+            TLRPC.TL_document document = new TLRPC.TL_document();
+            document.mime_type = "video/mp4";
+            document.attributes.add(attribute);
+
+            TLRPC.TL_message mown = new TLRPC.TL_message();
+            mown.dialog_id = dialogId;
+            mown.media = new TLRPC.TL_messageMediaDocument();
+            mown.media.document = document;
+            mown.attachPath = attachPath;
+            messageObject = new MessageObject(mown, false);
+            messageObject.videoEditedInfo = info;
+        }
+    }
+
+    private static volatile VideoConvertQueue Instance = null;
+
+    static VideoConvertQueue getInstance() {
+        VideoConvertQueue localInstance = Instance;
+        if (localInstance == null) {
+            synchronized (VideoConvertQueue.class) {
+                localInstance = Instance;
+                if (localInstance == null) {
+                    Instance = localInstance = new VideoConvertQueue();
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    // all members are guarded by "this"
+    private final ArrayList<Job> jobs = new ArrayList<>();
+    private long nextSeq;
+    private boolean loaded;
+    private boolean saveScheduled;
+
+    private final Runnable saveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            save();
+        }
+    };
+
+
+    /* queue
+     **********************************************************************************************/
+
+    Job add(MessageObject messageObject, String sentFileKey, int priority) {
+        Job job = new Job();
+        job.attachPath    = messageObject.messageOwner.attachPath;
+        job.dialogId      = messageObject.messageOwner.dialog_id;
+        job.priority      = priority;
+        job.info          = messageObject.videoEditedInfo;
+        job.durationSec   = messageObject.messageOwner.media.document != null ? getDuration(messageObject.messageOwner.media.document) : 0;
+        job.sentFileKey   = sentFileKey;
+        job.messageObject = messageObject;
+        synchronized (this) {
+            load();
+            job.seq = nextSeq++;
+            jobs.add(job);
+        }
+        save(); // at once, the process may die before a scheduled save
+        return job;
+    }
+
+    // the job to convert next: the highest priority first, and the oldest of these
+    synchronized Job next() {
+        load();
+        Job ret = null;
+        for (int i = 0; i < jobs.size(); i++) {
+            Job job = jobs.get(i);
+            if (ret == null || job.priority > ret.priority || (job.priority == ret.priority && job.seq < ret.seq)) {
+                ret = job;
+            }
+        }
+        return ret;
+    }
+
+    synchronized Job get(String attachPath) {
+        for (int i = 0; i < jobs.size(); i++) {
+            if (jobs.get(i).attachPath.equals(attachPath)) {
+                return jobs.get(i);
+            }
+        }
+        return null;
+    }
+
+    // the progress of the job converting the given file, -1 if there is no such job
+    synchronized float getProgress(String attachPath) {
+        Job job = get(attachPath);
+        return job != null ? job.getProgress() : -1.0f;
+    }
+
+    // called on the conversion thread before the conversion starts; saved at once as the process may die during the conversion
+    void startAttempt(Job job) {
+        synchronized (this) {
+            job.attempts++;
+            job.checkpointUs = 0;
+        }
+        save();
+    }
+
+    // called on the conversion thread whenever data were written to the file
+    void checkpoint(Job job, long timeUs) {
+        synchronized (this) {
+            if (timeUs <= job.checkpointUs) {
+                return; // the audio track is written after the video track
+            }
+            job.checkpointUs = timeUs;
+        }
+        scheduleSave(SAVE_DELAY_MS);
+    }
+
+    void remove(Job job, boolean success) {
+        synchronized (this) {
+            if (!jobs.remove(job)) {
+                return;
+            }
+        }
+        if (success) {
+            save(); // at once, a finished job loaded again would overwrite a file the backend may already be sending
+        } else {
+            scheduleSave(0);
+        }
+        if (success && job.sentFileKey != null) {
+            final String key = job.sentFileKey;
+            final String path = job.attachPath;
+            Utilities.globalQueue.postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    SentFileCache.getInstance().put(key, path, 0, 0);
+                }
+            });
+        }
+    }
+
+    void clear() {
+        synchronized (this) {
+            jobs.clear();
+        }
+        scheduleSave(0);
+    }
+
+    /**
+     * Load the jobs left by a previous process; to be called on a background thread on startup.
+     * The jobs that were interrupted too often are removed and returned, they should be reported as failed.
+     */
+    ArrayList<Job> restore() {
+        ArrayList<Job> failed = new ArrayList<>();
+        boolean changed = false;
+        synchronized (this) {
+            load();
+            for (int i = jobs.size() - 1; i >= 0; i--) {
+                Job job = jobs.get(i);
+                if (!new File(job.attachPath + ".increation").exists()) {
+                    jobs.remove(i); // done, the file was already handed over to the backend
+                    changed = true;
+                } else if (job.attempts >= MAX_ATTEMPTS || !new File(job.info.originalPath).canRead()) {
+                    Log.e("DeltaChat", "Giving up video conversion of " + job.attachPath + " after " + job.attempts + " attempts.");
+                    jobs.remove(i);
+                    failed.add(job);
+                    changed = true;
+                }
+            }
+        }
+        if (changed) {
+            scheduleSave(0);
+        }
+        return failed;
+    }
+
+    private static int getDuration(TLRPC.Document document) {
+        for (int i = 0; i < document.attributes.size(); i++) {
+            TLRPC.DocumentAttribute a = document.attributes.get(i);
+            if (a instanceof TLRPC.TL_documentAttributeVideo) {
+                return a.duration;
+            }
+        }
+        return 0;
+    }
+
+
+    /* load/save
+     **********************************************************************************************/
+
+    private static File getQueueFile() {
+        return new File(ApplicationLoader.applicationContext.getFilesDir(), "video_convert_queue.dat");
+    }
+
+    // called with the lock held
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        File file = getQueueFile();
+        if (!file.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() == FILE_VERSION) {
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    Job job = new Job();
+                    job.attachPath   = in.readUTF();
+                    job.dialogId     = in.readLong();
+                    job.priority     = Math.min(in.readInt(), PRIORITY_RECOVERED);
+                    job.seq          = nextSeq++;
+                    job.info         = new VideoEditedInfo();
+                    job.info.originalPath    = in.readUTF();
+                    job.info.startTime       = in.readLong();
+                    job.info.endTime         = in.readLong();
+                    job.info.rotationValue   = in.readInt();
+                    job.info.originalWidth   = in.readInt();
+                    job.info.originalHeight  = in.readInt();
+                    job.info.originalBitrate = in.readInt();
+                    job.info.resultWidth     = in.readInt();
+                    job.info.resultHeight    = in.readInt();
+                    job.info.resultBitrate   = in.readInt();
+                    job.durationSec  = in.readInt();
+                    job.sentFileKey  = in.readBoolean() ? in.readUTF() : null;
+                    job.attempts     = in.readInt();
+                    job.checkpointUs = in.readLong();
+                    job.createMessageObject();
+                    jobs.add(job);
+                }
+            }
+        } catch (Exception e) {
+            Log.e("DeltaChat", "Cannot read video conversion queue.", e);
+        } finally {
+            if (in != null) {
+                try { in.close(); } catch (Exception e) { }
+            }
+        }
+    }
+
+    private void scheduleSave(int delayMs) {
+        synchronized (this) {
+            if (saveScheduled) {
+                return;
+            }
+            saveScheduled = true;
+        }
+        Utilities.globalQueue.postRunnable(saveRunnable, delayMs);
+    }
+
+    // called on the global queue and on the conversion thread; the lock keeps an older state from being written last
+    private void save() {
+        synchronized (saveRunnable) {
+            saveLocked();
+        }
+    }
+
+    private void saveLocked() {
+        ArrayList<Job> jobsCopy;
+        long[] checkpoints;
+        int[] attempts;
+        synchronized (this) {
+            saveScheduled = false;
+            jobsCopy = new ArrayList<>(jobs);
+            checkpoints = new long[jobsCopy.size()];
+            attempts = new int[jobsCopy.size()];
+            for (int i = 0; i < jobsCopy.size(); i++) {
+                checkpoints[i] = jobsCopy.get(i).checkpointUs;
+                attempts[i] = jobsCopy.get(i).attempts;
+            }
+        }
+
+        File file = getQueueFile();
+        File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(FILE_VERSION);
+            out.writeInt(jobsCopy.size());
+            for (int i = 0; i < jobsCopy.size(); i++) {
+                Job job = jobsCopy.get(i);
+                out.writeUTF(job.attachPath);
+                out.writeLong(job.dialogId);
+                out.writeInt(job.priority);
+                out.writeUTF(job.info.originalPath);
+                out.writeLong(job.info.startTime);
+                out.writeLong(job.info.endTime);
+                out.writeInt(job.info.rotationValue);
+                out.writeInt(job.info.originalWidth);
+                out.writeInt(job.info.originalHeight);
+                out.writeInt(job.info.originalBitrate);
+                out.writeInt(job.info.resultWidth);
+                out.writeInt(job.info.resultHeight);
+                out.writeInt(job.info.resultBitrate);
+                out.writeInt(job.durationSec);
+                out.writeBoolean(job.sentFileKey != null);
+                if (job.sentFileKey != null) {
+                    out.writeUTF(job.sentFileKey);
+                }
+                out.writeInt(attempts[i]);
+                out.writeLong(checkpoints[i]);
+            }
+            out.close();
+            out = null;
+            if (!tempFile.renameTo(file)) {
+                Log.e("DeltaChat", "Cannot write video conversion queue.");
+            }
+        } catch (Exception e) {
+            Log.e("DeltaChat", "Cannot write video conversion queue.", e);
+        } finally {
+            if (out != null) {
+                try { out.close(); } catch (Exception e) { }
+            }
+        }
+    }
+}
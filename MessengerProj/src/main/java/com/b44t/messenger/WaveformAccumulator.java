@@ -0,0 +1,81 @@
+/*******************************************************************************
+ *
+ *                              Delta Chat Android
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    WaveformAccumulator.java
+ * Purpose: Collect the peaks of an audio stream of unknown length in a fixed
+ *          number of bins, suitable for MediaController.getWaveform2()
+ *
+ ******************************************************************************/
+
+
+package com.b44t.messenger;
+
+public class WaveformAccumulator {
+
+    private final short[] bins;
+    private int binCount;
+    private int samplesPerBin = 1;
+    private int samplesInBin;
+    private int peak;
+
+    // binsLength must be even; when all bins are used, neighbours are merged and the bin size is doubled,
+    // so adding a sample is O(1) amortized, independent of the length of the stream.
+    public WaveformAccumulator(int binsLength) {
+        bins = new short[binsLength];
+    }
+
+    public void reset() {
+        binCount = 0;
+        samplesPerBin = 1;
+        samplesInBin = 0;
+        peak = 0;
+    }
+
+    public void add(int sample) {
+        if (sample < 0) {
+            sample = -sample;
+        }
+        if (sample > peak) {
+            peak = sample;
+        }
+        if (++samplesInBin == samplesPerBin) {
+            bins[binCount++] = (short) Math.min(peak, Short.MAX_VALUE);
+            peak = 0;
+            samplesInBin = 0;
+            if (binCount == bins.length) {
+                int half = bins.length / 2;
+                for (int a = 0; a < half; a++) {
+                    bins[a] = (short) Math.max(bins[a * 2], bins[a * 2 + 1]);
+                }
+                binCount = half;
+                samplesPerBin *= 2;
+            }
+        }
+    }
+
+    public short[] getBins() {
+        return bins;
+    }
+
+    public int getBinCount() {
+        return binCount;
+    }
+}
@@ -1031,6 +1031,19 @@ public class LinearLayoutManager extends RecyclerView.LayoutManager implements
         return scrollBy(dy, recycler, state);
     }
 
+    @Override
+    int getPrefetchPosition(int dx, int dy, RecyclerView.State state) {
+        int delta = (mOrientation == HORIZONTAL) ? dx : dy;
+        if (getChildCount() == 0 || delta == 0) {
+            return RecyclerView.NO_POSITION;
+        }
+        ensureLayoutState();
+        final int layoutDirection = delta > 0 ? LayoutState.LAYOUT_END : LayoutState.LAYOUT_START;
+        updateLayoutState(layoutDirection, Math.abs(delta), true, state);
+        final int position = mLayoutState.mCurrentPosition;
+        return position >= 0 && position < state.getItemCount() ? position : RecyclerView.NO_POSITION;
+    }
+
     @Override
     public int computeHorizontalScrollOffset(RecyclerView.State state) {
         return computeScrollOffset(state);
@@ -60,6 +60,7 @@ import android.view.View;
 import android.view.ViewConfiguration;
 import android.view.ViewGroup;
 import android.view.ViewParent;
+import android.view.WindowManager;
 import android.view.accessibility.AccessibilityEvent;
 import android.view.accessibility.AccessibilityManager;
 import android.view.animation.Interpolator;
@@ -73,6 +74,7 @@ import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import static com.b44t.messenger.aosp.AdapterHelper.Callback;
 import static com.b44t.messenger.aosp.AdapterHelper.UpdateOp;
@@ -167,6 +169,12 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
     static final boolean ALLOW_SIZE_IN_UNSPECIFIED_SPEC = Build.VERSION.SDK_INT >= 23;
 
     static final boolean DISPATCH_TEMP_DETACH = false;
+
+    /**
+     * While scrolling, the item that becomes visible next is created and bound in the idle time
+     * after a frame, if this is expected to be done before the next frame is due.
+     */
+    static final boolean ALLOW_PREFETCH = true;
     public static final int HORIZONTAL = 0;
     public static final int VERTICAL = 1;
 
@@ -228,6 +236,12 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
      */
     private static final String TRACE_BIND_VIEW_TAG = "RV OnBindView";
 
+    /**
+     * RecyclerView is creating and binding a View that is expected to be shown in the next frames.
+     * This is done between frames and should not cause jank.
+     */
+    private static final String TRACE_PREFETCH_TAG = "RV Prefetch";
+
     /**
      * RecyclerView is creating a new View.
      * If too many of these present in Systrace:
@@ -292,6 +306,44 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
         }
     };
 
+    public static final int ITEM_TIMING_CREATE = 0;
+    public static final int ITEM_TIMING_BIND = 1;
+    public static final int ITEM_TIMING_MEASURE = 2;
+
+    boolean mItemTimingsEnabled;
+
+    /**
+     * Interval between two frames of the display, used to calculate the deadline for prefetching.
+     */
+    private static long sFrameIntervalNs = 0;
+
+    private int mPrefetchDx;
+    private int mPrefetchDy;
+    private boolean mPrefetchPosted;
+
+    /**
+     * Posted after a scroll step, so it runs after the frame has been drawn.
+     */
+    private final Runnable mPrefetchRunnable = new Runnable() {
+        public void run() {
+            mPrefetchPosted = false;
+            if (mAdapter == null || mLayout == null || !mIsAttached || !mFirstLayoutComplete
+                    || mLayoutFrozen || mDataSetHasChangedAfterLayout || isLayoutRequested()
+                    || isComputingLayout() || mAdapterHelper.hasPendingUpdates()
+                    || mScrollState == SCROLL_STATE_IDLE) {
+                return;
+            }
+            final int position = mLayout.getPrefetchPosition(mPrefetchDx, mPrefetchDy, mState);
+            if (position != NO_POSITION) {
+                final long deadlineNs = TimeUnit.MILLISECONDS.toNanos(getDrawingTime())
+                        + sFrameIntervalNs;
+                TraceCompat.beginSection(TRACE_PREFETCH_TAG);
+                mRecycler.prefetchPositionWithDeadline(position, deadlineNs);
+                TraceCompat.endSection();
+            }
+        }
+    };
+
     private final Rect mTempRect = new Rect();
     private Adapter mAdapter;
     @VisibleForTesting LayoutManager mLayout;
@@ -1536,6 +1588,7 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
         }
         if (consumedX != 0 || consumedY != 0) {
             dispatchOnScrolled(consumedX, consumedY);
+            postPrefetch(consumedX, consumedY);
         }
         if (!awakenScrollBars()) {
             invalidate();
@@ -1543,6 +1596,39 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
         return consumedX != 0 || consumedY != 0;
     }
 
+    /**
+     * Enable calls to {@link #onItemTiming(int, int, long)} for measuring item views. The times
+     * for creating and binding views are always reported as they are needed for prefetching.
+     *
+     * @param enabled true to report the time needed to measure item views
+     */
+    public void setItemTimingsEnabled(boolean enabled) {
+        mItemTimingsEnabled = enabled;
+    }
+
+    /**
+     * Called with the time needed to create, bind or measure an item view. Subclasses may collect
+     * these times to find slow view types; the default implementation does nothing.
+     *
+     * @param timing     One of {@link #ITEM_TIMING_CREATE}, {@link #ITEM_TIMING_BIND} or
+     *                   {@link #ITEM_TIMING_MEASURE}
+     * @param viewType   View type of the item
+     * @param durationNs Duration in nanoseconds
+     */
+    protected void onItemTiming(int timing, int viewType, long durationNs) {
+    }
+
+    private void postPrefetch(int dx, int dy) {
+        if (ALLOW_PREFETCH && mIsAttached) {
+            mPrefetchDx = dx;
+            mPrefetchDy = dy;
+            if (!mPrefetchPosted) {
+                mPrefetchPosted = true;
+                post(mPrefetchRunnable);
+            }
+        }
+    }
+
     /**
      * <p>Compute the horizontal offset of the horizontal scrollbar's thumb within the horizontal
      * range. This value is used to compute the length of the thumb within the scrollbar's track.
@@ -2127,6 +2213,20 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
             mLayout.dispatchAttachedToWindow(this);
         }
         mPostedAnimatorRunner = false;
+
+        if (ALLOW_PREFETCH && sFrameIntervalNs == 0) {
+            // the refresh rate does not change while the app is running, so this is done only once
+            float refreshRate = 60.0f;
+            final WindowManager windowManager =
+                    (WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE);
+            if (!isInEditMode() && windowManager != null) {
+                float displayRefreshRate = windowManager.getDefaultDisplay().getRefreshRate();
+                if (displayRefreshRate >= 30.0f) {
+                    refreshRate = displayRefreshRate;
+                }
+            }
+            sFrameIntervalNs = (long) (1000000000 / refreshRate);
+        }
     }
 
     @Override
@@ -2143,6 +2243,8 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
             mLayout.dispatchDetachedFromWindow(this, mRecycler);
         }
         removeCallbacks(mItemAnimatorRunner);
+        removeCallbacks(mPrefetchRunnable);
+        mPrefetchPosted = false;
         mViewInfoStore.onDetach();
     }
 
@@ -4335,10 +4437,52 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
 
         private static final int DEFAULT_MAX_SCRAP = 5;
 
+        /**
+         * Running averages of the create and bind times per view type, used to decide whether
+         * a view can be prefetched before the next frame.
+         */
+        private SparseArray<long[]> mAverageNs = new SparseArray<>();
+
         public void clear() {
             mScrap.clear();
         }
 
+        private long[] getAverageNsForType(int viewType) {
+            long[] averageNs = mAverageNs.get(viewType);
+            if (averageNs == null) {
+                averageNs = new long[2];
+                mAverageNs.put(viewType, averageNs);
+            }
+            return averageNs;
+        }
+
+        private static long runningAverage(long oldAverage, long newValue) {
+            if (oldAverage == 0) {
+                return newValue;
+            }
+            return (oldAverage / 4 * 3) + (newValue / 4);
+        }
+
+        void factorInCreateTime(int viewType, long createTimeNs) {
+            long[] averageNs = getAverageNsForType(viewType);
+            averageNs[0] = runningAverage(averageNs[0], createTimeNs);
+        }
+
+        void factorInBindTime(int viewType, long bindTimeNs) {
+            long[] averageNs = getAverageNsForType(viewType);
+            averageNs[1] = runningAverage(averageNs[1], bindTimeNs);
+        }
+
+        boolean willCreateInTime(int viewType, long approxCurrentNs, long deadlineNs) {
+            long expectedDurationNs = getAverageNsForType(viewType)[0];
+            return expectedDurationNs == 0 || approxCurrentNs + expectedDurationNs < deadlineNs;
+        }
+
+        boolean willBindInTime(int viewType, long approxCurrentNs, long deadlineNs) {
+            long expectedDurationNs = getAverageNsForType(viewType)[1];
+            return expectedDurationNs == 0 || approxCurrentNs + expectedDurationNs < deadlineNs;
+        }
+
         public void setMaxRecycledViews(int viewType, int max) {
             mMaxScrap.put(viewType, max);
             final ArrayList<ViewHolder> scrapHeap = mScrap.get(viewType);
@@ -4452,7 +4596,7 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
         private final List<ViewHolder>
                 mUnmodifiableAttachedScrap = Collections.unmodifiableList(mAttachedScrap);
 
-        private int mViewCacheMax = DEFAULT_CACHE_SIZE;
+        private int mViewCacheMax = DEFAULT_CACHE_SIZE + (ALLOW_PREFETCH ? PREFETCH_CACHE_EXTRA : 0);
 
         private RecycledViewPool mRecyclerPool;
 
@@ -4460,6 +4604,9 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
 
         private static final int DEFAULT_CACHE_SIZE = 2;
 
+        // a prefetched view is kept in the view cache until it is used, so there is room for one more view
+        private static final int PREFETCH_CACHE_EXTRA = 1;
+
         /**
          * Clear scrap views out of this recycler. Detached views contained within a
          * recycled view pool will remain.
@@ -4475,9 +4622,9 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
          * @param viewCount Number of views to keep before sending views to the shared pool
          */
         public void setViewCacheSize(int viewCount) {
-            mViewCacheMax = viewCount;
+            mViewCacheMax = viewCount + (ALLOW_PREFETCH ? PREFETCH_CACHE_EXTRA : 0);
             // first, try the views that can be recycled
-            for (int i = mCachedViews.size() - 1; i >= 0 && mCachedViews.size() > viewCount; i--) {
+            for (int i = mCachedViews.size() - 1; i >= 0 && mCachedViews.size() > mViewCacheMax; i--) {
                 recycleCachedViewAt(i);
             }
         }
@@ -4712,7 +4859,11 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
                     }
                 }
                 if (holder == null) {
+                    final long startNs = System.nanoTime();
                     holder = mAdapter.createViewHolder(RecyclerView.this, type);
+                    final long createNs = System.nanoTime() - startNs;
+                    getRecycledViewPool().factorInCreateTime(type, createNs);
+                    onItemTiming(ITEM_TIMING_CREATE, type, createNs);
                     if (DEBUG) {
                         Log.d(TAG, "getViewForPosition created new ViewHolder");
                     }
@@ -4746,7 +4897,11 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
                 }
                 final int offsetPosition = mAdapterHelper.findPositionOffset(position);
                 holder.mOwnerRecyclerView = RecyclerView.this;
+                final long startNs = System.nanoTime();
                 mAdapter.bindViewHolder(holder, offsetPosition);
+                final long bindNs = System.nanoTime() - startNs;
+                getRecycledViewPool().factorInBindTime(holder.getItemViewType(), bindNs);
+                onItemTiming(ITEM_TIMING_BIND, holder.getItemViewType(), bindNs);
                 attachAccessibilityDelegate(holder.itemView);
                 bound = true;
                 if (mState.isPreLayout()) {
@@ -4770,6 +4925,74 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
             return holder.itemView;
         }
 
+        /**
+         * Creates and binds the view for the given position if this is expected to be done before
+         * the deadline and puts it into the view cache, so that the next scroll step can use it
+         * without further work. Must not be called during layout or with pending adapter updates.
+         *
+         * @param position Adapter position of the item to prefetch
+         * @param deadlineNs Time in {@link System#nanoTime()} when the next frame is due
+         */
+        void prefetchPositionWithDeadline(int position, long deadlineNs) {
+            if (position < 0 || position >= mState.getItemCount()
+                    || findViewHolderForPosition(position, false) != null) {
+                return;
+            }
+            final int cacheSize = mCachedViews.size();
+            for (int i = 0; i < cacheSize; i++) {
+                final ViewHolder cached = mCachedViews.get(i);
+                if (cached.getLayoutPosition() == position && !cached.isInvalid()) {
+                    return; // already prefetched or just scrolled out
+                }
+            }
+
+            final int type = mAdapter.getItemViewType(position);
+            final RecycledViewPool pool = getRecycledViewPool();
+            ViewHolder holder = pool.getRecycledView(type);
+            if (holder != null) {
+                holder.resetInternal();
+            } else {
+                final long startNs = System.nanoTime();
+                if (!pool.willCreateInTime(type, startNs, deadlineNs)) {
+                    return;
+                }
+                holder = mAdapter.createViewHolder(RecyclerView.this, type);
+                final long createNs = System.nanoTime() - startNs;
+                pool.factorInCreateTime(type, createNs);
+                onItemTiming(ITEM_TIMING_CREATE, type, createNs);
+            }
+
+            final long startNs = System.nanoTime();
+            if (!pool.willBindInTime(type, startNs, deadlineNs)) {
+                // keep the unbound holder, the next layout does not need to create it
+                pool.putRecycledView(holder);
+                return;
+            }
+            holder.mOwnerRecyclerView = RecyclerView.this;
+            mAdapter.bindViewHolder(holder, position);
+            final long bindNs = System.nanoTime() - startNs;
+            pool.factorInBindTime(type, bindNs);
+            onItemTiming(ITEM_TIMING_BIND, type, bindNs);
+            attachAccessibilityDelegate(holder.itemView);
+
+            final ViewGroup.LayoutParams lp = holder.itemView.getLayoutParams();
+            final LayoutParams rvLayoutParams;
+            if (lp == null) {
+                rvLayoutParams = (LayoutParams) generateDefaultLayoutParams();
+                holder.itemView.setLayoutParams(rvLayoutParams);
+            } else if (!checkLayoutParams(lp)) {
+                rvLayoutParams = (LayoutParams) generateLayoutParams(lp);
+                holder.itemView.setLayoutParams(rvLayoutParams);
+            } else {
+                rvLayoutParams = (LayoutParams) lp;
+            }
+            rvLayoutParams.mViewHolder = holder;
+            rvLayoutParams.mPendingInvalidate = false;
+
+            // the bound holder is valid for the position, so it goes into the view cache
+            recycleViewHolderInternal(holder);
+        }
+
         private void attachAccessibilityDelegate(View itemView) {
             if (isAccessibilityEnabled()) {
                 if (ViewCompat.getImportantForAccessibility(itemView) ==
@@ -6544,6 +6767,22 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
             return 0;
         }
 
+        /**
+         * Return the adapter position of the item that becomes visible next when the content
+         * continues to scroll by dx/dy. This item is prefetched between frames.
+         * <p>
+         * The default implementation returns {@link RecyclerView#NO_POSITION} which disables
+         * prefetching.
+         *
+         * @param dx    last horizontal scroll step
+         * @param dy    last vertical scroll step
+         * @param state Transient state of RecyclerView
+         * @return Adapter position of the next item or {@link RecyclerView#NO_POSITION}
+         */
+        int getPrefetchPosition(int dx, int dy, State state) {
+            return NO_POSITION;
+        }
+
         /**
          * Query if horizontal scrolling is currently supported. The default implementation
          * returns false.
@@ -7390,8 +7629,19 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
                     getPaddingTop() + getPaddingBottom() + heightUsed, lp.height,
                     canScrollVertically());
             if (shouldMeasureChild(child, widthSpec, heightSpec, lp)) {
+                measureChildTimed(child, widthSpec, heightSpec);
+            }
+        }
+
+        private void measureChildTimed(View child, int widthSpec, int heightSpec) {
+            if (!mRecyclerView.mItemTimingsEnabled) {
                 child.measure(widthSpec, heightSpec);
+                return;
             }
+            final long startNs = System.nanoTime();
+            child.measure(widthSpec, heightSpec);
+            mRecyclerView.onItemTiming(ITEM_TIMING_MEASURE, getItemViewType(child),
+                    System.nanoTime() - startNs);
         }
 
         /**
@@ -7492,7 +7742,7 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
                             lp.topMargin + lp.bottomMargin + heightUsed, lp.height,
                     canScrollVertically());
             if (shouldMeasureChild(child, widthSpec, heightSpec, lp)) {
-                child.measure(widthSpec, heightSpec);
+                measureChildTimed(child, widthSpec, heightSpec);
             }
         }
 
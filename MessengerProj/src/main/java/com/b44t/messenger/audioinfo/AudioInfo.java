@@ -16,15 +16,19 @@
 package com.b44t.messenger.audioinfo;
 
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 
 import com.b44t.messenger.audioinfo.m4a.M4AInfo;
 import com.b44t.messenger.audioinfo.mp3.MP3Info;
+import com.b44t.messenger.audioinfo.util.MappedInputStream;
 
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 public abstract class AudioInfo {
 	protected String brand;			// brand, e.g. "M4A", "ID3", ...
@@ -48,8 +52,13 @@ public abstract class AudioInfo {
 	protected String grouping;		// track grouping
 	protected boolean compilation;	// compilation flag
 	protected String lyrics;		// song lyrics
-	protected Bitmap cover;			// cover image data
-    protected Bitmap smallCover;	// cover image data
+	protected byte[] coverData;		// encoded cover image, decoded on first use
+	private Bitmap cover;			// cover image data
+	private Bitmap smallCover;		// cover image data
+	private boolean coverDecoded;
+
+	// larger files are read through a buffered stream, mapping them may fail on devices with little address space
+	private static final long MAX_MAPPED_LENGTH = 64 * 1024 * 1024;
 
 	public String getBrand() {
 		return brand;
@@ -127,28 +136,112 @@ public abstract class AudioInfo {
 		return lyrics;
 	}
 
-	public Bitmap getCover() {
+	public boolean hasCover() {
+		return coverData != null;
+	}
+
+	public synchronized Bitmap getCover() {
+		decodeCover();
 		return cover;
 	}
 
-    public Bitmap getSmallCover() {
-        return smallCover;
-    }
+	public synchronized Bitmap getSmallCover() {
+		decodeCover();
+		return smallCover;
+	}
+
+	// used by parsers that take the data from another parser
+	protected void copyCoverFrom(AudioInfo other) {
+		coverData = other.coverData;
+	}
+
+	private void decodeCover() {
+		if (coverDecoded) {
+			return;
+		}
+		coverDecoded = true;
+		if (coverData == null) {
+			return;
+		}
+		try {
+			byte[] bytes = coverData;
+			BitmapFactory.Options opts = new BitmapFactory.Options();
+			opts.inJustDecodeBounds = true;
+			opts.inSampleSize = 1;
+			BitmapFactory.decodeByteArray(bytes, 0, bytes.length, opts);
+			if (opts.outWidth > 800 || opts.outHeight > 800) {
+				int size = Math.max(opts.outWidth, opts.outHeight);
+				while (size > 800) {
+					opts.inSampleSize *= 2;
+					size /= 2;
+				}
+			}
+			opts.inJustDecodeBounds = false;
+			cover = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, opts);
+			if (cover != null) {
+				float scale = Math.max(cover.getWidth(), cover.getHeight()) / 120.0f;
+				if (scale > 0) {
+					smallCover = Bitmap.createScaledBitmap(cover, (int) (cover.getWidth() / scale), (int) (cover.getHeight() / scale), true);
+				} else {
+					smallCover = cover;
+				}
+				if (smallCover == null) {
+					smallCover = cover;
+				}
+			}
+		} catch (Throwable e) {
+			e.printStackTrace();
+		}
+		coverData = null; // the bitmaps are kept instead
+	}
 
 	public static AudioInfo getAudioInfo(File file) {
-        try {
-            byte header[] = new byte[12];
-            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
-            randomAccessFile.readFully(header, 0, 8);
-            randomAccessFile.close();
-            InputStream input = new BufferedInputStream(new FileInputStream(file));
-            if (header[4] == 'f' && header[5] == 't' && header[6] == 'y' && header[7] == 'p') {
-                return new M4AInfo(input);
-            } else {
-                return new MP3Info(input, file.length());
-            }
-        } catch (Exception e) {
-            return null;
-        }
-    }
+		return getAudioInfo(file, true);
+	}
+
+	/**
+	 * @param withCover set to false if only the duration and the texts are needed; pictures are skipped then
+	 *                  without reading them. If set, the cover is decoded on the first call to getCover().
+	 */
+	public static AudioInfo getAudioInfo(File file, boolean withCover) {
+		RandomAccessFile randomAccessFile = null;
+		try {
+			randomAccessFile = new RandomAccessFile(file, "r");
+			FileChannel channel = randomAccessFile.getChannel();
+			long length = channel.size();
+			if (length < 8) {
+				return null;
+			}
+
+			ByteBuffer header;
+			InputStream input;
+			if (length <= MAX_MAPPED_LENGTH) {
+				// the mapping stays valid after the file is closed
+				header = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+				input = new MappedInputStream(header);
+			} else {
+				header = ByteBuffer.allocate(8);
+				while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+					// read the complete header
+				}
+				input = new BufferedInputStream(new FileInputStream(randomAccessFile.getFD()));
+			}
+
+			if (header.get(4) == 'f' && header.get(5) == 't' && header.get(6) == 'y' && header.get(7) == 'p') {
+				return new M4AInfo(input, withCover);
+			} else {
+				return new MP3Info(input, length, withCover);
+			}
+		} catch (Exception e) {
+			return null;
+		} finally {
+			if (randomAccessFile != null) {
+				try {
+					randomAccessFile.close();
+				} catch (Exception e) {
+					// ignore
+				}
+			}
+		}
+	}
 }
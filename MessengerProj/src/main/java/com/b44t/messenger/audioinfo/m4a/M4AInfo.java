@@ -15,9 +15,6 @@
  */
 package com.b44t.messenger.audioinfo.m4a;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-
 import com.b44t.messenger.audioinfo.AudioInfo;
 import com.b44t.messenger.audioinfo.mp3.ID3v1Genre;
 
@@ -40,13 +37,19 @@ public class M4AInfo extends AudioInfo {
 	private byte rating;            // none = 0, clean = 2, explicit = 4
 
 	private final Level debugLevel;
+	private final boolean withCover; // if unset, the cover is skipped without being read
 
 	public M4AInfo(InputStream input) throws IOException {
-		this(input, Level.FINEST);
+		this(input, Level.FINEST, true);
+	}
+
+	public M4AInfo(InputStream input, boolean withCover) throws IOException {
+		this(input, Level.FINEST, withCover);
 	}
 
-	public M4AInfo(InputStream input, Level debugLevel) throws IOException {
+	public M4AInfo(InputStream input, Level debugLevel, boolean withCover) throws IOException {
 		this.debugLevel = debugLevel;
+		this.withCover = withCover;
 		MP4Input mp4 = new MP4Input(input);
 		if (LOGGER.isLoggable(debugLevel)) {
 			LOGGER.log(debugLevel, mp4.toString());
@@ -210,35 +213,9 @@ public class M4AInfo extends AudioInfo {
 				}
 				break;
 			case "covr":
-                try {
-                    byte[] bytes = atom.readBytes();
-                    BitmapFactory.Options opts = new BitmapFactory.Options();
-                    opts.inJustDecodeBounds = true;
-                    opts.inSampleSize = 1;
-                    BitmapFactory.decodeByteArray(bytes, 0, bytes.length, opts);
-                    if (opts.outWidth > 800 || opts.outHeight > 800) {
-                        int size = Math.max(opts.outWidth, opts.outHeight);
-                        while (size > 800) {
-                            opts.inSampleSize *= 2;
-                            size /= 2;
-                        }
-                    }
-                    opts.inJustDecodeBounds = false;
-                    cover = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, opts);
-                    if (cover != null) {
-                        float scale = Math.max(cover.getWidth(), cover.getHeight()) / 120.0f;
-                        if (scale > 0) {
-                            smallCover = Bitmap.createScaledBitmap(cover, (int) (cover.getWidth() / scale), (int) (cover.getHeight() / scale), true);
-                        } else {
-                            smallCover = cover;
-                        }
-                        if (smallCover == null) {
-                            smallCover = cover;
-                        }
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+				if (withCover) {
+					coverData = atom.readBytes(); // decoded on first use, see AudioInfo.getCover()
+				}
 				break;
 			case "cpil":
 				compilation = atom.readBoolean();
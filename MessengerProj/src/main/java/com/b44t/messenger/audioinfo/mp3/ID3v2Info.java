@@ -15,9 +15,6 @@
  */
 package com.b44t.messenger.audioinfo.mp3;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-
 import com.b44t.messenger.audioinfo.AudioInfo;
 
 import java.io.IOException;
@@ -69,13 +66,19 @@ public class ID3v2Info extends AudioInfo {
 	private final Level debugLevel;
 
 	private byte coverPictureType;
+	private final boolean withCover; // if unset, pictures are skipped without being read
 
 	public ID3v2Info(InputStream input) throws IOException, ID3v2Exception {
-		this(input, Level.FINEST);
+		this(input, Level.FINEST, true);
 	}
 
 	public ID3v2Info(InputStream input, Level debugLevel) throws IOException, ID3v2Exception {
+		this(input, debugLevel, true);
+	}
+
+	public ID3v2Info(InputStream input, Level debugLevel, boolean withCover) throws IOException, ID3v2Exception {
 		this.debugLevel = debugLevel;
+		this.withCover = withCover;
 		if (isID3v2StartPosition(input)) {
 			ID3v2TagHeader tagHeader = new ID3v2TagHeader(input);
 			brand = "ID3";
@@ -127,38 +130,10 @@ public class ID3v2Info extends AudioInfo {
 		switch (frame.getFrameHeader().getFrameId()) {
 			case "PIC":
 			case "APIC": // cover: prefer TYPE_COVER_FRONT, then TYPE_OTHER, then anything else
-				if (cover == null || coverPictureType != AttachedPicture.TYPE_COVER_FRONT) {
+				if (withCover && (coverData == null || coverPictureType != AttachedPicture.TYPE_COVER_FRONT)) {
 					AttachedPicture picture = parseAttachedPictureFrame(frame);
-					if (cover == null || picture.type == AttachedPicture.TYPE_COVER_FRONT || picture.type == AttachedPicture.TYPE_OTHER) {
-						try {
-							byte[] bytes = picture.imageData;
-                            BitmapFactory.Options opts = new BitmapFactory.Options();
-                            opts.inJustDecodeBounds = true;
-                            opts.inSampleSize = 1;
-                            BitmapFactory.decodeByteArray(bytes, 0, bytes.length, opts);
-                            if (opts.outWidth > 800 || opts.outHeight > 800) {
-                                int size = Math.max(opts.outWidth, opts.outHeight);
-                                while (size > 800) {
-                                    opts.inSampleSize *= 2;
-                                    size /= 2;
-                                }
-                            }
-                            opts.inJustDecodeBounds = false;
-                            cover = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, opts);
-                            if (cover != null) {
-                                float scale = Math.max(cover.getWidth(), cover.getHeight()) / 120.0f;
-                                if (scale > 0) {
-                                    smallCover = Bitmap.createScaledBitmap(cover, (int) (cover.getWidth() / scale), (int) (cover.getHeight() / scale), true);
-                                } else {
-                                    smallCover = cover;
-                                }
-                                if (smallCover == null) {
-                                    smallCover = cover;
-                                }
-                            }
-						} catch (Throwable e) {
-							e.printStackTrace();
-						}
+					if (coverData == null || picture.type == AttachedPicture.TYPE_COVER_FRONT || picture.type == AttachedPicture.TYPE_OTHER) {
+						coverData = picture.imageData; // decoded on first use, see AudioInfo.getCover()
 						coverPictureType = picture.type;
 					}
 				}
@@ -30,22 +30,32 @@ public class MP3Info extends AudioInfo {
 		boolean stopRead(MP3Input data) throws IOException;
 	}
 
+	/**
+	 * Number of evenly spaced positions read to estimate the duration of VBR files without Xing/VBRI header;
+	 * more positions are more accurate but need more I/O.
+	 */
+	private static final int VBR_SAMPLE_POSITIONS = 16;
+	private static final int VBR_FRAMES_PER_SAMPLE = 32;
+
 	public MP3Info(InputStream input, long fileLength) throws IOException, ID3v2Exception, MP3Exception {
-		this(input, fileLength, Level.FINEST);
+		this(input, fileLength, Level.FINEST, true);
+	}
+
+	public MP3Info(InputStream input, long fileLength, boolean withCover) throws IOException, ID3v2Exception, MP3Exception {
+		this(input, fileLength, Level.FINEST, withCover);
 	}
 
-	public MP3Info(InputStream input, final long fileLength, Level debugLevel) throws IOException, ID3v2Exception, MP3Exception {
+	public MP3Info(InputStream input, final long fileLength, Level debugLevel, boolean withCover) throws IOException, ID3v2Exception, MP3Exception {
 		brand = "MP3";
 		version = "0";
 		MP3Input data = new MP3Input(input);
 		if (ID3v2Info.isID3v2StartPosition(data)) {
-			ID3v2Info info = new ID3v2Info(data, debugLevel);
+			ID3v2Info info = new ID3v2Info(data, debugLevel, withCover);
 			album = info.getAlbum();
 			albumArtist = info.getAlbumArtist();
 			artist = info.getArtist();
 			comment = info.getComment();
-			cover = info.getCover();
-			smallCover = info.getSmallCover();
+			copyCoverFrom(info);
 			compilation = info.isCompilation();
 			composer = info.getComposer();
 			copyright = info.getCopyright();
@@ -247,8 +257,13 @@ public class MP3Info extends AudioInfo {
 				int cbrThreshold = 10000 / frame.getHeader().getDuration(); // assume CBR after 10 seconds
 
 				while (true) {
-					if (numberOfFrames == cbrThreshold && !vbr && totalLength > 0) {
-						return frame.getHeader().getTotalDuration(totalLength - firstFramePosition);
+					if (numberOfFrames == cbrThreshold && totalLength > 0) {
+						if (!vbr) {
+							return frame.getHeader().getTotalDuration(totalLength - firstFramePosition);
+						} else if (totalLength - data.getPosition() > 2L * VBR_SAMPLE_POSITIONS * VBR_FRAMES_PER_SAMPLE * frame.getSize()) {
+							// for shorter files, reading all frames is not much more
+							return estimateVbrDuration(data, totalLength, firstFramePosition, frame, stopCondition, bitrateSum, numberOfFrames);
+						}
 					}
 					if ((frame = readNextFrame(data, stopCondition, frame)) == null) {
 						break;
@@ -267,4 +282,33 @@ public class MP3Info extends AudioInfo {
 			throw new MP3Exception("No audio frame");
 		}
 	}
+
+	/*
+	 * Read some frames at evenly spaced positions after the current one and extrapolate the average bitrate
+	 * of these and the frames read so far to the whole file. Skipping is cheap, so only the sampled frames are read.
+	 */
+	long estimateVbrDuration(MP3Input data, long totalLength, long firstFramePosition, MP3Frame previousFrame,
+							 StopReadCondition stopCondition, long bitrateSum, int numberOfFrames) throws IOException {
+		long start = data.getPosition();
+		long step = (totalLength - start) / (VBR_SAMPLE_POSITIONS + 1);
+		for (int i = 1; i <= VBR_SAMPLE_POSITIONS; i++) {
+			long target = start + step * i;
+			if (target > data.getPosition()) {
+				data.skipFully(target - data.getPosition());
+			}
+			MP3Frame frame = readFirstFrame(data, stopCondition); // resynchronise, we are somewhere in a frame
+			for (int n = 0; frame != null && n < VBR_FRAMES_PER_SAMPLE; n++) {
+				if (!frame.getHeader().isCompatible(previousFrame.getHeader())) {
+					break; // a false sync, eg. in an embedded picture
+				}
+				bitrateSum += frame.getHeader().getBitrate();
+				numberOfFrames++;
+				frame = readNextFrame(data, stopCondition, frame);
+			}
+			if (frame == null && data.getPosition() >= totalLength - 128) {
+				break; // end of file reached
+			}
+		}
+		return 1000L * (totalLength - firstFramePosition) * numberOfFrames * 8 / bitrateSum;
+	}
 }
@@ -0,0 +1,92 @@
+/*******************************************************************************
+ *
+ *                              Delta Chat Android
+ *                           (C) 2017 Björn Petersen
+ *                    Contact: r10s@b44t.com, http://b44t.com
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program.  If not, see http://www.gnu.org/licenses/ .
+ *
+ *******************************************************************************
+ *
+ * File:    MappedInputStream.java
+ * Purpose: InputStream on a (memory-mapped) ByteBuffer; skipping is free and
+ *          mark() has no read limit
+ *
+ ******************************************************************************/
+
+package com.b44t.messenger.audioinfo.util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+public class MappedInputStream extends InputStream {
+	private final ByteBuffer buffer;
+	private int markPosition;
+
+	public MappedInputStream(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	@Override
+	public int read() {
+		if (!buffer.hasRemaining()) {
+			return -1;
+		}
+		return buffer.get() & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) {
+			return 0;
+		}
+		int remaining = buffer.remaining();
+		if (remaining == 0) {
+			return -1;
+		}
+		len = Math.min(len, remaining);
+		buffer.get(b, off, len);
+		return len;
+	}
+
+	@Override
+	public long skip(long n) {
+		if (n <= 0) {
+			return 0;
+		}
+		int skip = (int) Math.min(n, buffer.remaining());
+		buffer.position(buffer.position() + skip);
+		return skip;
+	}
+
+	@Override
+	public int available() {
+		return buffer.remaining();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		markPosition = buffer.position();
+	}
+
+	@Override
+	public synchronized void reset() {
+		buffer.position(markPosition);
+	}
+}
@@ -53,97 +53,125 @@ import com.coremedia.iso.boxes.TrackHeaderBox;
 import com.googlecode.mp4parser.DataSource;
 import com.googlecode.mp4parser.util.Matrix;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.List;
 
 @TargetApi(16)
 public class MP4Builder {
 
+    private static final int  WRITE_BUFFER_SIZE        = 256 * 1024; // smaller samples are collected and written together
+    private static final long MOOV_RESERVE_BASE        = 8 * 1024;
+    private static final long MOOV_RESERVE_PER_SECOND  = 1024;       // about 30 video frames and 47 audio frames per second
+    private static final long MOOV_RESERVE_UNKNOWN     = 64 * 1024;
+
     private InterleaveChunkMdat mdat = null;
     private Mp4Movie currentMp4Movie = null;
-    private FileOutputStream fos = null;
+    private RandomAccessFile file = null;
     private FileChannel fc = null;
-    private long dataOffset = 0;
-    private long writedSinceLastMdat = 0;
-    private boolean writeNewMdat = true;
-    private HashMap<Track, long[]> track2SampleSizes = new HashMap<>();
+    private long dataOffset = 0;  // the file offset of the next sample, including the buffered data
+    private ByteBuffer writeBuffer = null;
     private ByteBuffer sizeBuffer = null;
 
+    // in fast start mode, the moov box is written before the mdat box, so that a recipient can start playing the
+    // video before the whole file is downloaded; space for it is reserved in a free box behind the ftyp box.
+    private boolean fastStart;
+    private long moovOffset;
+    private long moovReserved;
+
     public MP4Builder createMovie(Mp4Movie mp4Movie) throws Exception {
+        return createMovie(mp4Movie, false, 0);
+    }
+
+    /**
+     * @param expectedDurationUs used to estimate the space reserved for the moov box in fast start mode, 0 if unknown;
+     *                           if the reserved space is too small, the data are moved on finishMovie()
+     */
+    public MP4Builder createMovie(Mp4Movie mp4Movie, boolean fastStart, long expectedDurationUs) throws Exception {
         currentMp4Movie = mp4Movie;
+        this.fastStart = fastStart;
 
-        fos = new FileOutputStream(mp4Movie.getCacheFile());
-        fc = fos.getChannel();
+        mp4Movie.getCacheFile().delete(); // the file is not truncated by RandomAccessFile
+        file = new RandomAccessFile(mp4Movie.getCacheFile(), "rw");
+        fc = file.getChannel();
 
         FileTypeBox fileTypeBox = createFileTypeBox();
         fileTypeBox.getBox(fc);
         dataOffset += fileTypeBox.getSize();
-        writedSinceLastMdat += dataOffset;
 
+        if (fastStart) {
+            moovOffset = dataOffset;
+            moovReserved = expectedDurationUs > 0 ? MOOV_RESERVE_BASE + expectedDurationUs / 1000000 * MOOV_RESERVE_PER_SECOND : MOOV_RESERVE_UNKNOWN;
+            writeFreeBox(moovOffset, moovReserved);
+            dataOffset += moovReserved;
+        }
+
+        // a single mdat box, its size is written on finishMovie()
         mdat = new InterleaveChunkMdat();
+        mdat.setContentSize(0);
+        mdat.setDataOffset(dataOffset);
+        mdat.getBox(fc);
+        dataOffset += 16;
 
+        writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
         sizeBuffer = ByteBuffer.allocateDirect(4);
 
         return this;
     }
 
-    private void flushCurrentMdat() throws Exception {
-        long oldPosition = fc.position();
-        fc.position(mdat.getOffset());
-        mdat.getBox(fc);
-        fc.position(oldPosition);
-        mdat.setDataOffset(0);
-        mdat.setContentSize(0);
-        fos.flush();
-    }
-
+    // returns true if data were written to the file
     public boolean writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo, boolean isAudio) throws Exception {
-        if (writeNewMdat) {
-            mdat.setContentSize(0);
-            mdat.getBox(fc);
-            mdat.setDataOffset(dataOffset);
-            dataOffset += 16;
-            writedSinceLastMdat += 16;
-            writeNewMdat = false;
-        }
-
-        mdat.setContentSize(mdat.getContentSize() + bufferInfo.size);
-        writedSinceLastMdat += bufferInfo.size;
-
-        boolean flush = false;
-        if (writedSinceLastMdat >= 32 * 1024) {
-            flushCurrentMdat();
-            writeNewMdat = true;
-            flush = true;
-            writedSinceLastMdat -= 32 * 1024;
-        }
-
         currentMp4Movie.addSample(trackIndex, dataOffset, bufferInfo);
         byteBuf.position(bufferInfo.offset + (isAudio ? 0 : 4));
         byteBuf.limit(bufferInfo.offset + bufferInfo.size);
+        mdat.setContentSize(mdat.getContentSize() + bufferInfo.size);
+        dataOffset += bufferInfo.size;
 
+        // video samples get their size as prefix instead of the start code
         if (!isAudio) {
-            sizeBuffer.position(0);
+            sizeBuffer.clear();
             sizeBuffer.putInt(bufferInfo.size - 4);
-            sizeBuffer.position(0);
-            fc.write(sizeBuffer);
+            sizeBuffer.flip();
         }
 
-        fc.write(byteBuf);
-        dataOffset += bufferInfo.size;
+        if (writeBuffer.remaining() >= bufferInfo.size) {
+            if (!isAudio) {
+                writeBuffer.put(sizeBuffer);
+            }
+            writeBuffer.put(byteBuf);
+            return false;
+        }
 
-        if (flush) {
-            fos.flush();
+        // the sample does not fit into the buffer; write the buffer and the sample with a single gathering write
+        writeBuffer.flip();
+        ByteBuffer[] buffers = isAudio ? new ByteBuffer[]{writeBuffer, byteBuf} : new ByteBuffer[]{writeBuffer, sizeBuffer, byteBuf};
+        while (hasRemaining(buffers)) { // the sample may be empty, so all buffers are checked
+            fc.write(buffers);
         }
-        return flush;
+        writeBuffer.clear();
+        return true;
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void flushWriteBuffer() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            fc.write(writeBuffer);
+        }
+        writeBuffer.clear();
     }
 
     public int addTrack(MediaFormat mediaFormat, boolean isAudio) throws Exception {
@@ -151,25 +179,73 @@ public class MP4Builder {
     }
 
     public void finishMovie(boolean error) throws Exception {
-        if (mdat.getContentSize() != 0) {
-            flushCurrentMdat();
-        }
+        flushWriteBuffer();
 
-        for (Track track : currentMp4Movie.getTracks()) {
-            List<Sample> samples = track.getSamples();
-            long[] sizes = new long[samples.size()];
-            for (int i = 0; i < sizes.length; i++) {
-                sizes[i] = samples.get(i).getSize();
+        Box moov = createMovieBox(currentMp4Movie);
+        if (fastStart) {
+            // the space left behind the moov box must be a free box, that is at least 8 bytes
+            long moovSize = moov.getSize();
+            if (moovSize != moovReserved && moovSize + 8 > moovReserved) {
+                long shift = moovSize + 8 - moovReserved;
+                moveData(mdat.getOffset(), dataOffset, shift);
+                for (Track track : currentMp4Movie.getTracks()) {
+                    track.shiftSampleOffsets(shift);
+                }
+                mdat.setDataOffset(mdat.getOffset() + shift);
+                moovReserved += shift;
+                dataOffset += shift;
+                moov = createMovieBox(currentMp4Movie); // the offsets change, the size does not
+            }
+            fc.position(moovOffset);
+            moov.getBox(fc);
+            if (moovReserved > moovSize) {
+                writeFreeBox(moovOffset + moovSize, moovReserved - moovSize);
             }
-            track2SampleSizes.put(track, sizes);
         }
 
-        Box moov = createMovieBox(currentMp4Movie);
-        moov.getBox(fc);
-        fos.flush();
+        fc.position(mdat.getOffset());
+        mdat.getBox(fc);
+
+        if (!fastStart) {
+            fc.position(dataOffset);
+            moov.getBox(fc);
+        }
 
         fc.close();
-        fos.close();
+        file.close();
+    }
+
+    private void writeFreeBox(long offset, long size) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate((int) size);
+        IsoTypeWriter.writeUInt32(bb, size);
+        bb.put(IsoFile.fourCCtoBytes("free"));
+        bb.rewind();
+        fc.position(offset);
+        while (bb.hasRemaining()) {
+            fc.write(bb);
+        }
+    }
+
+    // move the bytes from start to end by shift bytes towards the end of the file, starting with the last block
+    private void moveData(long start, long end, long shift) throws IOException {
+        ByteBuffer buffer = writeBuffer;
+        long position = end;
+        while (position > start) {
+            int length = (int) Math.min(buffer.capacity(), position - start);
+            position -= length;
+            buffer.clear();
+            buffer.limit(length);
+            while (buffer.hasRemaining()) {
+                if (fc.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("unexpected end of file");
+                }
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                fc.write(buffer, position + shift + buffer.position());
+            }
+        }
+        buffer.clear();
     }
 
     protected FileTypeBox createFileTypeBox() {
@@ -364,19 +440,8 @@ public class MP4Builder {
     }
 
     protected void createStts(Track track, SampleTableBox stbl) {
-        TimeToSampleBox.Entry lastEntry = null;
-        List<TimeToSampleBox.Entry> entries = new ArrayList<>();
-
-        for (long delta : track.getSampleDurations()) {
-            if (lastEntry != null && lastEntry.getDelta() == delta) {
-                lastEntry.setCount(lastEntry.getCount() + 1);
-            } else {
-                lastEntry = new TimeToSampleBox.Entry(1, delta);
-                entries.add(lastEntry);
-            }
-        }
         TimeToSampleBox stts = new TimeToSampleBox();
-        stts.setEntries(entries);
+        stts.setEntries(track.getTimeToSampleEntries());
         stbl.addBox(stts);
     }
 
@@ -399,19 +464,17 @@ public class MP4Builder {
 
         int previousWritedChunkCount = -1;
 
-        int samplesCount = track.getSamples().size();
+        int samplesCount = track.getSampleCount();
         for (int a = 0; a < samplesCount; a++) {
-            Sample sample = track.getSamples().get(a);
-            long offset = sample.getOffset();
-            long size = sample.getSize();
+            long offset = track.getSampleOffset(a);
+            long size = track.getSampleSize(a);
 
             lastOffset = offset + size;
             lastSampleCount++;
 
             boolean write = false;
             if (a != samplesCount - 1) {
-                Sample nextSample = track.getSamples().get(a + 1);
-                if (lastOffset != nextSample.getOffset()) {
+                if (lastOffset != track.getSampleOffset(a + 1)) {
                     write = true;
                 }
             } else {
@@ -431,27 +494,24 @@ public class MP4Builder {
 
     protected void createStsz(Track track, SampleTableBox stbl) {
         SampleSizeBox stsz = new SampleSizeBox();
-        stsz.setSampleSizes(track2SampleSizes.get(track));
+        stsz.setSampleSizes(track.getSampleSizes());
         stbl.addBox(stsz);
     }
 
     protected void createStco(Track track, SampleTableBox stbl) {
-        ArrayList<Long> chunksOffsets = new ArrayList<>();
+        // a chunk starts wherever a sample does not directly follow the previous one
+        int samplesCount = track.getSampleCount();
+        int chunkCount = 0;
+        long[] chunkOffsetsLong = new long[Math.max(samplesCount, 1)];
         long lastOffset = -1;
-        for (Sample sample : track.getSamples()) {
-            long offset = sample.getOffset();
-            if (lastOffset != -1 && lastOffset != offset) {
-                lastOffset = -1;
-            }
-            if (lastOffset == -1) {
-                chunksOffsets.add(offset);
+        for (int a = 0; a < samplesCount; a++) {
+            long offset = track.getSampleOffset(a);
+            if (lastOffset != offset) {
+                chunkOffsetsLong[chunkCount++] = offset;
             }
-            lastOffset = offset + sample.getSize();
-        }
-        long[] chunkOffsetsLong = new long[chunksOffsets.size()];
-        for (int a = 0; a < chunksOffsets.size(); a++) {
-            chunkOffsetsLong[a] = chunksOffsets.get(a);
+            lastOffset = offset + track.getSampleSize(a);
         }
+        chunkOffsetsLong = Arrays.copyOf(chunkOffsetsLong, chunkCount);
 
         StaticChunkOffsetBox stco = new StaticChunkOffsetBox();
         stco.setChunkOffsets(chunkOffsetsLong);
@@ -30,6 +30,7 @@ import android.media.MediaFormat;
 import com.coremedia.iso.boxes.AbstractMediaHeaderBox;
 import com.coremedia.iso.boxes.SampleDescriptionBox;
 import com.coremedia.iso.boxes.SoundMediaHeaderBox;
+import com.coremedia.iso.boxes.TimeToSampleBox;
 import com.coremedia.iso.boxes.VideoMediaHeaderBox;
 import com.mp4parser.iso14496.part15.AvcConfigurationBox;
 import com.coremedia.iso.boxes.sampleentry.AudioSampleEntry;
@@ -42,27 +43,41 @@ import com.googlecode.mp4parser.boxes.mp4.objectdescriptors.SLConfigDescriptor;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 
 @TargetApi(16)
 public class Track {
     private long trackId = 0;
-    private ArrayList<Sample> samples = new ArrayList<>();
     private long duration = 0;
     private String handler;
     private AbstractMediaHeaderBox headerBox = null;
     private SampleDescriptionBox sampleDescriptionBox = null;
-    private LinkedList<Integer> syncSamples = null;
     private int timeScale;
     private Date creationTime = new Date();
     private int height;
     private int width;
     private float volume = 0;
-    private ArrayList<Long> sampleDurations = new ArrayList<>();
     private boolean isAudio = false;
+
+    // the sample tables are kept in primitive arrays growing as needed; a long recording has tens of
+    // thousands of samples and one object per sample would put quite some load on the garbage collector.
+    private static final int INITIAL_CAPACITY = 256;
+    private int    sampleCount = 0;
+    private long[] sampleOffsets = new long[INITIAL_CAPACITY];
+    private int[]  sampleSizes = new int[INITIAL_CAPACITY];
+    private int    syncSampleCount = 0;
+    private int[]  syncSamples = null; // 1-based sample numbers, null for audio tracks
+
+    // the durations are stored run-length-encoded as needed for the stts box; the duration of the last
+    // sample is not known when it is added, so lastSampleDuration is used for it.
+    private int    durationRunCount = 0;
+    private long[] durationRunDeltas = new long[16];
+    private int[]  durationRunLengths = new int[16];
+    private long   lastSampleDuration;
     private static Map<Integer, Integer> samplingFrequencyIndexMap = new HashMap<>();
     private long lastPresentationTimeUs = 0;
     private boolean first = true;
@@ -86,12 +101,12 @@ public class Track {
         trackId = id;
         isAudio = audio;
         if (!isAudio) {
-            sampleDurations.add((long) 3015);
+            lastSampleDuration = 3015;
             duration = 3015;
             width = format.getInteger(MediaFormat.KEY_WIDTH);
             height = format.getInteger(MediaFormat.KEY_HEIGHT);
             timeScale = 90000;
-            syncSamples = new LinkedList<>();
+            syncSamples = new int[INITIAL_CAPACITY / 8];
             handler = "vide";
             headerBox = new VideoMediaHeaderBox();
             sampleDescriptionBox = new SampleDescriptionBox();
@@ -150,7 +165,7 @@ public class Track {
                 sampleDescriptionBox.addBox(visualSampleEntry);
             }
         } else {
-            sampleDurations.add((long) 1024);
+            lastSampleDuration = 1024;
             duration = 1024;
             volume = 1;
             timeScale = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
@@ -204,22 +219,69 @@ public class Track {
             return;
         }
         boolean isSyncFrame = !isAudio && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
-        samples.add(new Sample(offset, bufferInfo.size));
+        if (sampleCount == sampleOffsets.length) {
+            sampleOffsets = Arrays.copyOf(sampleOffsets, sampleCount * 2);
+            sampleSizes = Arrays.copyOf(sampleSizes, sampleCount * 2);
+        }
+        sampleOffsets[sampleCount] = offset;
+        sampleSizes[sampleCount] = bufferInfo.size;
+        sampleCount++;
         if (syncSamples != null && isSyncFrame) {
-            syncSamples.add(samples.size());
+            if (syncSampleCount == syncSamples.length) {
+                syncSamples = Arrays.copyOf(syncSamples, syncSampleCount * 2);
+            }
+            syncSamples[syncSampleCount++] = sampleCount;
         }
 
         delta = (delta * timeScale + 500000L) / 1000000L;
         lastPresentationTimeUs = bufferInfo.presentationTimeUs;
         if (!first) {
-            sampleDurations.add(sampleDurations.size() - 1, delta);
+            // the delta is the duration of the previous sample
+            addDuration(delta);
             duration += delta;
         }
         first = false;
     }
 
-    public ArrayList<Sample> getSamples() {
-        return samples;
+    private void addDuration(long delta) {
+        if (durationRunCount > 0 && durationRunDeltas[durationRunCount - 1] == delta) {
+            durationRunLengths[durationRunCount - 1]++;
+            return;
+        }
+        if (durationRunCount == durationRunDeltas.length) {
+            durationRunDeltas = Arrays.copyOf(durationRunDeltas, durationRunCount * 2);
+            durationRunLengths = Arrays.copyOf(durationRunLengths, durationRunCount * 2);
+        }
+        durationRunDeltas[durationRunCount] = delta;
+        durationRunLengths[durationRunCount] = 1;
+        durationRunCount++;
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    public long getSampleOffset(int index) {
+        return sampleOffsets[index];
+    }
+
+    // used when the data are moved within the file, eg. to make room for the moov box
+    public void shiftSampleOffsets(long delta) {
+        for (int i = 0; i < sampleCount; i++) {
+            sampleOffsets[i] += delta;
+        }
+    }
+
+    public long getSampleSize(int index) {
+        return sampleSizes[index];
+    }
+
+    public long[] getSampleSizes() {
+        long[] returns = new long[sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            returns[i] = sampleSizes[i];
+        }
+        return returns;
     }
 
     public long getDuration() {
@@ -239,12 +301,12 @@ public class Track {
     }
 
     public long[] getSyncSamples() {
-        if (syncSamples == null || syncSamples.isEmpty()) {
+        if (syncSamples == null || syncSampleCount == 0) {
             return null;
         }
-        long[] returns = new long[syncSamples.size()];
-        for (int i = 0; i < syncSamples.size(); i++) {
-            returns[i] = syncSamples.get(i);
+        long[] returns = new long[syncSampleCount];
+        for (int i = 0; i < syncSampleCount; i++) {
+            returns[i] = syncSamples[i];
         }
         return returns;
     }
@@ -269,8 +331,19 @@ public class Track {
         return volume;
     }
 
-    public ArrayList<Long> getSampleDurations() {
-        return sampleDurations;
+    // the sample durations as needed for the stts box, including the last sample
+    public List<TimeToSampleBox.Entry> getTimeToSampleEntries() {
+        List<TimeToSampleBox.Entry> entries = new ArrayList<>(durationRunCount + 1);
+        for (int i = 0; i < durationRunCount; i++) {
+            entries.add(new TimeToSampleBox.Entry(durationRunLengths[i], durationRunDeltas[i]));
+        }
+        if (durationRunCount > 0 && durationRunDeltas[durationRunCount - 1] == lastSampleDuration) {
+            TimeToSampleBox.Entry lastEntry = entries.get(durationRunCount - 1);
+            lastEntry.setCount(lastEntry.getCount() + 1);
+        } else {
+            entries.add(new TimeToSampleBox.Entry(1, lastSampleDuration));
+        }
+        return entries;
     }
 
     public boolean isAudio() {